@@ -14,6 +14,8 @@
  */
 package com.mobilyzer;
 
+import java.util.ArrayList;
+
 import com.mobilyzer.MeasurementScheduler.DataUsageProfile;
 import com.mobilyzer.MeasurementScheduler.TaskStatus;
 import com.mobilyzer.util.Logger;
@@ -23,6 +25,7 @@ import android.content.Intent;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.Message;
+import android.os.Parcelable;
 
 /**
  * @author Hongyi Yao (hyyao@umich.edu)
@@ -78,6 +81,20 @@ public class APIRequestHandler extends Handler {
           scheduler.submitTask(task);
         }
         break;
+      case Config.MSG_SUBMIT_TASKS:
+        Parcelable[] parcelables =
+          data.getParcelableArray(UpdateIntent.MEASUREMENT_TASKS_PAYLOAD);
+        if ( parcelables != null ) {
+          // we cannot directly cast Parcelable[] to MeasurementTask[]. Cast them one-by-one
+          ArrayList<MeasurementTask> tasks =
+              new ArrayList<MeasurementTask>(parcelables.length);
+          for ( Parcelable p : parcelables ) {
+            tasks.add((MeasurementTask) p);
+          }
+          Logger.i("Request Handler: " + clientKey + " submit " + tasks.size() + " tasks");
+          scheduler.submitTasks(tasks);
+        }
+        break;
       case Config.MSG_CANCEL_TASK:
         taskId = data.getString(UpdateIntent.TASKID_PAYLOAD);
         if ( taskId != null && clientKey != null ) {
@@ -23,6 +23,7 @@ import android.os.AsyncTask;
 import org.apache.http.HttpVersion;
 import org.apache.http.client.CookieStore;
 import org.apache.http.client.HttpClient;
+import org.apache.http.client.HttpResponseException;
 import org.apache.http.client.ResponseHandler;
 import org.apache.http.client.methods.HttpPost;
 import org.apache.http.conn.ClientConnectionManager;
@@ -52,11 +53,15 @@ import com.mobilyzer.util.MeasurementJsonConvertor;
 import com.mobilyzer.util.PhoneUtils;
 
 import java.io.BufferedReader;
+import java.io.BufferedWriter;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.StringWriter;
 import java.io.UnsupportedEncodingException;
+import java.io.Writer;
 import java.net.Socket;
 import java.net.UnknownHostException;
 import java.security.KeyManagementException;
@@ -81,6 +86,11 @@ import javax.net.ssl.X509TrustManager;
  */
 public class Checkin {
   private static final int POST_TIMEOUT_MILLISEC = 20 * 1000;
+  // RRC inference rows waiting for upload, one "<service url>\t<json>" line each
+  private static final String RRC_RESULTS_FILE = "rrc_results";
+  private static final Object rrcResultsLock = new Object();
+  // New rows are dropped once the store holds this much, e.g. while the server is unreachable
+  private static final long MAX_RRC_RESULTS_BYTES = 1024 * 1024;
   private Context context;
   private Date lastCheckin;
   private volatile Cookie authCookie = null;
@@ -204,91 +214,215 @@ public class Checkin {
   /**
    * Read in the results of tasks completed to date from a file, then clear the file.
    * 
-   * @return The results as a JSONArray, ready for sending to the server.
+   * @return The results, one JSON object per entry, ready for sending to the server.
    */
-  private synchronized JSONArray readResultsFromFile() {
+  private Vector<String> readResultsFromFile() {
 
-    JSONArray results = new JSONArray();
-    try {
-      Logger.d("Loading results from disk: "+context.getFilesDir());
+    Vector<String> results = new Vector<String>();
+    // The scheduler's result writer must not append between the read and the delete
+    synchronized (ResultStore.fileLock) {
+      try {
+        Logger.d("Loading results from disk: "+context.getFilesDir());
       
-      FileInputStream inputstream = context.openFileInput("results");
-      InputStreamReader streamreader = new InputStreamReader(inputstream);
-      BufferedReader bufferedreader = new BufferedReader(streamreader);
-
-      String line;
-      int count = 0;
-      while ((line = bufferedreader.readLine()) != null) {
-        JSONObject jsonTask;
-        try {
-          jsonTask = new JSONObject(line);
+        FileInputStream inputstream = context.openFileInput(ResultStore.RESULTS_FILE);
+        InputStreamReader streamreader = new InputStreamReader(inputstream, "UTF-8");
+        BufferedReader bufferedreader = new BufferedReader(streamreader);
+
+        String line;
+        int count = 0;
+        while ((line = bufferedreader.readLine()) != null) {
+          // Lines are written by MeasurementJsonConvertor.writeResult(), so they are already in
+          // their final form and are uploaded as they are. They are still parsed, so that a line
+          // mangled by an interrupted write or a bad disk cannot make the server reject the
+          // whole chunk it is sent in.
+          if (line.length() == 0) {
+            continue;
+          }
+          try {
+            new JSONObject(line);
+          } catch (JSONException e) {
+            Logger.e("Skipping malformed result line: " + line);
+            continue;
+          }
           count++;
-          results.put(jsonTask);
-        } catch (JSONException e) {
-          Logger.e("", e);
+          results.add(line);
         }
-      }
-      Logger.i("Got " + count + " results from file");
+        Logger.i("Got " + count + " results from file");
 
-      bufferedreader.close();
-      streamreader.close();
-      inputstream.close();
+        bufferedreader.close();
+        streamreader.close();
+        inputstream.close();
 
-      // delete file once done, to avoid uploading results twice
-      context.deleteFile("results");
+        // delete file once done, to avoid uploading results twice
+        context.deleteFile(ResultStore.RESULTS_FILE);
 
 
-    } catch (FileNotFoundException e) {
-      Logger.e("", e);
-    } catch (IOException e) {
-      Logger.e("", e);
+      } catch (FileNotFoundException e) {
+        Logger.e("", e);
+      } catch (IOException e) {
+        Logger.e("", e);
+      }
     }
     return results;
   }
   
-  public void uploadMeasurementResult(Vector<MeasurementResult> finishedTasks, ResourceCapManager resourceCapManager)
-      throws IOException {
-    JSONArray resultArray = readResultsFromFile();
-    for (MeasurementResult result : finishedTasks) {
+  /**
+   * Appends rows of RRC inference data to the local store. They are sent by
+   * uploadRrcResults(), so that a running inference never has its radio state disturbed by
+   * uploads.
+   * 
+   * @param url The service the rows are posted to, one request per row
+   * @param rows JSON objects
+   */
+  public static void saveRrcResults(Context context, String url, String[] rows) {
+    synchronized (rrcResultsLock) {
+      if (context.getFileStreamPath(RRC_RESULTS_FILE).length() >= MAX_RRC_RESULTS_BYTES) {
+        Logger.w("RRC result store is full, dropping " + rows.length + " rows");
+        return;
+      }
       try {
-        resultArray.put(MeasurementJsonConvertor.encodeToJson(result));
-      } catch (JSONException e1) {
-        Logger.e("Error when adding " + result);
+        Writer writer = new BufferedWriter(new OutputStreamWriter(context.openFileOutput(
+            RRC_RESULTS_FILE, Context.MODE_PRIVATE | Context.MODE_APPEND), "UTF-8"));
+        try {
+          for (String row : rows) {
+            writer.write(url);
+            writer.write('\t');
+            writer.write(row);
+            writer.write('\n');
+          }
+        } finally {
+          writer.close();
+        }
+      } catch (IOException e) {
+        Logger.e("Unable to store RRC results", e);
       }
     }
-    
-    JSONArray chunckedArray= new JSONArray();
-    int i=0;
-    for (;i<resultArray.length();i++){
+  }
+
+  /**
+   * Posts the RRC inference rows stored by saveRrcResults() in one go, over a single
+   * connection. Rows that could not be sent because of a transport or server error stay in the
+   * store for the next checkin. Rows the server rejects as bad requests are dropped, since
+   * sending them again would fail the same way and hold up the rows behind them.
+   */
+  public void uploadRrcResults() {
+    synchronized (rrcResultsLock) {
+      Vector<String> lines = new Vector<String>();
       try {
-        chunckedArray.put(resultArray.getJSONObject(i));
-      } catch (JSONException e) {
-        Logger.e("Error when adding index " +i + " to array");
+        BufferedReader reader = new BufferedReader(new InputStreamReader(
+            context.openFileInput(RRC_RESULTS_FILE), "UTF-8"));
+        try {
+          String line;
+          while ((line = reader.readLine()) != null) {
+            // Drop a line truncated by an interrupted write
+            if (line.indexOf('\t') > 0 && line.endsWith("}")) {
+              lines.add(line);
+            }
+          }
+        } finally {
+          reader.close();
+        }
+      } catch (FileNotFoundException e) {
+        return;
+      } catch (IOException e) {
+        Logger.e("Unable to read stored RRC results", e);
+        return;
       }
-      
-      if((i+1)%100==0){
-        Logger.d("uploading "+chunckedArray.length()+" measurements");
-        uploadChunkedArray(chunckedArray, resourceCapManager);
-        chunckedArray= new  JSONArray();
+      if (lines.isEmpty()) {
+        context.deleteFile(RRC_RESULTS_FILE);
+        return;
+      }
+
+      Logger.i("Uploading " + lines.size() + " stored RRC results");
+      int sent = 0;
+      try {
+        HttpClient client = getNewHttpClient();
+        for (String line : lines) {
+          int tab = line.indexOf('\t');
+          try {
+            String response =
+                serviceRequest(client, line.substring(0, tab), line.substring(tab + 1));
+            Logger.d("Response from GAE: " + response);
+          } catch (HttpResponseException e) {
+            if (!isRejectedRow(e.getStatusCode())) {
+              throw e;
+            }
+            Logger.e("Dropping RRC result rejected with " + e.getStatusCode() + ": "
+                + e.getMessage());
+          }
+          sent++;
+        }
+      } catch (IOException e) {
+        Logger.e("Uploading RRC results stopped after " + sent + " of " + lines.size() + ": "
+            + e.getMessage());
+      }
+
+      context.deleteFile(RRC_RESULTS_FILE);
+      if (sent < lines.size()) {
+        try {
+          Writer writer = new BufferedWriter(new OutputStreamWriter(
+              context.openFileOutput(RRC_RESULTS_FILE, Context.MODE_PRIVATE), "UTF-8"));
+          try {
+            for (int i = sent; i < lines.size(); i++) {
+              writer.write(lines.get(i));
+              writer.write('\n');
+            }
+          } finally {
+            writer.close();
+          }
+        } catch (IOException e) {
+          Logger.e("Unable to keep unsent RRC results", e);
+        }
       }
     }
-    if(i%100!=0){
-      Logger.d("uploading "+chunckedArray.length()+" measurements");
-      uploadChunkedArray(chunckedArray, resourceCapManager);
+  }
+
+  /**
+   * Whether a response status means the server will never accept the row. Authentication and
+   * rate limiting failures say nothing about the row itself.
+   */
+  private static boolean isRejectedRow(int statusCode) {
+    return statusCode >= 400 && statusCode < 500 && statusCode != 401 && statusCode != 403
+        && statusCode != 408 && statusCode != 429;
+  }
+
+  public void uploadMeasurementResult(Vector<MeasurementResult> finishedTasks, ResourceCapManager resourceCapManager)
+      throws IOException {
+    Vector<String> storedResults = readResultsFromFile();
+    int total = storedResults.size() + finishedTasks.size();
+    
+    StringWriter chunkedArray = new StringWriter();
+    int chunkSize = 0;
+    for (int i = 0; i < total; i++) {
+      chunkedArray.write(chunkSize == 0 ? '[' : ',');
+      if (i < storedResults.size()) {
+        chunkedArray.write(storedResults.get(i));
+      } else {
+        MeasurementJsonConvertor.writeResult(finishedTasks.get(i - storedResults.size()),
+          chunkedArray);
+      }
+      chunkSize++;
+      
+      if (chunkSize == 100 || i == total - 1) {
+        chunkedArray.write(']');
+        Logger.d("uploading "+chunkSize+" measurements");
+        uploadChunkedArray(chunkedArray.toString(), resourceCapManager);
+        chunkedArray = new StringWriter();
+        chunkSize = 0;
+      }
     }
     Logger.i("TaskSchedule.uploadMeasurementResult() complete");
     
   }
   
   
-  private  void uploadChunkedArray(JSONArray resultArray, ResourceCapManager resourceCapManager)
+  private  void uploadChunkedArray(String resultArray, ResourceCapManager resourceCapManager)
       throws IOException {
-    Logger.i("uploadChunkedArray uploading: " + 
-        resultArray.toString());
+    Logger.i("uploadChunkedArray uploading: " + resultArray);
     if (PhoneUtils.getPhoneUtils().getNetwork() != PhoneUtils.NETWORK_WIFI) {
-    	resourceCapManager.updateDataUsage(resultArray.toString().length());
+    	resourceCapManager.updateDataUsage(resultArray.length());
     }
-    String response = serviceRequest("postmeasurement", resultArray.toString());
+    String response = serviceRequest("postmeasurement", resultArray);
     try {
       JSONObject responseJson = new JSONObject(response);
       if (!responseJson.getBoolean("success")) {
@@ -323,26 +457,24 @@ public class Checkin {
       throws IOException, InterruptedException, ExecutionException {
     
     result.getDeviceProperty().registrationId=gcm_registraion_id;
+    StringWriter resultArray = new StringWriter();
+    resultArray.write('[');
+    MeasurementJsonConvertor.writeResult(result, resultArray);
+    resultArray.write(']');
+    Logger.d("Single Measurement result converted to json: "+resultArray.toString());
+    if (PhoneUtils.getPhoneUtils().getNetwork() != PhoneUtils.NETWORK_WIFI) {
+      resourceCapManager.updateDataUsage(resultArray.toString().length());
+    }
+    
+    String response=new NotUIBlockingResultUploader().execute(resultArray.toString()).get();
+//    String response = serviceRequest("postmeasurement", resultJson.toString());
     try {
-      JSONArray resultArray= new JSONArray();
-      resultArray.put(MeasurementJsonConvertor.encodeToJson(result));
-      Logger.d("Single Measurement result converted to json: "+resultArray.toString());
-      if (PhoneUtils.getPhoneUtils().getNetwork() != PhoneUtils.NETWORK_WIFI) {
-    	  resourceCapManager.updateDataUsage(resultArray.toString().length());
-      }
-      
-      String response=new NotUIBlockingResultUploader().execute(resultArray.toString()).get();
-//      String response = serviceRequest("postmeasurement", resultJson.toString());
-      try {
-        JSONObject responseJson = new JSONObject(response);
-        if (!responseJson.getBoolean("success")) {
-          throw new IOException("Failure posting single measurement result");
-        }
-      } catch (JSONException e) {
-        throw new IOException(e.getMessage());
+      JSONObject responseJson = new JSONObject(response);
+      if (!responseJson.getBoolean("success")) {
+        throw new IOException("Failure posting single measurement result");
       }
-    } catch (JSONException e1) {
-      Logger.d("TaskSchedule.uploadSingleMeasurementResult() complete");
+    } catch (JSONException e) {
+      throw new IOException(e.getMessage());
     }
     Logger.d("TaskSchedule.uploadSingleMeasurementResult() complete");
     
@@ -437,6 +569,14 @@ public class Checkin {
   
   public String serviceRequest(String url, String jsonString) 
       throws IOException {
+    return serviceRequest(null, url, jsonString);
+  }
+
+  /**
+   * @param client Client to reuse across requests, or null for a new one
+   */
+  private String serviceRequest(HttpClient client, String url, String jsonString)
+      throws IOException {
     
     if (this.accountSelector == null) {
       accountSelector = new AccountSelector(context);
@@ -451,7 +591,9 @@ public class Checkin {
       }
     }
     
-    HttpClient client = getNewHttpClient();
+    if (client == null) {
+      client = getNewHttpClient();
+    }
     String fullurl = (accountSelector.isAnonymous() ?
                       phoneUtils.getAnonymousServerUrl() :
                       phoneUtils.getServerUrl()) + "/" + url;
@@ -32,6 +32,8 @@ public interface Config {
   public static final String TASK_CANCELED = "TASK_CENCELED";
   public static final String TASK_STOPPED = "TASK_STOPPED";
   public static final String TASK_RESCHEDULED = "TASK_RESCHEDULED";
+  // Results of a subtask of a still running composite task
+  public static final String TASK_PARTIAL_RESULT = "TASK_PARTIAL_RESULT";
 
 
   /** Types for message between API and scheduler**/
@@ -49,6 +51,9 @@ public interface Config {
   public static final int MSG_UNREGISTER_CLIENTKEY = 12;
   public static final int MSG_SET_AUTH_ACCOUNT = 13;
   public static final int MSG_GET_AUTH_ACCOUNT = 14;
+  public static final int MSG_SUBMIT_TASKS = 15;
+  // Tasks sent in one MSG_SUBMIT_TASKS message, keeps it well below the binder transaction limit
+  public static final int MAX_TASKS_PER_SUBMIT_MSG = 100;
 
   /** The default battery level if we cannot read it from the system */
   public static final int DEFAULT_BATTERY_LEVEL = 0;
@@ -149,7 +149,9 @@ public class ContextCollector {
     isRunning = false;
     HashMap<String, String> currentContext = getCurrentContextInfo();
     if (currentContext.size() != 0) {
-      contextResultArray.add(currentContext);
+      synchronized (contextResultArray) {
+        contextResultArray.add(currentContext);
+      }
     }
     
 //    if(ipConnectivity.equals("")){
@@ -168,6 +170,16 @@ public class ContextCollector {
     return contextResultArray;
   }
 
+  /**
+   * @return copy of the context info collected so far, for results handed over before the
+   *         measurement task is done
+   */
+  public ArrayList<HashMap<String, String>> getContextSoFar() {
+    synchronized (contextResultArray) {
+      return new ArrayList<HashMap<String, String>>(contextResultArray);
+    }
+  }
+
   /**
    * Return the current Ip connectivity
    * 
@@ -192,7 +204,9 @@ public class ContextCollector {
       if (ContextCollector.this.count < Config.MAX_CONTEXT_INFO_COLLECTIONS_PER_TASK) {
         HashMap<String, String> currentContext = getCurrentContextInfo();
         if (currentContext.size() != 0) {
-          contextResultArray.add(currentContext);
+          synchronized (contextResultArray) {
+            contextResultArray.add(currentContext);
+          }
           ContextCollector.this.count++;
 
           if(ipConnectivity.equals("")){
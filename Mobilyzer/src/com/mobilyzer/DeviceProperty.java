@@ -16,12 +16,15 @@
 package com.mobilyzer;
 
 
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.HashSet;
 
 import android.os.Parcel;
 import android.os.Parcelable;
 
+import com.mobilyzer.util.JsonStreamWriter;
+
 
 
 /**
@@ -172,6 +175,52 @@ public class DeviceProperty implements Parcelable {
   public String getLocation(){
 	  return this.location.toString();
   }
+
+  /**
+   * Streams this object as JSON with the same field names and order gson produces
+   * @param writer destination of the JSON text
+   */
+  public void writeJson(JsonStreamWriter writer) throws IOException {
+    writer.beginObject();
+    writer.name("device_id").value(deviceId);
+    writer.name("app_version").value(appVersion);
+    writer.name("timestamp").value(timestamp);
+    writer.name("os_version").value(osVersion);
+    writer.name("ip_connectivity").value(ipConnectivity);
+    writer.name("dn_resolvability").value(dnResolvability);
+    writer.name("location");
+    if (location == null) {
+      writer.nullValue();
+    } else {
+      location.writeJson(writer);
+    }
+    writer.name("location_type").value(locationType);
+    writer.name("network_type").value(networkType);
+    writer.name("carrier").value(carrier);
+    writer.name("country_code").value(countryCode);
+    writer.name("battery_level").value(batteryLevel);
+    writer.name("is_battery_charging").value(isBatteryCharging);
+    writer.name("cell_info").value(cellInfo);
+    writer.name("cell_rssi").value(cellRssi);
+    writer.name("rssi").value(rssi);
+    writer.name("ssid").value(ssid);
+    writer.name("bssid").value(bssid);
+    writer.name("wifi_ip_address").value(wifiIpAddress);
+    writer.name("mobilyzer_version").value(mobilyzerVersion);
+    writer.name("host_apps");
+    if (hostApps == null) {
+      writer.nullValue();
+    } else {
+      writer.beginArray();
+      for (String hostApp : hostApps) {
+        writer.value(hostApp);
+      }
+      writer.endArray();
+    }
+    writer.name("request_app").value(requestApp);
+    writer.name("registration_id").value(registrationId);
+    writer.endObject();
+  }
   
 }
 
@@ -212,6 +261,13 @@ class GeoLocation implements Parcelable {
     dest.writeDouble(latitude);
   }
   
+  public void writeJson(JsonStreamWriter writer) throws IOException {
+    writer.beginObject();
+    writer.name("longitude").value(longitude);
+    writer.name("latitude").value(latitude);
+    writer.endObject();
+  }
+
   @Override
 	public String toString() {
 		return latitude+","+longitude;
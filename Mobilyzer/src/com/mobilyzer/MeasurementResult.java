@@ -13,17 +13,23 @@
  */
 package com.mobilyzer;
 
+import java.io.IOException;
 import java.io.PrintWriter;
 import java.io.StringWriter;
 import java.io.Writer;
 import java.util.ArrayList;
 import java.util.Formatter;
 import java.util.HashMap;
+import java.util.Map;
 
 import android.os.Parcel;
 import android.os.Parcelable;
 import android.util.StringBuilderPrinter;
 
+import com.google.myjson.JsonElement;
+import com.google.myjson.JsonNull;
+
+import com.mobilyzer.measurements.DagTask;
 import com.mobilyzer.measurements.DnsLookupTask;
 import com.mobilyzer.measurements.HttpTask;
 import com.mobilyzer.measurements.ParallelTask;
@@ -41,6 +47,7 @@ import com.mobilyzer.measurements.TracerouteTask.TracerouteDesc;
 import com.mobilyzer.measurements.UDPBurstTask.UDPBurstDesc;
 import com.mobilyzer.measurements.VideoQoETask;
 import com.mobilyzer.measurements.VideoQoETask.VideoQoEDesc;
+import com.mobilyzer.util.JsonStreamWriter;
 import com.mobilyzer.util.Logger;
 import com.mobilyzer.util.MeasurementJsonConvertor;
 import com.mobilyzer.util.PhoneUtils;
@@ -61,7 +68,7 @@ public class MeasurementResult implements Parcelable {
   private String type;
   private TaskProgress taskProgress;
   private MeasurementDesc parameters;
-  private HashMap<String, String> values;
+  private ResultValues values;
   private ArrayList<HashMap<String, String>> contextResults;
 
   public enum TaskProgress {
@@ -91,7 +98,7 @@ public class MeasurementResult implements Parcelable {
     }
     this.parameters = measurementDesc;
     this.parameters.parameters = measurementDesc.parameters;
-    this.values = new HashMap<String, String>();
+    this.values = new ResultValues();
     this.contextResults = new ArrayList<HashMap<String, String>>();
   }
 
@@ -141,6 +148,13 @@ public class MeasurementResult implements Parcelable {
       for (MeasurementResult r : tempResults) {
         results.add(r);
       }
+    } else if (task.getType().equals(DagTask.TYPE)) {
+      DagTask dTask = (DagTask) task;
+      MeasurementResult[] tempResults =
+          MeasurementResult.getFailureResults(dTask.getTasks(), error);
+      for (MeasurementResult r : tempResults) {
+        results.add(r);
+      }
     } else {
       MeasurementResult r =
           new MeasurementResult(phoneUtils.getDeviceInfo().deviceId,
@@ -196,10 +210,20 @@ public class MeasurementResult implements Parcelable {
   }
 
   /**
+   * Values are stored in typed form, so the returned map is a snapshot rendered in the string
+   * form gson gives each value. Changes to it are not reflected in the result, use addResult().
    * @return key/value pairs of measurement result
    */
   public HashMap<String,String> getValues(){
-    return this.values;
+    return this.values.toStringMap();
+  }
+
+  /**
+   * @param key key of the result value
+   * @return the value rendered as gson would, or null if there is no such value
+   */
+  public String getValue(String key) {
+    return this.values.getString(key);
   }
   
   /**
@@ -231,9 +255,81 @@ public class MeasurementResult implements Parcelable {
 	  this.parameters=desc;
   }
 
-  /* Add the measurement results of type String into the class */
+  /**
+   * Add a measurement result value. Boxed primitives, strings and lists of numbers are stored
+   * natively, anything else is converted to JSON right away.
+   */
   public void addResult(String resultType, Object resultVal) {
-    this.values.put(resultType, MeasurementJsonConvertor.toJsonString(resultVal));
+    this.values.putObject(resultType, resultVal);
+  }
+
+  public void addResult(String resultType, String resultVal) {
+    this.values.putString(resultType, resultVal);
+  }
+
+  public void addResult(String resultType, long resultVal) {
+    this.values.putLong(resultType, resultVal);
+  }
+
+  public void addResult(String resultType, double resultVal) {
+    this.values.putDouble(resultType, resultVal);
+  }
+
+  public void addResult(String resultType, float resultVal) {
+    this.values.putFloat(resultType, resultVal);
+  }
+
+  public void addResult(String resultType, boolean resultVal) {
+    this.values.putBoolean(resultType, resultVal);
+  }
+
+  public void addResult(String resultType, long[] resultVal) {
+    this.values.putLongArray(resultType, resultVal);
+  }
+
+  public void addResult(String resultType, double[] resultVal) {
+    this.values.putDoubleArray(resultType, resultVal);
+  }
+
+  /**
+   * Streams this result as a single JSON object. The output is identical to what
+   * {@link MeasurementJsonConvertor#encodeToJson(Object)} produces, so it can be written to the
+   * result file or an upload body directly.
+   * @param writer destination of the JSON text
+   */
+  public void writeJson(JsonStreamWriter writer) throws IOException {
+    writer.beginObject();
+    writer.name("device_id").value(deviceId);
+    writer.name("properties");
+    if (properties == null) {
+      writer.nullValue();
+    } else {
+      properties.writeJson(writer);
+    }
+    writer.name("timestamp").value(timestamp);
+    writer.name("success").value(success);
+    writer.name("type").value(type);
+    writer.name("task_progress").value(taskProgress == null ? null : taskProgress.name());
+    // Descriptors are polymorphic, leave their fields to gson. Their additional parameters are
+    // left out, or the results won't be accepted by GAE server.
+    JsonElement desc = MeasurementJsonConvertor.getGsonInstance().toJsonTree(parameters);
+    if (desc.isJsonObject()) {
+      desc.getAsJsonObject().add("parameters", new JsonNull());
+    }
+    writer.name("parameters").value(desc);
+    writer.name("values");
+    values.writeJson(writer);
+    writer.name("context_results");
+    if (contextResults == null) {
+      writer.nullValue();
+    } else {
+      writer.beginArray();
+      for (Map<String, String> contextResult : contextResults) {
+        writer.value(contextResult);
+      }
+      writer.endArray();
+    }
+    writer.endObject();
   }
 
   /* Returns a string representation of the result */
@@ -242,6 +338,7 @@ public class MeasurementResult implements Parcelable {
     StringBuilder builder = new StringBuilder();
     StringBuilderPrinter printer = new StringBuilderPrinter(builder);
     Formatter format = new Formatter();
+    HashMap<String, String> values = getValues();
     try {
       if (type.equals(PingTask.TYPE)) {
         getPingResult(printer, values);
@@ -546,12 +643,7 @@ public class MeasurementResult implements Parcelable {
       this.success = false;
     }
     parameters = in.readParcelable(MeasurementDesc.class.getClassLoader());
-//    values = in.readHashMap(loader);
-    int valuesSize = in.readInt();
-    values = new HashMap<String, String>();
-    for (int i = 0; i < valuesSize; i++) {
-      values.put(in.readString(), in.readString());
-    }
+    values = ResultValues.readFromParcel(in);
 //  contextResults = in.readArrayList(loader);
     contextResults= new ArrayList<HashMap<String,String>>();
     int contextResultsSize=in.readInt();
@@ -591,12 +683,7 @@ public class MeasurementResult implements Parcelable {
     out.writeString(type);
     out.writeSerializable(taskProgress);
     out.writeParcelable(parameters, flag);
-//    out.writeMap(values);
-    out.writeInt(values.size());
-    for (String s: values.keySet()) {
-        out.writeString(s);
-        out.writeString(values.get(s));
-    }
+    values.writeToParcel(out);
 //    out.writeList(contextResults);
     out.writeInt(contextResults.size());
     for (HashMap<String, String> map: contextResults) {
@@ -86,6 +86,11 @@ public class MeasurementScheduler extends Service {
 
   private ExecutorService measurementExecutor;
   private BroadcastReceiver broadcastReceiver;
+  private TaskEventBus eventBus;
+  private TaskEventBus.Listener taskEventListener;
+  // Stores the results carried by task events, for upload at the next checkin
+  private TaskEventBus.Listener resultStoreListener;
+  private ResultStore resultStore;
   public boolean isSchedulerStarted = false;
 
 
@@ -164,6 +169,7 @@ public class MeasurementScheduler extends Service {
 
 
     this.checkin = new Checkin(this);
+    this.resultStore = new ResultStore(this);
     this.checkinRetryIntervalSec = Config.MIN_CHECKIN_RETRY_INTERVAL_SEC;
     this.checkinRetryCnt = 0;
     this.checkinTask = new CheckinTask();
@@ -182,7 +188,6 @@ public class MeasurementScheduler extends Service {
     filter.addAction(UpdateIntent.CHECKIN_ACTION);
     filter.addAction(UpdateIntent.CHECKIN_RETRY_ACTION);
     filter.addAction(UpdateIntent.MEASUREMENT_ACTION);
-    filter.addAction(UpdateIntent.MEASUREMENT_PROGRESS_UPDATE_ACTION);
     filter.addAction(UpdateIntent.GCM_MEASUREMENT_ACTION);
     filter.addAction(UpdateIntent.PLT_MEASUREMENT_ACTION);
 
@@ -221,21 +226,57 @@ public class MeasurementScheduler extends Service {
           }
 
 
-        } else if (intent.getAction().equals(UpdateIntent.MEASUREMENT_PROGRESS_UPDATE_ACTION)) {
-          String taskKey = intent.getStringExtra(UpdateIntent.CLIENTKEY_PAYLOAD);
-          String taskid = intent.getStringExtra(UpdateIntent.TASKID_PAYLOAD);
-          int priority =
-              intent.getIntExtra(UpdateIntent.TASK_PRIORITY_PAYLOAD,
-                  MeasurementTask.INVALID_PRIORITY);
-
-          Logger.e(intent.getStringExtra(UpdateIntent.TASK_STATUS_PAYLOAD) + " " + taskid + " "
-              + taskKey);
-          if (intent.getStringExtra(UpdateIntent.TASK_STATUS_PAYLOAD).equals(Config.TASK_FINISHED)) {
-            tasksStatus.put(taskid, TaskStatus.FINISHED);
-            Parcelable[] results = intent.getParcelableArrayExtra(UpdateIntent.RESULT_PAYLOAD);
-            if (results != null && results.length!=0) {
-              sendResultToClient(results, priority, taskKey, taskid);
-              Logger.i("Sending results to client...");
+        } else if (intent.getAction().equals(UpdateIntent.CHECKIN_ACTION)
+            || intent.getAction().equals(UpdateIntent.CHECKIN_RETRY_ACTION)) {
+          Logger.d("Checkin intent received");
+          handleCheckin();
+        }
+      }
+    };
+    this.registerReceiver(broadcastReceiver, filter);
+
+    // Task progress stays inside the process, no need for intents
+    eventBus = new TaskEventBus();
+    taskEventListener = new TaskEventBus.Listener() {
+      @Override
+      public void onTaskEvent(TaskEvent event) {
+        handleTaskEvent(event);
+      }
+    };
+    eventBus.register(taskEventListener);
+    resultStoreListener = new TaskEventBus.Listener() {
+      @Override
+      public void onTaskEvent(TaskEvent event) {
+        if (event.results == null || event.results.length == 0) {
+          return;
+        }
+        if (event.status.equals(Config.TASK_PARTIAL_RESULT)
+            || (event.status.equals(Config.TASK_FINISHED) && !event.summary)) {
+          saveResults(event.results);
+        }
+      }
+    };
+    eventBus.register(resultStoreListener);
+  }
+
+  /**
+   * Track the state of tasks and forward their results. Storing them is up to
+   * resultStoreListener.
+   * 
+   * @param event lifecycle event posted by a running task
+   */
+  private void handleTaskEvent(TaskEvent event) {
+    String taskKey = event.clientKey;
+    String taskid = event.taskId;
+    int priority = event.priority;
+
+    Logger.e(event.toString());
+    if (event.status.equals(Config.TASK_FINISHED)) {
+      tasksStatus.put(taskid, TaskStatus.FINISHED);
+      MeasurementResult[] results = event.results;
+      if (results != null && results.length!=0) {
+        sendResultToClient(results, priority, taskKey, taskid);
+        Logger.i("Sending results to client...");
 //              if(intent.hasExtra(UpdateIntent.TASK_TYPE_PAYLOAD) && intent.hasExtra(UpdateIntent.TASK_DESC_PAYLOAD) && 
 //            		  (intent.getStringExtra(UpdateIntent.TASK_TYPE_PAYLOAD).equals(SequentialTask.TYPE) ||
 //            		   intent.getStringExtra(UpdateIntent.TASK_TYPE_PAYLOAD).equals(ParallelTask.TYPE))){
@@ -284,76 +325,45 @@ public class MeasurementScheduler extends Service {
 //					
 //              
 //              }
-              
-
-              for (Object obj : results) {
-                try {
-                  MeasurementResult result = (MeasurementResult) obj;
-                  /**
-                   * Nullify the additional parameters in MeasurmentDesc, or the results won't be
-                   * accepted by GAE server
-                   */
-                  result.getMeasurementDesc().parameters = null;
-                  result.getDeviceProperty().registrationId=checkin.gcm_registraion_id;
-                  Logger.d("REG ID: "+checkin.gcm_registraion_id);
-                  String jsonResult = MeasurementJsonConvertor.encodeToJson(result).toString();
-                  saveResultToFile(jsonResult);
-                } catch (JSONException e) {
-                  Logger.e("Error converting results to json format", e);
-                }
-              }
-            }
-            handleMeasurement();
-          } else if (intent.getStringExtra(UpdateIntent.TASK_STATUS_PAYLOAD).equals(
-              Config.TASK_PAUSED)) {
-            tasksStatus.put(taskid, TaskStatus.PAUSED);
-          } else if (intent.getStringExtra(UpdateIntent.TASK_STATUS_PAYLOAD).equals(
-              Config.TASK_STOPPED)) {
-            tasksStatus.put(taskid, TaskStatus.SCHEDULED);
-          } else if (intent.getStringExtra(UpdateIntent.TASK_STATUS_PAYLOAD).equals(
-              Config.TASK_CANCELED)) {
-            tasksStatus.put(taskid, TaskStatus.CANCELLED);
-            Parcelable[] results = intent.getParcelableArrayExtra(UpdateIntent.RESULT_PAYLOAD);
-            if (results != null) {
-              sendResultToClient(results, priority, taskKey, taskid);
-            }
-          } else if (intent.getStringExtra(UpdateIntent.TASK_STATUS_PAYLOAD).equals(
-              Config.TASK_STARTED)) {
-            tasksStatus.put(taskid, TaskStatus.RUNNING);
-          } else if (intent.getStringExtra(UpdateIntent.TASK_STATUS_PAYLOAD).equals(
-              Config.TASK_RESUMED)) {
-            tasksStatus.put(taskid, TaskStatus.RUNNING);
-          }
-        } else if (intent.getAction().equals(UpdateIntent.CHECKIN_ACTION)
-            || intent.getAction().equals(UpdateIntent.CHECKIN_RETRY_ACTION)) {
-          Logger.d("Checkin intent received");
-          handleCheckin();
-        }
       }
-    };
-    this.registerReceiver(broadcastReceiver, filter);
+      handleMeasurement();
+    } else if (event.status.equals(Config.TASK_PARTIAL_RESULT)) {
+      // The task is still running, only its results so far are handed over
+      MeasurementResult[] results = event.results;
+      if (results != null && results.length != 0) {
+        sendResultToClient(results, priority, taskKey, taskid);
+      }
+    } else if (event.status.equals(Config.TASK_PAUSED)) {
+      tasksStatus.put(taskid, TaskStatus.PAUSED);
+    } else if (event.status.equals(Config.TASK_STOPPED)) {
+      tasksStatus.put(taskid, TaskStatus.SCHEDULED);
+    } else if (event.status.equals(Config.TASK_CANCELED)) {
+      tasksStatus.put(taskid, TaskStatus.CANCELLED);
+      MeasurementResult[] results = event.results;
+      if (results != null) {
+        sendResultToClient(results, priority, taskKey, taskid);
+      }
+    } else if (event.status.equals(Config.TASK_STARTED)) {
+      tasksStatus.put(taskid, TaskStatus.RUNNING);
+    } else if (event.status.equals(Config.TASK_RESUMED)) {
+      tasksStatus.put(taskid, TaskStatus.RUNNING);
+    }
   }
 
   /**
-   * Save the results of a task to a file, for later uploading. This way, if the application
-   * crashes, is halted, etc. between the task and checkin, no results are lost.
+   * Prepare results for upload and queue them to be saved to the results file, for later
+   * uploading. The file is written by the ResultStore thread, off the main thread.
    * 
-   * @param result The JSON representation of a result, as a string
+   * @param results Results received from a measurement task
    */
-  private synchronized void saveResultToFile(String result) {
-    try {
-      Logger.i("Saving result to file...");
-      BufferedOutputStream writer =
-          new BufferedOutputStream(openFileOutput("results", Context.MODE_PRIVATE
-              | Context.MODE_APPEND));
-      result += "\n";
-      Logger.d("Measurement size in byte: "+result.length());
-      writer.write(result.getBytes());
-      writer.close();
-    } catch (FileNotFoundException e) {
-      Logger.e("saveResultToFile->", e);
-    } catch (IOException e) {
-      Logger.e("saveResultToFile->", e);
+  private void saveResults(MeasurementResult[] results) {
+    for (MeasurementResult result : results) {
+      // The additional parameters in MeasurmentDesc are left out of the JSON, see
+      // MeasurementResult.writeJson(). The descriptor is shared with the task, it is not
+      // a parcelled copy any more, so it must not be changed here.
+      result.getDeviceProperty().registrationId=checkin.gcm_registraion_id;
+      Logger.d("REG ID: "+checkin.gcm_registraion_id);
+      resultStore.save(result);
     }
   }
 
@@ -552,16 +562,11 @@ public class MeasurementScheduler extends Service {
         }
 
         if (ready.getDescription().endTime.before(new Date())) {
-          Intent intent = new Intent();
-          intent.setAction(UpdateIntent.MEASUREMENT_PROGRESS_UPDATE_ACTION);
-          intent.putExtra(UpdateIntent.TASK_STATUS_PAYLOAD, Config.TASK_CANCELED);
           MeasurementResult[] tempResults =
               MeasurementResult.getFailureResult(ready,
                   new CancellationException("Task cancelled!"));
-          intent.putExtra(UpdateIntent.RESULT_PAYLOAD, tempResults);
-          intent.putExtra(UpdateIntent.TASKID_PAYLOAD, ready.getTaskId());
-          intent.putExtra(UpdateIntent.CLIENTKEY_PAYLOAD, ready.getKey());
-          MeasurementScheduler.this.sendBroadcast(intent);
+          eventBus.post(new TaskEvent(Config.TASK_CANCELED, ready,
+              MeasurementTask.INVALID_PRIORITY, tempResults));
 
           if (desc.priority != MeasurementTask.USER_PRIORITY) {
             serverTasks.remove(desc.toString());
@@ -627,11 +632,7 @@ public class MeasurementScheduler extends Service {
       current = null;
       Logger.d("submitTask: current is null");
     }
-    // preemption condition
-    if (current != null
-        && newTask.getDescription().priority < current.getDescription().priority
-        && new Date(current.getDuration() + getCurrentTaskStartTime().getTime()).after(newTask
-            .getDescription().endTime)) {
+    if (shouldPreempt(current, newTask)) {
       Logger.d("submitTask: trying to cancel/preempt the task");
       // finding the current instance in pending tasks. we can call
       // pause on that instance only
@@ -709,47 +710,94 @@ public class MeasurementScheduler extends Service {
     } else {
       Logger.d("submitTask: adding to mainqueue");
       mainQueue.add(newTask);
-      if (current == null) {
-        Logger.d("submitTask: adding to mainqueue, current is null");
-        Logger.d("submitTask: calling handleMeasurement");
-        alarmManager.cancel(measurementIntentSender);
-        handleMeasurement();
-      } else {
-        Logger.d("submitTask: adding to mainqueue, current is not null: "
-            + current.getMeasurementType() + " " + getCurrentTaskStartTime());
-        if (pendingTasks.containsKey(current)) {
-          if (pendingTasks.get(current).isDone()) {
-            alarmManager.cancel(measurementIntentSender);
-            alarmManager.set(AlarmManager.RTC_WAKEUP, System.currentTimeMillis() + 3 * 1000,
-                measurementIntentSender);
-          } else if (getCurrentTaskStartTime() != null) {
-            if (!current.getMeasurementType().equals(RRCTask.TYPE)
-                && new Date(System.currentTimeMillis() - Config.MAX_TASK_DURATION)
-                    .after(getCurrentTaskStartTime())) {
-              pendingTasks.get(current).cancel(true);
-              handleMeasurement();
-
-            } else if (current.getMeasurementType().equals(RRCTask.TYPE)
-                && new Date(System.currentTimeMillis()
-                    - (Config.DEFAULT_RRC_TASK_DURATION + 15 * 60 * 1000))
-                    .after(getCurrentTaskStartTime())) {
-              pendingTasks.get(current).cancel(true);
-              handleMeasurement();
-            } else {
-              alarmManager.set(AlarmManager.RTC_WAKEUP, System.currentTimeMillis()
-                  + Config.MAX_TASK_DURATION / 2, measurementIntentSender);
-            }
-          }
+      scheduleQueued(current);
+    }
+    return newTaskId;
+  }
 
+  /**
+   * Submit many tasks at once. Tasks that would preempt the current task go through
+   * submitTask(); the rest are queued together and scheduled with a single pass.
+   * 
+   * @param newTasks tasks to be submitted
+   */
+  public synchronized void submitTasks(List<MeasurementTask> newTasks) {
+    MeasurementTask current = getCurrentTask();
+    int queued = 0;
+    for (MeasurementTask newTask : newTasks) {
+      if (shouldPreempt(current, newTask)) {
+        submitTask(newTask);
+        current = getCurrentTask();
+        continue;
+      }
+      String newTaskId = newTask.getTaskId();
+      tasksStatus.put(newTaskId, TaskStatus.SCHEDULED);
+      idToClientKey.put(newTaskId, newTask.getKey());
+      mainQueue.add(newTask);
+      queued++;
+    }
+    Logger.d("MeasurementScheduler --> submitTasks: queued " + queued + " of "
+        + newTasks.size() + " tasks");
+    if (queued > 0) {
+      scheduleQueued(current);
+    }
+  }
 
-        } else {
-          Logger.d("submitTask: not found in pending task");
-          handleMeasurement();
+  /**
+   * Whether a newly submitted task has to preempt the current one
+   */
+  private boolean shouldPreempt(MeasurementTask current, MeasurementTask newTask) {
+    return current != null
+        && newTask.getDescription().priority < current.getDescription().priority
+        && new Date(current.getDuration() + getCurrentTaskStartTime().getTime()).after(newTask
+            .getDescription().endTime);
+  }
+
+  /**
+   * Make sure tasks just added to the main queue get run, without preempting the current task
+   * 
+   * @param current task currently running or scheduled, null if none
+   */
+  private void scheduleQueued(MeasurementTask current) {
+    if (current == null) {
+      Logger.d("submitTask: adding to mainqueue, current is null");
+      Logger.d("submitTask: calling handleMeasurement");
+      alarmManager.cancel(measurementIntentSender);
+      handleMeasurement();
+    } else {
+      Logger.d("submitTask: adding to mainqueue, current is not null: "
+          + current.getMeasurementType() + " " + getCurrentTaskStartTime());
+      if (pendingTasks.containsKey(current)) {
+        if (pendingTasks.get(current).isDone()) {
+          alarmManager.cancel(measurementIntentSender);
+          alarmManager.set(AlarmManager.RTC_WAKEUP, System.currentTimeMillis() + 3 * 1000,
+              measurementIntentSender);
+        } else if (getCurrentTaskStartTime() != null) {
+          if (!current.getMeasurementType().equals(RRCTask.TYPE)
+              && new Date(System.currentTimeMillis() - Config.MAX_TASK_DURATION)
+                  .after(getCurrentTaskStartTime())) {
+            pendingTasks.get(current).cancel(true);
+            handleMeasurement();
+
+          } else if (current.getMeasurementType().equals(RRCTask.TYPE)
+              && new Date(System.currentTimeMillis()
+                  - (Config.DEFAULT_RRC_TASK_DURATION + 15 * 60 * 1000))
+                  .after(getCurrentTaskStartTime())) {
+            pendingTasks.get(current).cancel(true);
+            handleMeasurement();
+          } else {
+            alarmManager.set(AlarmManager.RTC_WAKEUP, System.currentTimeMillis()
+                + Config.MAX_TASK_DURATION / 2, measurementIntentSender);
+          }
         }
 
+
+      } else {
+        Logger.d("submitTask: not found in pending task");
+        handleMeasurement();
       }
+
     }
-    return newTaskId;
   }
 
   public synchronized boolean cancelTask(String taskId, String clientKey) {
@@ -1031,6 +1079,15 @@ public class MeasurementScheduler extends Service {
    * @param taskId Unique task id for the task
    */
   public void sendResultToClient(Parcelable[] results, int priority, String clientKey, String taskId) {
+    if (priority != MeasurementTask.USER_PRIORITY) {
+      synchronized (PhoneUtils.clientKeySet) {
+        if (clientKey == null || !PhoneUtils.clientKeySet.contains(clientKey)) {
+          Logger.d("Client " + clientKey + " is not registered, not broadcasting result: taskId "
+              + taskId);
+          return;
+        }
+      }
+    }
     Intent intent = new Intent();
     intent.putExtra(UpdateIntent.RESULT_PAYLOAD, results);
     intent.putExtra(UpdateIntent.TASKID_PAYLOAD, taskId);
@@ -1044,6 +1101,13 @@ public class MeasurementScheduler extends Service {
     this.sendBroadcast(intent);
   }
 
+  /**
+   * @return the bus running tasks report their progress and results on
+   */
+  public TaskEventBus getEventBus() {
+    return eventBus;
+  }
+
   /**
    * Stop the scheduler
    */
@@ -1067,8 +1131,11 @@ public class MeasurementScheduler extends Service {
     // remove and stop all active tasks
     this.measurementExecutor.shutdownNow();
     this.checkin.shutDown();
+    this.resultStore.shutDown();
 
     this.unregisterReceiver(broadcastReceiver);
+    eventBus.unregister(taskEventListener);
+    eventBus.unregister(resultStoreListener);
     Logger.d("canceling pending intents");
 
     if (checkinIntentSender != null) {
@@ -1326,14 +1393,15 @@ public class MeasurementScheduler extends Service {
     Logger.i("A total of " + finishedTasks.size() + " from pendingTasks is uploaded");
     Logger.i("A total of " + this.pendingTasks.size() + " is in pendingTasks");
 
+    // Make sure the queued results are in the file read by the checkin
+    this.resultStore.flush();
     try {
-      for (MeasurementResult r : finishedTasks) {
-        r.getMeasurementDesc().parameters = null;
-      }
       this.checkin.uploadMeasurementResult(finishedTasks, resourceCapManager);
     } catch (IOException e) {
       Logger.e("Error when uploading message");
     }
+    // RRC inference data an earlier run could not send
+    this.checkin.uploadRrcResults();
   }
 
 
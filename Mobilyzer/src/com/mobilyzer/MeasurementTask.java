@@ -8,6 +8,7 @@ import java.util.Set;
 import java.util.concurrent.Callable;
 
 import com.mobilyzer.exceptions.MeasurementError;
+import com.mobilyzer.measurements.DagTask;
 import com.mobilyzer.measurements.DnsLookupTask;
 import com.mobilyzer.measurements.HttpTask;
 import com.mobilyzer.measurements.PageLoadTimeTask;
@@ -29,9 +30,13 @@ public abstract class MeasurementTask
       Parcelable {
   protected MeasurementDesc measurementDesc;
   protected String taskId;
+  // Not parcelled, it belongs to whoever runs the task in this process
+  private volatile ResultListener resultListener;
 
 
   public static final int USER_PRIORITY = Integer.MIN_VALUE;
+  // Parameter of composite tasks asking for the results of each subtask as soon as it is done
+  public static final String PARAM_STREAM_RESULTS = "stream_results";
   /* used for Server tasks */
   public static final int INVALID_PRIORITY = Integer.MAX_VALUE;
   public static final int GCM_PRIORITY = 1234;//TODO just for testing
@@ -59,6 +64,7 @@ public abstract class MeasurementTask
     measurementTypes.put(RRCTask.TYPE, RRCTask.class);
     measurementTypes.put(PageLoadTimeTask.TYPE, PageLoadTimeTask.class);
     measurementTypes.put(SequentialTask.TYPE, SequentialTask.class);
+    measurementTypes.put(DagTask.TYPE, DagTask.class);
 //    measurementDescToType.put(PageLoadTimeTask.DESCRIPTOR, PageLoadTimeTask.TYPE);
     measurementTypes.put(VideoQoETask.TYPE, VideoQoETask.class);
 
@@ -176,6 +182,35 @@ public abstract class MeasurementTask
    */
   public abstract boolean stop();
 
+  /**
+   * Receives results while the task is still running. Composite tasks hand over the results of
+   * each subtask as soon as it is done, and then return only a summary result from call().
+   * Clients ask for this with the PARAM_STREAM_RESULTS parameter, see wantsStreamedResults().
+   */
+  public interface ResultListener {
+    void onResults(MeasurementTask task, MeasurementResult[] results);
+  }
+
+  /**
+   * Tasks that do not report results early ignore the listener
+   */
+  public void setResultListener(ResultListener listener) {
+    this.resultListener = listener;
+  }
+
+  protected ResultListener getResultListener() {
+    return resultListener;
+  }
+
+  /**
+   * @return true if the description sets PARAM_STREAM_RESULTS to "true". Without it a composite
+   *         task returns the results of all its subtasks together at the end, as it always did.
+   */
+  public boolean wantsStreamedResults() {
+    return measurementDesc.parameters != null
+        && "true".equals(measurementDesc.parameters.get(PARAM_STREAM_RESULTS));
+  }
+
 
   public abstract long getDuration();
 
@@ -16,6 +16,8 @@ public class PLTExecutorService extends Service {
 	@Override
 	public void onCreate() {
 		super.onCreate();
+		// Have the WebViews ready before the first page load is requested
+		AndroidWebView.prewarm(this);
 	}
 	
 	@Override
@@ -24,11 +26,12 @@ public class PLTExecutorService extends Service {
 		spdyTest=spdy;
 		String url=intent.getStringExtra(UpdateIntent.PLT_TASK_PAYLOAD_URL);
 		long startTimeFilter=intent.getLongExtra(UpdateIntent.PLT_TASK_PAYLOAD_STARTTIME,0);
+		String cachePolicy=intent.getStringExtra(UpdateIntent.PLT_TASK_PAYLOAD_CACHE_POLICY);
 		Logger.d("ashkan_plt: PLTExecutorService is started "+spdy+" "+url);
 		if(spdy){
 			
 //			AndroidWebView spdyWebView=new AndroidWebView(this, false, startTimeFilter, url);
-			AndroidWebView webView=new AndroidWebView(this, true, WebViewProtocol.HTTP,startTimeFilter, url);
+			AndroidWebView webView=AndroidWebView.acquire(this, true, WebViewProtocol.HTTP,startTimeFilter, url, cachePolicy);
 			webView.loadUrl();
 //			try {
 //				Thread.sleep(50000);
@@ -41,7 +44,7 @@ public class PLTExecutorService extends Service {
 //			httpWebView.loadUrl(url);
 			
 		}else{
-			AndroidWebView webView=new AndroidWebView(this, false, WebViewProtocol.HTTP,startTimeFilter, url);
+			AndroidWebView webView=AndroidWebView.acquire(this, false, WebViewProtocol.HTTP,startTimeFilter, url, cachePolicy);
 			webView.loadUrl();
 //			Intent newintent = new Intent(this, CrosswalkActivity.class);
 //			newintent.putExtra(UpdateIntent.PLT_TASK_PAYLOAD_URL, url);
@@ -67,6 +70,8 @@ public class PLTExecutorService extends Service {
 	@Override
 	public void onDestroy() {
 		Logger.d("ashkan_plt: PLTExecutorService: onDestroy");
+		// Page loads that did not finish in time, the idle views stay pooled
+		AndroidWebView.releaseAll();
 //		if(!spdyTest){
 //			Intent closeIntent=new Intent(UpdateIntent.PLT_MEASUREMENT_ACTION);
 //			closeIntent.putExtra(UpdateIntent.PLT_TASK_PAYLOAD_CLOSE_ACTIVITY, "True");
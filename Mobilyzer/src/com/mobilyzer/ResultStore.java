@@ -0,0 +1,144 @@
+/* Copyright 2013 RobustNet Lab, University of Michigan. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mobilyzer;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+
+import android.content.Context;
+
+import com.mobilyzer.util.Logger;
+import com.mobilyzer.util.MeasurementJsonConvertor;
+
+/**
+ * Keeps measurement results in the results file until the next checkin uploads them, so that
+ * no results are lost if the application crashes, is halted, etc. in between.
+ *
+ * Saving only queues the result. A single writer thread encodes the queued results and appends
+ * them to the file in batches, with one open of the file per batch. The queue is bounded; when
+ * it is full the thread saving a result writes out the queue itself, so results are never
+ * dropped.
+ */
+class ResultStore {
+  static final String RESULTS_FILE = "results";
+  // Held while the results file is written, or read and deleted by Checkin
+  static final Object fileLock = new Object();
+
+  private static final int QUEUE_CAPACITY = 1000;
+  private static final int MAX_BATCH_SIZE = 100;
+
+  private final Context context;
+  private final ArrayBlockingQueue<MeasurementResult> queue =
+      new ArrayBlockingQueue<MeasurementResult>(QUEUE_CAPACITY);
+  private final Thread writerThread;
+  private volatile boolean stopped = false;
+
+  ResultStore(Context context) {
+    this.context = context;
+    this.writerThread = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        writeLoop();
+      }
+    }, "result-writer");
+    writerThread.setDaemon(true);
+    writerThread.start();
+  }
+
+  /**
+   * Queue a result to be appended to the results file. Does not block on disk unless the
+   * writer has fallen a full queue behind.
+   */
+  void save(MeasurementResult result) {
+    if (stopped) {
+      writeBatch(Collections.singletonList(result));
+      return;
+    }
+    while (!queue.offer(result)) {
+      Logger.w("Result queue is full, writing it out on " + Thread.currentThread().getName());
+      flush();
+    }
+  }
+
+  /**
+   * Write out everything queued so far on the calling thread. Results the writer thread is
+   * already writing may still be on their way to the file when this returns.
+   */
+  void flush() {
+    ArrayList<MeasurementResult> batch = new ArrayList<MeasurementResult>();
+    synchronized (fileLock) {
+      while (queue.drainTo(batch, MAX_BATCH_SIZE) > 0) {
+        writeBatch(batch);
+        batch.clear();
+      }
+    }
+  }
+
+  /**
+   * Stop the writer thread and write out what is left in the queue
+   */
+  void shutDown() {
+    stopped = true;
+    writerThread.interrupt();
+    flush();
+  }
+
+  private void writeLoop() {
+    ArrayList<MeasurementResult> batch = new ArrayList<MeasurementResult>(MAX_BATCH_SIZE);
+    while (!stopped) {
+      try {
+        batch.add(queue.take());
+      } catch (InterruptedException e) {
+        break;
+      }
+      synchronized (fileLock) {
+        queue.drainTo(batch, MAX_BATCH_SIZE - 1);
+        writeBatch(batch);
+      }
+      batch.clear();
+    }
+    Logger.d("Result writer stopped");
+  }
+
+  /**
+   * Append results to the results file, one line of JSON each
+   */
+  private void writeBatch(List<MeasurementResult> batch) {
+    synchronized (fileLock) {
+      try {
+        Logger.i("Saving " + batch.size() + " results to file...");
+        Writer writer =
+            new BufferedWriter(new OutputStreamWriter(context.openFileOutput(RESULTS_FILE,
+                Context.MODE_PRIVATE | Context.MODE_APPEND), "UTF-8"));
+        try {
+          for (MeasurementResult result : batch) {
+            MeasurementJsonConvertor.writeResult(result, writer);
+            writer.write('\n');
+          }
+        } finally {
+          writer.close();
+        }
+      } catch (IOException e) {
+        Logger.e("Unable to save results", e);
+      }
+    }
+  }
+}
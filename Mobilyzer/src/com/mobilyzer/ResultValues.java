@@ -0,0 +1,404 @@
+/* Copyright 2013 RobustNet Lab, University of Michigan. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mobilyzer;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+
+import android.os.Parcel;
+
+import com.mobilyzer.util.JsonStreamWriter;
+import com.mobilyzer.util.MeasurementJsonConvertor;
+
+/**
+ * Typed key/value storage behind {@link MeasurementResult}.
+ *
+ * Numbers, strings and numeric arrays are kept in their native form and only rendered when the
+ * result is encoded or handed out as strings. The rendering is the text gson produced when every
+ * value was converted eagerly in addResult(), so the server sees the same payload. Values of any
+ * other type still go through gson when they are added.
+ */
+class ResultValues {
+  private static final byte TYPE_LONG = 0;
+  private static final byte TYPE_DOUBLE = 1;
+  private static final byte TYPE_FLOAT = 2;
+  private static final byte TYPE_BOOLEAN = 3;
+  private static final byte TYPE_STRING = 4;
+  private static final byte TYPE_LONG_ARRAY = 5;
+  private static final byte TYPE_DOUBLE_ARRAY = 6;
+  // Anything else, kept as the JSON text gson produced for it
+  private static final byte TYPE_JSON = 7;
+
+  private String[] keys;
+  private byte[] types;
+  // long and boolean values, or the raw bits of double and float values
+  private long[] bits;
+  // String, long[], double[] or JSON text
+  private Object[] refs;
+  private int size;
+
+  ResultValues() {
+    this(8);
+  }
+
+  private ResultValues(int capacity) {
+    keys = new String[capacity];
+    types = new byte[capacity];
+    bits = new long[capacity];
+    refs = new Object[capacity];
+  }
+
+  int size() {
+    return size;
+  }
+
+  void putLong(String key, long value) {
+    put(key, TYPE_LONG, value, null);
+  }
+
+  void putDouble(String key, double value) {
+    checkDouble(value);
+    put(key, TYPE_DOUBLE, Double.doubleToRawLongBits(value), null);
+  }
+
+  void putFloat(String key, float value) {
+    checkDouble(value);
+    put(key, TYPE_FLOAT, Float.floatToRawIntBits(value), null);
+  }
+
+  void putBoolean(String key, boolean value) {
+    put(key, TYPE_BOOLEAN, value ? 1 : 0, null);
+  }
+
+  void putString(String key, String value) {
+    if (value == null) {
+      put(key, TYPE_JSON, 0, "null");
+    } else {
+      put(key, TYPE_STRING, 0, value);
+    }
+  }
+
+  void putLongArray(String key, long[] value) {
+    if (value == null) {
+      put(key, TYPE_JSON, 0, "null");
+    } else {
+      put(key, TYPE_LONG_ARRAY, 0, value);
+    }
+  }
+
+  void putDoubleArray(String key, double[] value) {
+    if (value == null) {
+      put(key, TYPE_JSON, 0, "null");
+      return;
+    }
+    for (double d : value) {
+      checkDouble(d);
+    }
+    put(key, TYPE_DOUBLE_ARRAY, 0, value);
+  }
+
+  /**
+   * Stores a value of arbitrary type, keeping boxed primitives, strings and lists of numbers in
+   * native form
+   */
+  void putObject(String key, Object value) {
+    if (value == null) {
+      put(key, TYPE_JSON, 0, "null");
+    } else if (value instanceof String) {
+      putString(key, (String) value);
+    } else if (value instanceof Long || value instanceof Integer || value instanceof Short
+        || value instanceof Byte) {
+      putLong(key, ((Number) value).longValue());
+    } else if (value instanceof Double) {
+      putDouble(key, (Double) value);
+    } else if (value instanceof Float) {
+      putFloat(key, (Float) value);
+    } else if (value instanceof Boolean) {
+      putBoolean(key, (Boolean) value);
+    } else if (value instanceof long[]) {
+      putLongArray(key, (long[]) value);
+    } else if (value instanceof double[]) {
+      putDoubleArray(key, (double[]) value);
+    } else if (value instanceof int[]) {
+      int[] ints = (int[]) value;
+      long[] longs = new long[ints.length];
+      for (int i = 0; i < ints.length; i++) {
+        longs[i] = ints[i];
+      }
+      putLongArray(key, longs);
+    } else if (!(value instanceof List) || !putNumberList(key, (List<?>) value)) {
+      put(key, TYPE_JSON, 0, MeasurementJsonConvertor.toJsonString(value));
+    }
+  }
+
+  /**
+   * Stores a list holding only Doubles, or only integral boxes, as a primitive array
+   * @return false if the list holds anything else
+   */
+  private boolean putNumberList(String key, List<?> list) {
+    int n = list.size();
+    if (n == 0) {
+      return false;
+    }
+    boolean allDouble = true;
+    boolean allIntegral = true;
+    for (int i = 0; i < n; i++) {
+      Object o = list.get(i);
+      allDouble &= o instanceof Double;
+      allIntegral &= o instanceof Long || o instanceof Integer || o instanceof Short
+          || o instanceof Byte;
+    }
+    if (allDouble) {
+      double[] doubles = new double[n];
+      for (int i = 0; i < n; i++) {
+        doubles[i] = (Double) list.get(i);
+      }
+      putDoubleArray(key, doubles);
+      return true;
+    } else if (allIntegral) {
+      long[] longs = new long[n];
+      for (int i = 0; i < n; i++) {
+        longs[i] = ((Number) list.get(i)).longValue();
+      }
+      putLongArray(key, longs);
+      return true;
+    }
+    return false;
+  }
+
+  /**
+   * @return the value for key in the string form gson gives it, or null if there is none
+   */
+  String getString(String key) {
+    int i = indexOf(key);
+    if (i < 0) {
+      return null;
+    }
+    StringBuilder sb = new StringBuilder(32);
+    render(i, sb);
+    return sb.toString();
+  }
+
+  /**
+   * @return a map from each key to the string form of its value
+   */
+  HashMap<String, String> toStringMap() {
+    HashMap<String, String> map = new HashMap<String, String>();
+    StringBuilder sb = new StringBuilder(32);
+    for (int i = 0; i < size; i++) {
+      sb.setLength(0);
+      render(i, sb);
+      map.put(keys[i], sb.toString());
+    }
+    return map;
+  }
+
+  /**
+   * Writes the values as one JSON object whose members are the string forms of the values
+   */
+  void writeJson(JsonStreamWriter writer) throws IOException {
+    writer.beginObject();
+    StringBuilder sb = new StringBuilder(32);
+    for (int i = 0; i < size; i++) {
+      sb.setLength(0);
+      render(i, sb);
+      writer.name(keys[i]).value(sb);
+    }
+    writer.endObject();
+  }
+
+  /**
+   * Writes the values as the string map MeasurementResult has always parcelled: the count, then
+   * each key and the string form of its value. Results are parcelled to client apps that may
+   * bundle an older version of the library, so the layout must not change.
+   */
+  void writeToParcel(Parcel out) {
+    out.writeInt(size);
+    StringBuilder sb = new StringBuilder(32);
+    for (int i = 0; i < size; i++) {
+      sb.setLength(0);
+      render(i, sb);
+      out.writeString(keys[i]);
+      out.writeString(sb.toString());
+    }
+  }
+
+  /**
+   * Reads values written by writeToParcel(). They are kept in their string form, which renders
+   * the same as the typed values they were made from.
+   */
+  static ResultValues readFromParcel(Parcel in) {
+    int n = in.readInt();
+    ResultValues values = new ResultValues(Math.max(n, 1));
+    for (int i = 0; i < n; i++) {
+      String key = in.readString();
+      values.append(key, TYPE_JSON, 0, in.readString());
+    }
+    return values;
+  }
+
+  private void put(String key, byte type, long bitsValue, Object ref) {
+    int i = indexOf(key);
+    if (i < 0) {
+      append(key, type, bitsValue, ref);
+    } else {
+      types[i] = type;
+      bits[i] = bitsValue;
+      refs[i] = ref;
+    }
+  }
+
+  private void append(String key, byte type, long bitsValue, Object ref) {
+    if (size == keys.length) {
+      int capacity = size * 2;
+      String[] newKeys = new String[capacity];
+      byte[] newTypes = new byte[capacity];
+      long[] newBits = new long[capacity];
+      Object[] newRefs = new Object[capacity];
+      System.arraycopy(keys, 0, newKeys, 0, size);
+      System.arraycopy(types, 0, newTypes, 0, size);
+      System.arraycopy(bits, 0, newBits, 0, size);
+      System.arraycopy(refs, 0, newRefs, 0, size);
+      keys = newKeys;
+      types = newTypes;
+      bits = newBits;
+      refs = newRefs;
+    }
+    keys[size] = key;
+    types[size] = type;
+    bits[size] = bitsValue;
+    refs[size] = ref;
+    size++;
+  }
+
+  private int indexOf(String key) {
+    for (int i = 0; i < size; i++) {
+      if (keys[i].equals(key)) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * Appends value i to sb the way gson.toJson() renders it. The buffer belongs to the caller,
+   * since results are encoded on the writer thread while other threads may read them.
+   */
+  private void render(int i, StringBuilder sb) {
+    switch (types[i]) {
+      case TYPE_LONG:
+        sb.append(bits[i]);
+        break;
+      case TYPE_DOUBLE:
+        sb.append(Double.longBitsToDouble(bits[i]));
+        break;
+      case TYPE_FLOAT:
+        sb.append(Float.intBitsToFloat((int) bits[i]));
+        break;
+      case TYPE_BOOLEAN:
+        sb.append(bits[i] != 0);
+        break;
+      case TYPE_STRING:
+        appendGsonString(sb, (String) refs[i]);
+        break;
+      case TYPE_LONG_ARRAY:
+        long[] longs = (long[]) refs[i];
+        sb.append('[');
+        for (int j = 0; j < longs.length; j++) {
+          if (j > 0) {
+            sb.append(',');
+          }
+          sb.append(longs[j]);
+        }
+        sb.append(']');
+        break;
+      case TYPE_DOUBLE_ARRAY:
+        double[] doubles = (double[]) refs[i];
+        sb.append('[');
+        for (int j = 0; j < doubles.length; j++) {
+          if (j > 0) {
+            sb.append(',');
+          }
+          sb.append(doubles[j]);
+        }
+        sb.append(']');
+        break;
+      default:
+        sb.append((String) refs[i]);
+        break;
+    }
+  }
+
+  /**
+   * Quotes a string with gson's escaping, which includes the HTML-sensitive characters
+   */
+  private static void appendGsonString(StringBuilder sb, String value) {
+    sb.append('"');
+    for (int i = 0, length = value.length(); i < length; i++) {
+      char c = value.charAt(i);
+      switch (c) {
+        case '"':
+        case '\\':
+          sb.append('\\').append(c);
+          break;
+        case '\b':
+          sb.append("\\b");
+          break;
+        case '\t':
+          sb.append("\\t");
+          break;
+        case '\n':
+          sb.append("\\n");
+          break;
+        case '\f':
+          sb.append("\\f");
+          break;
+        case '\r':
+          sb.append("\\r");
+          break;
+        case '&':
+        case '\'':
+        case '<':
+        case '=':
+        case '>':
+          appendUnicodeEscape(sb, c);
+          break;
+        default:
+          if (c < 0x20) {
+            appendUnicodeEscape(sb, c);
+          } else {
+            sb.append(c);
+          }
+          break;
+      }
+    }
+    sb.append('"');
+  }
+
+  private static void appendUnicodeEscape(StringBuilder sb, char c) {
+    sb.append("\\u00");
+    sb.append(Character.forDigit(c >> 4, 16));
+    sb.append(Character.forDigit(c & 0xF, 16));
+  }
+
+  /** gson refused NaN and infinities, keep failing at the same place */
+  private static void checkDouble(double value) {
+    if (Double.isNaN(value) || Double.isInfinite(value)) {
+      throw new IllegalArgumentException(value
+          + " is not a valid double value as per JSON specification.");
+    }
+  }
+}
@@ -19,8 +19,6 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.concurrent.Callable;
 
-import android.content.Intent;
-
 import com.mobilyzer.MeasurementResult.TaskProgress;
 import com.mobilyzer.exceptions.MeasurementError;
 import com.mobilyzer.exceptions.MeasurementSkippedException;
@@ -34,6 +32,8 @@ public class ServerMeasurementTask implements Callable<MeasurementResult[]> {
 	private MeasurementScheduler scheduler;
 	private ContextCollector contextCollector;
 	private ResourceCapManager rManager;
+	// Set once a subtask result went to the scheduler through the result listener
+	private volatile boolean resultsStreamed = false;
 
 	public ServerMeasurementTask(MeasurementTask task,
 			MeasurementScheduler scheduler, ResourceCapManager manager) {
@@ -47,12 +47,8 @@ public class ServerMeasurementTask implements Callable<MeasurementResult[]> {
 	 * Notify the scheduler that this task is started
 	 */
 	private void broadcastMeasurementStart() {
-		Intent intent = new Intent();
-		intent.setAction(UpdateIntent.MEASUREMENT_PROGRESS_UPDATE_ACTION);
-		intent.putExtra(UpdateIntent.TASK_STATUS_PAYLOAD, Config.TASK_STARTED);
-		intent.putExtra(UpdateIntent.TASKID_PAYLOAD, realTask.getTaskId());
-		intent.putExtra(UpdateIntent.CLIENTKEY_PAYLOAD, realTask.getKey());
-		scheduler.sendBroadcast(intent);
+		scheduler.getEventBus().post(new TaskEvent(Config.TASK_STARTED,
+				realTask, MeasurementTask.INVALID_PRIORITY, null));
 	}
 
 	/**
@@ -63,23 +59,17 @@ public class ServerMeasurementTask implements Callable<MeasurementResult[]> {
 	 *            Results of the task
 	 * @param error
 	 *            Measurement error leading to task's failure
+	 * @param summary
+	 *            true if results only summarize the partial results sent before
 	 */
 	private void broadcastMeasurementEnd(MeasurementResult[] results,
-			MeasurementError error) {
+			MeasurementError error, boolean summary) {
 
 		// Only broadcast information about measurements if they are true
 		// errors.
 		if (!(error instanceof MeasurementSkippedException)) {
-			Intent intent = new Intent();
-			intent.setAction(UpdateIntent.MEASUREMENT_PROGRESS_UPDATE_ACTION);
-			intent.putExtra(UpdateIntent.TASK_STATUS_PAYLOAD,
-					Config.TASK_FINISHED);
-			intent.putExtra(UpdateIntent.TASK_PRIORITY_PAYLOAD,
-					(int) realTask.getDescription().priority);
-			intent.putExtra(UpdateIntent.TASKID_PAYLOAD, realTask.getTaskId());
-			intent.putExtra(UpdateIntent.CLIENTKEY_PAYLOAD, realTask.getKey());
-			intent.putExtra(UpdateIntent.TASK_TYPE_PAYLOAD, realTask.getType());
-			
+			int priority = (int) realTask.getDescription().priority;
+
 //			if (realTask.getType().equals(SequentialTask.TYPE) || realTask.getType().equals(ParallelTask.TYPE)){
 //				intent.putExtra(UpdateIntent.TASK_DESC_PAYLOAD, realTask.getDescription());
 //			}
@@ -87,26 +77,36 @@ public class ServerMeasurementTask implements Callable<MeasurementResult[]> {
 			if (results != null) {
 				// Only single task can be paused
 				if (results[0].getTaskProgress() == TaskProgress.PAUSED) {
-					intent.putExtra(UpdateIntent.TASK_STATUS_PAYLOAD,
-							Config.TASK_PAUSED);
+					scheduler.getEventBus().post(new TaskEvent(Config.TASK_PAUSED,
+							realTask, priority, null));
 				} else if (results[0].getTaskProgress() == TaskProgress.RESCHEDULED) {
-					intent.putExtra(UpdateIntent.TASK_STATUS_PAYLOAD,
-							Config.TASK_RESCHEDULED);
-					intent.putExtra(UpdateIntent.RESULT_PAYLOAD, results);
+					scheduler.getEventBus().post(new TaskEvent(
+							Config.TASK_RESCHEDULED, realTask, priority, results));
 				} else {
-					intent.putExtra(UpdateIntent.TASK_STATUS_PAYLOAD,
-							Config.TASK_FINISHED);
-					intent.putExtra(UpdateIntent.RESULT_PAYLOAD, results);
+					scheduler.getEventBus().post(new TaskEvent(
+							Config.TASK_FINISHED, realTask, priority, results, summary));
 				}
-				scheduler.sendBroadcast(intent);
 			}
 		}
 
 	}
 
+	/**
+	 * Hand the results of a subtask of a composite task to the scheduler, which
+	 * stores them and broadcasts them right away
+	 * 
+	 * @param results
+	 *            Results of the subtask
+	 */
+	private void broadcastPartialResults(MeasurementResult[] results) {
+		scheduler.getEventBus().post(new TaskEvent(Config.TASK_PARTIAL_RESULT,
+				realTask, (int) realTask.getDescription().priority, results));
+	}
+
 	@Override
 	public MeasurementResult[] call() throws MeasurementError {
 		MeasurementResult[] results = null;
+		resultsStreamed = false;
 		PhoneUtils phoneUtils = PhoneUtils.getPhoneUtils();
 		try {
 			phoneUtils.acquireWakeLock();
@@ -144,6 +144,21 @@ public class ServerMeasurementTask implements Callable<MeasurementResult[]> {
 				if (PhoneUtils.getPhoneUtils().getNetwork() != PhoneUtils.NETWORK_WIFI) {
 					rManager.updateDataUsage(ResourceCapManager.PHONEUTILCOST);
 				}
+				if (realTask.wantsStreamedResults()) {
+					realTask.setResultListener(new MeasurementTask.ResultListener() {
+						@Override
+						public void onResults(MeasurementTask task,
+								MeasurementResult[] results) {
+							ArrayList<HashMap<String, String>> contextResults = contextCollector
+									.getContextSoFar();
+							for (MeasurementResult r : results) {
+								r.addContextResults(contextResults);
+							}
+							resultsStreamed = true;
+							broadcastPartialResults(results);
+						}
+					});
+				}
 				results = realTask.call();
 				ArrayList<HashMap<String, String>> contextResults = contextCollector
 						.stopCollector();
@@ -162,13 +177,13 @@ public class ServerMeasurementTask implements Callable<MeasurementResult[]> {
 //					this.scheduler.checkin.uploadGCMMeasurementResult(
 //							results[0], rManager);
 //				}
-				broadcastMeasurementEnd(results, null);
+				broadcastMeasurementEnd(results, null, resultsStreamed);
 			} catch (MeasurementError e) {
 				String error = "Server measurement " + realTask.getDescriptor()
 						+ " has failed: " + e.getMessage() + "\n";
 				Logger.e(error);
 				results = MeasurementResult.getFailureResult(realTask, e);
-				broadcastMeasurementEnd(results, e);
+				broadcastMeasurementEnd(results, e, false);
 
 			} catch (Exception e) {
 				String error = "Server measurement " + realTask.getDescriptor()
@@ -178,7 +193,7 @@ public class ServerMeasurementTask implements Callable<MeasurementResult[]> {
 
 				results = MeasurementResult.getFailureResult(realTask, e);
 				broadcastMeasurementEnd(results, new MeasurementError(
-						"Got exception running task", e));
+						"Got exception running task", e), false);
 			}
 		} finally {
 			phoneUtils.releaseWakeLock();
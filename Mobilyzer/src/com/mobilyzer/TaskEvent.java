@@ -0,0 +1,54 @@
+/* Copyright 2013 RobustNet Lab, University of Michigan. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mobilyzer;
+
+/**
+ * A change in the state of a measurement task, with its results when it has any. Posted on the
+ * TaskEventBus.
+ */
+public class TaskEvent {
+  // One of the Config.TASK_* states
+  public final String status;
+  public final String taskId;
+  public final String clientKey;
+  public final int priority;
+  public final String taskType;
+  // Null if the event carries no results
+  public final MeasurementResult[] results;
+  // The results only summarize the ones already posted as TASK_PARTIAL_RESULT. They go to the
+  // client but are not stored or uploaded.
+  public final boolean summary;
+
+  public TaskEvent(String status, MeasurementTask task, int priority,
+                   MeasurementResult[] results) {
+    this(status, task, priority, results, false);
+  }
+
+  public TaskEvent(String status, MeasurementTask task, int priority,
+                   MeasurementResult[] results, boolean summary) {
+    this.status = status;
+    this.summary = summary;
+    this.taskId = task.getTaskId();
+    this.clientKey = task.getKey();
+    this.priority = priority;
+    this.taskType = task.getType();
+    this.results = results;
+  }
+
+  @Override
+  public String toString() {
+    return status + " " + taskId + " " + clientKey;
+  }
+}
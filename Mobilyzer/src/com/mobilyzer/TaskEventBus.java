@@ -0,0 +1,56 @@
+/* Copyright 2013 RobustNet Lab, University of Michigan. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mobilyzer;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import android.os.Handler;
+import android.os.Looper;
+
+/**
+ * Carries task lifecycle events and results between the parts of the scheduler service, without
+ * a round trip through the system as broadcast intents.
+ *
+ * Events can be posted from any thread. Listeners get them on the main thread, in the order they
+ * were posted, like a broadcast receiver would. The events are not copied, listeners see the
+ * objects the task produced.
+ */
+public class TaskEventBus {
+  public interface Listener {
+    void onTaskEvent(TaskEvent event);
+  }
+
+  private final Handler mainHandler = new Handler(Looper.getMainLooper());
+  private final CopyOnWriteArrayList<Listener> listeners = new CopyOnWriteArrayList<Listener>();
+
+  public void register(Listener listener) {
+    listeners.addIfAbsent(listener);
+  }
+
+  public void unregister(Listener listener) {
+    listeners.remove(listener);
+  }
+
+  public void post(final TaskEvent event) {
+    mainHandler.post(new Runnable() {
+      @Override
+      public void run() {
+        for (Listener listener : listeners) {
+          listener.onTaskEvent(event);
+        }
+      }
+    });
+  }
+}
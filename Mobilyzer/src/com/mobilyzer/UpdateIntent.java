@@ -18,6 +18,7 @@ public class UpdateIntent extends Intent {
   public static final String TASK_DESC_PAYLOAD = "TASK_DESC_PAYLOAD";
   public static final String RESULT_PAYLOAD = "RESULT_PAYLOAD";
   public static final String MEASUREMENT_TASK_PAYLOAD = "MEASUREMENT_TASK_PAYLOAD";
+  public static final String MEASUREMENT_TASKS_PAYLOAD = "MEASUREMENT_TASKS_PAYLOAD";
   public static final String BATTERY_THRESHOLD_PAYLOAD = "BATTERY_THRESHOLD_PAYLOAD";
   public static final String CHECKIN_INTERVAL_PAYLOAD = "CHECKIN_INTERVAL_PAYLOAD";
   public static final String TASK_STATUS_PAYLOAD = "TASK_STATUS_PAYLOAD";
@@ -30,6 +31,7 @@ public class UpdateIntent extends Intent {
   public static final String PLT_TASK_PAYLOAD_RESULT_RES = "PLT_TASK_PAYLOAD_RESULT_RES";
   public static final String PLT_TASK_PAYLOAD_RESULT_NAV = "PLT_TASK_PAYLOAD_RESULT_NAV";
   public static final String PLT_TASK_PAYLOAD_BYTE_USED = "PLT_TASK_PAYLOAD_BYTE_USED";
+  public static final String PLT_TASK_PAYLOAD_CACHE_POLICY = "PLT_TASK_PAYLOAD_CACHE_POLICY";
 //  public static final String PLT_TASK_PAYLOAD_RESULT_NUM = "PLT_TASK_PAYLOAD_RESULT_NUM";
 //  public static final String PLT_TASK_PAYLOAD_CLOSE_ACTIVITY = "PLT_TASK_PAYLOAD_CLOSE_ACTIVITY";
 //  public static final String PLT_TASK_PAYLOAD_START_ACTIVITY = "PLT_TASK_PAYLOAD_START_ACTIVITY";
@@ -58,8 +60,6 @@ public class UpdateIntent extends Intent {
       APP_PREFIX + ".CHECKIN_ACTION";
   public static final String CHECKIN_RETRY_ACTION =
       APP_PREFIX + ".CHECKIN_RETRY_ACTION";
-  public static final String MEASUREMENT_PROGRESS_UPDATE_ACTION =
-      APP_PREFIX + ".MEASUREMENT_PROGRESS_UPDATE_ACTION";
   public static final String GCM_MEASUREMENT_ACTION =
       APP_PREFIX + ".GCM_MEASUREMENT_ACTION";
   public static final String PLT_MEASUREMENT_ACTION =
@@ -18,8 +18,6 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.concurrent.Callable;
 
-import android.content.Intent;
-
 import com.mobilyzer.MeasurementResult.TaskProgress;
 import com.mobilyzer.exceptions.MeasurementError;
 import com.mobilyzer.util.Logger;
@@ -29,6 +27,8 @@ public class UserMeasurementTask implements Callable<MeasurementResult[]> {
   private MeasurementTask realTask;
   private MeasurementScheduler scheduler;
   private ContextCollector contextCollector;
+  // Set once a subtask result went to the scheduler through the result listener
+  private volatile boolean resultsStreamed = false;
 
   public UserMeasurementTask(MeasurementTask task,
                              MeasurementScheduler scheduler) {
@@ -41,44 +41,42 @@ public class UserMeasurementTask implements Callable<MeasurementResult[]> {
    * Notify the scheduler that this task is started
    */
   private void broadcastMeasurementStart() {
-    Intent intent = new Intent();
-    intent.setAction(UpdateIntent.MEASUREMENT_PROGRESS_UPDATE_ACTION);
-    intent.putExtra(UpdateIntent.TASK_PRIORITY_PAYLOAD,
-      MeasurementTask.USER_PRIORITY);
-    intent.putExtra(UpdateIntent.TASK_STATUS_PAYLOAD, Config.TASK_STARTED);
-    intent.putExtra(UpdateIntent.TASKID_PAYLOAD, realTask.getTaskId());
-    intent.putExtra(UpdateIntent.CLIENTKEY_PAYLOAD, realTask.getKey());
-    scheduler.sendBroadcast(intent);
+    scheduler.getEventBus().post(new TaskEvent(Config.TASK_STARTED, realTask,
+      MeasurementTask.USER_PRIORITY, null));
   }
 
   /**
    * Notify the scheduler that this task is finished executing.
    * The result can be completed, paused or failed due to exception 
    * @param results Results of the task
+   * @param summary true if results only summarize the partial results sent before
    */
-  private void broadcastMeasurementEnd(MeasurementResult[] results) {
-    Intent intent = new Intent();
-    intent.setAction(UpdateIntent.MEASUREMENT_PROGRESS_UPDATE_ACTION);
-    //TODO fixed one value priority for all users task?
-    intent.putExtra(UpdateIntent.TASK_PRIORITY_PAYLOAD,
-      MeasurementTask.USER_PRIORITY);
-    intent.putExtra(UpdateIntent.TASKID_PAYLOAD, realTask.getTaskId());
-    intent.putExtra(UpdateIntent.CLIENTKEY_PAYLOAD, realTask.getKey());
-
+  private void broadcastMeasurementEnd(MeasurementResult[] results, boolean summary) {
     if (results != null){
+      //TODO fixed one value priority for all users task?
       //TODO only single task can be paused
       if(results[0].getTaskProgress()==TaskProgress.PAUSED){
-        intent.putExtra(UpdateIntent.TASK_STATUS_PAYLOAD, Config.TASK_PAUSED);
+        scheduler.getEventBus().post(new TaskEvent(Config.TASK_PAUSED, realTask,
+          MeasurementTask.USER_PRIORITY, null));
       }
       else{
-        intent.putExtra(UpdateIntent.TASK_STATUS_PAYLOAD, Config.TASK_FINISHED);
-        intent.putExtra(UpdateIntent.RESULT_PAYLOAD, results);
+        scheduler.getEventBus().post(new TaskEvent(Config.TASK_FINISHED, realTask,
+          MeasurementTask.USER_PRIORITY, results, summary));
       }
-      scheduler.sendBroadcast(intent);
     }
 
   }
 
+  /**
+   * Hand the results of a subtask of a composite task to the scheduler, which stores them and
+   * sends them to the client right away
+   * @param results Results of the subtask
+   */
+  private void broadcastPartialResults(MeasurementResult[] results) {
+    scheduler.getEventBus().post(new TaskEvent(Config.TASK_PARTIAL_RESULT, realTask,
+      MeasurementTask.USER_PRIORITY, results));
+  }
+
   /**
    * The call() method that broadcast intents before the measurement starts
    * and after the measurement finishes.
@@ -86,13 +84,30 @@ public class UserMeasurementTask implements Callable<MeasurementResult[]> {
   @Override
   public MeasurementResult[] call() throws MeasurementError {
     MeasurementResult[] results = null;
+    boolean summary = false;
+    resultsStreamed = false;
     PhoneUtils phoneUtils = PhoneUtils.getPhoneUtils();
     try {
       phoneUtils.acquireWakeLock();
       broadcastMeasurementStart();
       contextCollector.setInterval(realTask.getDescription().contextIntervalSec);
       contextCollector.startCollector();
+      if (realTask.wantsStreamedResults()) {
+        realTask.setResultListener(new MeasurementTask.ResultListener() {
+          @Override
+          public void onResults(MeasurementTask task, MeasurementResult[] results) {
+            ArrayList<HashMap<String, String>> contextResults =
+                contextCollector.getContextSoFar();
+            for (MeasurementResult r : results) {
+              r.addContextResults(contextResults);
+            }
+            resultsStreamed = true;
+            broadcastPartialResults(results);
+          }
+        });
+      }
       results = realTask.call();
+      summary = resultsStreamed;
       ArrayList<HashMap<String, String>> contextResults =
           contextCollector.stopCollector();
       for (MeasurementResult r: results){
@@ -109,7 +124,7 @@ public class UserMeasurementTask implements Callable<MeasurementResult[]> {
       Logger.e("Unexpected Exception: " + e.getMessage());
       results = MeasurementResult.getFailureResult(realTask, e);
     } finally {
-      broadcastMeasurementEnd(results);
+      broadcastMeasurementEnd(results, summary);
       MeasurementTask currentTask = scheduler.getCurrentTask();
       if(currentTask != null && currentTask.equals(realTask)){
         scheduler.setCurrentTask(null);
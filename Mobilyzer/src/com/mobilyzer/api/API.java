@@ -18,6 +18,7 @@ import java.security.InvalidParameterException;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.Map;
 import java.util.Queue;
 import java.util.Set;
@@ -38,6 +39,7 @@ import com.mobilyzer.MeasurementScheduler.DataUsageProfile;
 import com.mobilyzer.MeasurementTask;
 import com.mobilyzer.UpdateIntent;
 import com.mobilyzer.exceptions.MeasurementError;
+import com.mobilyzer.measurements.DagTask;
 import com.mobilyzer.measurements.DnsLookupTask;
 import com.mobilyzer.measurements.HttpTask;
 import com.mobilyzer.measurements.PageLoadTimeTask;
@@ -48,6 +50,7 @@ import com.mobilyzer.measurements.SequentialTask;
 import com.mobilyzer.measurements.TCPThroughputTask;
 import com.mobilyzer.measurements.TracerouteTask;
 import com.mobilyzer.measurements.UDPBurstTask;
+import com.mobilyzer.measurements.DagTask.DagDesc;
 import com.mobilyzer.measurements.DnsLookupTask.DnsLookupDesc;
 import com.mobilyzer.measurements.HttpTask.HttpDesc;
 import com.mobilyzer.measurements.ParallelTask.ParallelDesc;
@@ -70,7 +73,7 @@ import com.mobilyzer.util.Logger;
 public final class API {
   public enum TaskType {
     DNSLOOKUP, HTTP, PING, TRACEROUTE, TCPTHROUGHPUT, UDPBURST,
-    PARALLEL, SEQUENTIAL, INVALID, PLT, VIDEOQOE
+    PARALLEL, SEQUENTIAL, INVALID, PLT, VIDEOQOE, DAG
   }
 
   /**
@@ -314,10 +317,11 @@ public final class API {
   }
 
   /**
-   * Create a parallel or sequential task based on the manner. An ArrayList of
+   * Create a parallel, sequential or DAG task based on the manner. An ArrayList of
    * MeasurementTask must be provided as the real tasks to be executed
    * @param manner Determine whether tasks in task list will be executed
-   *        parallelly or sequentially (back-to-back)
+   *        parallelly, sequentially (back-to-back) or along the dependency
+   *        graph given by the "edges" parameter (see DagTask)
    * @param startTime Earliest time that measurements can be taken using this 
    *        Task descriptor. The current time will be used in place of a null
    *        startTime parameter. Measurements with a startTime more than 24 
@@ -337,7 +341,7 @@ public final class API {
    * @param contextIntervalSec interval between the context collection (in sec)
    * @param params Measurement parameters.
    * @param taskList tasks to be executed 
-   * @return The parallel or sequential task filled with those parameters
+   * @return The parallel, sequential or DAG task filled with those parameters
    * @throws MeasurementError manner is not valid
    */
   public MeasurementTask composeTasks(TaskType manner, Date startTime,
@@ -354,9 +358,13 @@ public final class API {
         task = new SequentialTask(new SequentialDesc(clientKey, startTime, endTime
           , intervalSec, count, priority, contextIntervalSec, params), taskList);
         break;
+      case DAG:
+        task = new DagTask(new DagDesc(clientKey, startTime, endTime
+          , intervalSec, count, priority, contextIntervalSec, params), taskList);
+        break;
       default:
         throw new MeasurementError("Undefined measurement composing type. " + 
-            " Candidate: PARALLEL, SEQUENTIAL");
+            " Candidate: PARALLEL, SEQUENTIAL, DAG");
     }
     return task;
   }
@@ -437,6 +445,37 @@ public final class API {
     }
   }
 
+  /**
+   * Submit many tasks to the scheduler at once. They travel in as few messages
+   * as possible and the scheduler admits each message's tasks in one pass,
+   * which is much cheaper than calling submitTask(..) for each of them.
+   * Works in async way, the results come back as with submitTask(..)
+   * @param tasks the tasks to be exectued, created by createTask(..)
+   *        or composeTask(..)
+   * @throws MeasurementError
+   */
+  public void submitTasks ( List<MeasurementTask> tasks )
+      throws MeasurementError {
+    Logger.d("API->submitTasks called");
+    if ( tasks == null || tasks.contains(null) ) {
+      String err = "submitTasks: task is null";
+      Logger.e(err);
+      throw new MeasurementError(err);
+    }
+    Logger.i("API: Adding " + tasks.size() + " new tasks");
+    for ( int from = 0; from < tasks.size();
+        from += Config.MAX_TASKS_PER_SUBMIT_MSG ) {
+      int to = Math.min(tasks.size(), from + Config.MAX_TASKS_PER_SUBMIT_MSG);
+      MeasurementTask[] batch = tasks.subList(from, to).toArray(
+        new MeasurementTask[to - from]);
+      Message msg = Message.obtain(null, Config.MSG_SUBMIT_TASKS);
+      Bundle data = new Bundle();
+      data.putParcelableArray(UpdateIntent.MEASUREMENT_TASKS_PAYLOAD, batch);
+      msg.setData(data);
+      sendMessage(msg);
+    }
+  }
+
   /**
    * Cancel the task submitted to the scheduler
    * @param localId task to be cancelled. Got by MeasurementTask.getTaskId() 
@@ -0,0 +1,101 @@
+/* Copyright 2013 RobustNet Lab, University of Michigan. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mobilyzer.measurements;
+
+import java.util.ArrayList;
+
+import com.mobilyzer.MeasurementResult;
+import com.mobilyzer.MeasurementResult.TaskProgress;
+import com.mobilyzer.MeasurementTask;
+import com.mobilyzer.MeasurementTask.ResultListener;
+import com.mobilyzer.exceptions.MeasurementError;
+import com.mobilyzer.util.PhoneUtils;
+
+/**
+ * Gathers the subtask results of a composite task.
+ *
+ * With a result listener set on the task, the results of every subtask go to it as soon as the
+ * subtask is done and are not kept, and the composite task returns a single summary result in
+ * the end. Without one the results are kept and returned all together, as before.
+ */
+class CompositeResults {
+  private final MeasurementTask task;
+  private final ResultListener listener;
+  private final ArrayList<MeasurementResult> kept = new ArrayList<MeasurementResult>();
+  private int count = 0;
+  private int failed = 0;
+
+  CompositeResults(MeasurementTask task, ResultListener listener) {
+    this.task = task;
+    this.listener = listener;
+  }
+
+  void add(MeasurementResult[] results) {
+    if (results.length == 0) {
+      return;
+    }
+    for (MeasurementResult r : results) {
+      count++;
+      if (!r.isSucceed()) {
+        failed++;
+      }
+    }
+    if (listener != null) {
+      listener.onResults(task, results);
+    } else {
+      for (MeasurementResult r : results) {
+        kept.add(r);
+      }
+    }
+  }
+
+  /**
+   * @return the results kept, or the summary result if any went to the listener
+   */
+  MeasurementResult[] toArray() {
+    if (listener == null || count == 0) {
+      return kept.toArray(new MeasurementResult[kept.size()]);
+    }
+    return new MeasurementResult[] {
+        summary(failed == 0 ? TaskProgress.COMPLETED : TaskProgress.FAILED)};
+  }
+
+  /**
+   * Ends the composite task with an error. Once results went to the listener, the error is
+   * reported in the summary result, marked FAILED, rather than thrown: the failure results made
+   * from a thrown error would report every subtask a second time.
+   *
+   * @throws MeasurementError error itself, if nothing was reported yet
+   */
+  MeasurementResult[] fail(MeasurementError error) throws MeasurementError {
+    if (listener == null || count == 0) {
+      throw error;
+    }
+    MeasurementResult summary = summary(TaskProgress.FAILED);
+    summary.addResult("error", error.toString());
+    return new MeasurementResult[] {summary};
+  }
+
+  private MeasurementResult summary(TaskProgress progress) {
+    PhoneUtils phoneUtils = PhoneUtils.getPhoneUtils();
+    MeasurementResult summary = new MeasurementResult(phoneUtils.getDeviceInfo().deviceId,
+      phoneUtils.getDeviceProperty(task.getKey()), task.getType(),
+      System.currentTimeMillis() * 1000, progress, task.getDescription());
+    summary.addResult("num_results", count);
+    summary.addResult("num_failed", failed);
+    return summary;
+  }
+}
@@ -0,0 +1,536 @@
+/*
+ * Copyright 2013 RobustNet Lab, University of Michigan. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.mobilyzer.measurements;
+
+import java.io.InvalidClassException;
+import java.security.InvalidParameterException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import android.os.Parcel;
+import android.os.Parcelable;
+
+import com.mobilyzer.Config;
+import com.mobilyzer.MeasurementDesc;
+import com.mobilyzer.MeasurementResult;
+import com.mobilyzer.MeasurementTask;
+import com.mobilyzer.exceptions.MeasurementError;
+import com.mobilyzer.measurements.SubtaskExecutor.Subtask;
+import com.mobilyzer.util.Logger;
+import com.mobilyzer.util.MeasurementJsonConvertor;
+
+/**
+ * DAG Task is a measurement task that runs its subtasks along a dependency graph. A subtask runs
+ * once all the subtasks it depends on are done, and only if the condition on every edge into it
+ * holds for the results of the subtask at the other end. Subtasks that do not depend on each
+ * other run in parallel, on the pool shared by all composite tasks (see SubtaskExecutor).
+ *
+ * This lets expensive diagnostics, a traceroute say, run only when a cheap probe shows they are
+ * needed. A subtask whose conditions do not hold is skipped, and so is everything downstream of
+ * it. Skipped subtasks report no results.
+ *
+ * Parameters:
+ * tasks: JSON array of the subtasks, as in the sequential task. Edges refer to them by index.
+ * edges: JSON array of edges, e.g.
+ *   [{"from": 0, "to": 1, "key": "mean_rtt_ms", "op": ">", "value": "100"}]
+ *   runs subtask 1 only if subtask 0 reports a mean_rtt_ms above 100. Without "key" an edge only
+ *   requires the upstream subtask to succeed.
+ */
+public class DagTask extends MeasurementTask {
+  // Type name for internal use
+  public static final String TYPE = "dag";
+  // Human readable name for the task
+  public static final String DESCRIPTOR = "dag";
+
+  private List<MeasurementTask> tasks;
+  private List<Edge> edges;
+  // Outgoing edges of every subtask, by index
+  private List<List<Edge>> outgoing;
+  private long duration;
+  private volatile boolean stopFlag;
+  // Subtasks started by the current run, guarded by itself
+  private final List<Node> started = new ArrayList<Node>();
+
+  /**
+   * Dependency of subtask "to" on subtask "from", with the condition the results of "from" have
+   * to meet for "to" to run.
+   */
+  public static class Edge {
+    private static final String[] OPS = {"==", "!=", "<", "<=", ">", ">="};
+
+    public final int from;
+    public final int to;
+    // Result value the condition is on, null if the upstream subtask only has to succeed
+    public final String key;
+    public final String op;
+    public final String value;
+
+    public Edge(int from, int to, String key, String op, String value)
+        throws InvalidParameterException {
+      if (from == to) {
+        throw new InvalidParameterException("Edge from subtask " + from + " to itself");
+      }
+      if (key != null) {
+        boolean known = false;
+        for (String o : OPS) {
+          known |= o.equals(op);
+        }
+        if (!known || value == null) {
+          throw new InvalidParameterException("Invalid condition " + key + " " + op + " " + value);
+        }
+      }
+      this.from = from;
+      this.to = to;
+      this.key = key;
+      this.op = op;
+      this.value = value;
+    }
+
+    /**
+     * @param upstream results of subtask "from"
+     * @return whether subtask "to" may run as far as this edge is concerned
+     */
+    public boolean holds(MeasurementResult[] upstream) {
+      if (key == null) {
+        for (MeasurementResult r : upstream) {
+          if (!r.isSucceed()) {
+            return false;
+          }
+        }
+        return upstream.length > 0;
+      }
+      for (MeasurementResult r : upstream) {
+        String actual = r.getValue(key);
+        if (actual != null && compare(actual)) {
+          return true;
+        }
+      }
+      return false;
+    }
+
+    private boolean compare(String actual) {
+      // String values come quoted the way gson renders them
+      if (actual.length() >= 2 && actual.startsWith("\"") && actual.endsWith("\"")) {
+        actual = actual.substring(1, actual.length() - 1);
+      }
+      int order;
+      try {
+        order = Double.compare(Double.parseDouble(actual), Double.parseDouble(value));
+      } catch (NumberFormatException e) {
+        // Strings can only be compared for equality
+        if (op.equals("==")) {
+          return actual.equals(value);
+        }
+        return op.equals("!=") && !actual.equals(value);
+      }
+      if (op.equals("==")) {
+        return order == 0;
+      } else if (op.equals("!=")) {
+        return order != 0;
+      } else if (op.equals("<")) {
+        return order < 0;
+      } else if (op.equals("<=")) {
+        return order <= 0;
+      } else if (op.equals(">")) {
+        return order > 0;
+      }
+      return order >= 0;
+    }
+
+    @Override
+    public String toString() {
+      return from + "->" + to + (key == null ? "" : " if " + key + " " + op + " " + value);
+    }
+  }
+
+  public static class DagDesc extends MeasurementDesc {
+    public ArrayList<MeasurementTask> subTasks;
+    public ArrayList<Edge> edges;
+
+    public DagDesc(String key, Date startTime, Date endTime, double intervalSec, long count,
+        long priority, int contextIntervalSec, Map<String, String> params)
+            throws InvalidParameterException {
+      super(DagTask.TYPE, key, startTime, endTime, intervalSec, count, priority,
+        contextIntervalSec, params);
+      initializeParams(params);
+    }
+
+    @Override
+    protected void initializeParams(Map<String, String> params) {
+      subTasks = new ArrayList<MeasurementTask>();
+      edges = new ArrayList<Edge>();
+      if (params == null) {
+        return;
+      }
+      String tasksJsonList = params.get("tasks");
+      if (tasksJsonList != null && tasksJsonList.length() > 0) {
+        try {
+          JSONArray jsonArray = new JSONArray(tasksJsonList);
+          for (int i = 0; i < jsonArray.length(); i++) {
+            JSONObject jsonObj = jsonArray.getJSONObject(i);
+            if (!MeasurementTask.getMeasurementTypes().contains(jsonObj.get("type"))) {
+              // Edges refer to subtasks by index, so none can be dropped
+              throw new InvalidParameterException("Unknown subtask type " + jsonObj.get("type"));
+            }
+            subTasks.add(MeasurementJsonConvertor.makeMeasurementTaskFromJson(jsonObj));
+          }
+        } catch (JSONException e) {
+          throw new InvalidParameterException("Invalid subtasks: " + e.getMessage());
+        }
+      }
+      edges = parseEdges(params.get("edges"));
+    }
+
+    private static ArrayList<Edge> parseEdges(String edgesJsonList)
+        throws InvalidParameterException {
+      ArrayList<Edge> edges = new ArrayList<Edge>();
+      if (edgesJsonList == null || edgesJsonList.length() == 0) {
+        return edges;
+      }
+      try {
+        JSONArray jsonArray = new JSONArray(edgesJsonList);
+        for (int i = 0; i < jsonArray.length(); i++) {
+          JSONObject jsonObj = jsonArray.getJSONObject(i);
+          edges.add(new Edge(jsonObj.getInt("from"), jsonObj.getInt("to"),
+            jsonObj.optString("key", null), jsonObj.optString("op", null),
+            jsonObj.optString("value", null)));
+        }
+      } catch (JSONException e) {
+        throw new InvalidParameterException("Invalid edges: " + e.getMessage());
+      }
+      return edges;
+    }
+
+    @Override
+    public String getType() {
+      return DagTask.TYPE;
+    }
+
+    protected DagDesc(Parcel in) {
+      super(in);
+      subTasks = in.readArrayList(MeasurementTask.class.getClassLoader());
+      edges = parseEdges(parameters.get("edges"));
+    }
+
+    public static final Parcelable.Creator<DagDesc> CREATOR =
+        new Parcelable.Creator<DagDesc>() {
+      public DagDesc createFromParcel(Parcel in) {
+        return new DagDesc(in);
+      }
+
+      public DagDesc[] newArray(int size) {
+        return new DagDesc[size];
+      }
+    };
+
+    @Override
+    public void writeToParcel(Parcel dest, int flags) {
+      super.writeToParcel(dest, flags);
+      dest.writeList(subTasks);
+    }
+  }
+
+  /**
+   * One run of a subtask, with the index edges refer to it by
+   */
+  private static class Node extends Subtask {
+    final int index;
+
+    Node(MeasurementTask task, long timeoutMs, int index, BlockingQueue<Subtask> finished) {
+      super(task, timeoutMs, finished);
+      this.index = index;
+    }
+  }
+
+  @SuppressWarnings("rawtypes")
+  public static Class getDescClass() throws InvalidClassException {
+    return DagDesc.class;
+  }
+
+  public DagTask(MeasurementDesc desc) {
+    this(desc, ((DagDesc) desc).subTasks);
+  }
+
+  public DagTask(MeasurementDesc desc, ArrayList<MeasurementTask> tasks) {
+    super(new DagDesc(desc.key, desc.startTime, desc.endTime, desc.intervalSec, desc.count,
+      desc.priority, desc.contextIntervalSec, desc.parameters));
+    this.tasks = new ArrayList<MeasurementTask>(tasks);
+    this.edges = ((DagDesc) getDescription()).edges;
+    initializeGraph();
+  }
+
+  protected DagTask(Parcel in) {
+    super(in);
+    // we cannot directly cast Parcelable[] to MeasurementTask[]. Cast them one-by-one
+    Parcelable[] tempTasks = in.readParcelableArray(MeasurementTask.class.getClassLoader());
+    tasks = new ArrayList<MeasurementTask>();
+    for (Parcelable pTask : tempTasks) {
+      tasks.add((MeasurementTask) pTask);
+    }
+    this.edges = ((DagDesc) getDescription()).edges;
+    initializeGraph();
+  }
+
+  public static final Parcelable.Creator<DagTask> CREATOR = new Parcelable.Creator<DagTask>() {
+    public DagTask createFromParcel(Parcel in) {
+      return new DagTask(in);
+    }
+
+    public DagTask[] newArray(int size) {
+      return new DagTask[size];
+    }
+  };
+
+  @Override
+  public int describeContents() {
+    return super.describeContents();
+  }
+
+  @Override
+  public void writeToParcel(Parcel dest, int flags) {
+    super.writeToParcel(dest, flags);
+    dest.writeParcelableArray(tasks.toArray(new MeasurementTask[tasks.size()]), flags);
+  }
+
+  /**
+   * Checks the edges against the subtasks and sets the duration to that of the longest path
+   * @throws InvalidParameterException if an edge is out of range or the edges form a cycle
+   */
+  private void initializeGraph() throws InvalidParameterException {
+    int n = tasks.size();
+    if (n == 0) {
+      throw new InvalidParameterException("DAG task must contain at-least one sub task");
+    }
+    outgoing = new ArrayList<List<Edge>>();
+    for (int i = 0; i < n; i++) {
+      outgoing.add(new ArrayList<Edge>());
+    }
+    int[] waitingOn = new int[n];
+    for (Edge e : edges) {
+      if (e.from < 0 || e.from >= n || e.to < 0 || e.to >= n) {
+        throw new InvalidParameterException("Edge " + e + " refers to a missing subtask");
+      }
+      outgoing.get(e.from).add(e);
+      waitingOn[e.to]++;
+    }
+
+    // Walk the graph in topological order. Subtasks never reached are on a cycle.
+    long[] finishBy = new long[n];
+    LinkedList<Integer> ready = new LinkedList<Integer>();
+    for (int i = 0; i < n; i++) {
+      if (waitingOn[i] == 0) {
+        ready.add(i);
+      }
+    }
+    int visited = 0;
+    duration = 0;
+    while (!ready.isEmpty()) {
+      int i = ready.removeFirst();
+      visited++;
+      finishBy[i] += tasks.get(i).getDuration();
+      duration = Math.max(duration, finishBy[i]);
+      for (Edge e : outgoing.get(i)) {
+        finishBy[e.to] = Math.max(finishBy[e.to], finishBy[i]);
+        if (--waitingOn[e.to] == 0) {
+          ready.add(e.to);
+        }
+      }
+    }
+    if (visited < n) {
+      throw new InvalidParameterException("Edges of the DAG task form a cycle");
+    }
+  }
+
+  @Override
+  public String getDescriptor() {
+    return DESCRIPTOR;
+  }
+
+  @Override
+  public MeasurementResult[] call() throws MeasurementError {
+    int n = tasks.size();
+    int[] waitingOn = new int[n];
+    boolean[] blocked = new boolean[n];
+    for (Edge e : edges) {
+      waitingOn[e.to]++;
+    }
+    LinkedBlockingQueue<Subtask> finished = new LinkedBlockingQueue<Subtask>();
+    // Started subtasks this thread has not offered to run itself yet
+    LinkedList<Node> notHelped = new LinkedList<Node>();
+    int unfinished = 0;
+    for (int i = 0; i < n; i++) {
+      if (waitingOn[i] == 0) {
+        notHelped.add(start(i, finished));
+        unfinished++;
+      }
+    }
+
+    CompositeResults allResults = new CompositeResults(this, getResultListener());
+    try {
+      while (unfinished > 0) {
+        Subtask done = SubtaskExecutor.awaitNext(finished, notHelped);
+        unfinished--;
+        Node node = (Node) done;
+        MeasurementResult[] results = collect(node);
+        allResults.add(results);
+
+        // Resolve the edges out of the node. A skipped subtask resolves its own edges in turn.
+        LinkedList<Integer> resolving = new LinkedList<Integer>();
+        resolving.add(node.index);
+        boolean ran = true;
+        while (!resolving.isEmpty()) {
+          int i = resolving.removeFirst();
+          for (Edge e : outgoing.get(i)) {
+            if (!ran || !e.holds(results)) {
+              blocked[e.to] = true;
+            }
+            if (--waitingOn[e.to] > 0) {
+              continue;
+            }
+            if (blocked[e.to]) {
+              Logger.i("Sub task " + tasks.get(e.to).getType() + " is skipped, condition "
+                  + e + " does not hold");
+              resolving.add(e.to);
+            } else if (!stopFlag) {
+              notHelped.add(start(e.to, finished));
+              unfinished++;
+            }
+          }
+          ran = false;
+        }
+      }
+    } catch (InterruptedException e) {
+      Logger.e("DAG task " + this.getTaskId() + " got interrupted");
+      stopStarted();
+      Thread.currentThread().interrupt();
+    } finally {
+      synchronized (started) {
+        started.clear();
+      }
+    }
+    if (stopFlag) {
+      return allResults.fail(new MeasurementError("Cancelled"));
+    }
+    return allResults.toArray();
+  }
+
+  private Node start(int i, BlockingQueue<Subtask> finished) {
+    MeasurementTask mt = tasks.get(i);
+    Logger.i("Sub task " + mt.getType() + " is going to run");
+    Node node = new Node(mt, mt.getDuration() == 0 ?
+        Config.DEFAULT_TASK_DURATION_TIMEOUT * 2 : mt.getDuration() * 2, i, finished);
+    synchronized (started) {
+      started.add(node);
+    }
+    // Checked after the add, so a concurrent stop() either sees the node or is seen here
+    if (stopFlag) {
+      node.stop();
+    }
+    SubtaskExecutor.execute(node);
+    return node;
+  }
+
+  /**
+   * @return results of a finished subtask, a failure result if it failed or timed out
+   */
+  private MeasurementResult[] collect(Node node) throws InterruptedException {
+    try {
+      return node.get();
+    } catch (CancellationException e) {
+      if (!node.isTimedOut()) {
+        // stop() was called on this task
+        return new MeasurementResult[0];
+      }
+      return MeasurementResult.getFailureResult(node.task,
+        new MeasurementError("Timed out, sub task " + node.task.getDescriptor()));
+    } catch (ExecutionException e) {
+      Logger.e("Sub task " + node.task.getDescriptor() + " of DAG task " + this.getTaskId()
+          + " failed: " + e.getCause());
+      return MeasurementResult.getFailureResult(node.task, e.getCause());
+    }
+  }
+
+  private void stopStarted() {
+    synchronized (started) {
+      for (Node node : started) {
+        node.stop();
+      }
+    }
+  }
+
+  @Override
+  public String getType() {
+    return DagTask.TYPE;
+  }
+
+  @Override
+  public MeasurementTask clone() {
+    MeasurementDesc desc = this.measurementDesc;
+    DagDesc newDesc = new DagDesc(desc.key, desc.startTime, desc.endTime, desc.intervalSec,
+      desc.count, desc.priority, desc.contextIntervalSec, desc.parameters);
+    ArrayList<MeasurementTask> newTaskList = new ArrayList<MeasurementTask>();
+    for (MeasurementTask mt : tasks) {
+      newTaskList.add(mt.clone());
+    }
+    return new DagTask(newDesc, newTaskList);
+  }
+
+  @Override
+  public boolean stop() {
+    stopFlag = true;
+    stopStarted();
+    return true;
+  }
+
+  /**
+   * @return time the longest chain of subtasks takes to run
+   */
+  @Override
+  public long getDuration() {
+    return duration;
+  }
+
+  @Override
+  public void setDuration(long newDuration) {
+    if (newDuration < 0) {
+      this.duration = 0;
+    } else {
+      this.duration = newDuration;
+    }
+  }
+
+  public MeasurementTask[] getTasks() {
+    return tasks.toArray(new MeasurementTask[tasks.size()]);
+  }
+
+  @Override
+  public long getDataConsumed() {
+    long dataConsumed = 0;
+    for (MeasurementTask mt : tasks) {
+      dataConsumed += mt.getDataConsumed();
+    }
+    return dataConsumed;
+  }
+}
@@ -16,20 +16,17 @@
 package com.mobilyzer.measurements;
 
 
-import android.net.http.AndroidHttpClient;
 import android.os.Parcel;
 import android.os.Parcelable;
 import android.util.Base64;
 
-import org.apache.http.Header;
-import org.apache.http.HttpEntity;
-import org.apache.http.HttpResponse;
-import org.apache.http.StatusLine;
-import org.apache.http.client.methods.HttpGet;
-import org.apache.http.client.methods.HttpHead;
-import org.apache.http.client.methods.HttpPost;
-import org.apache.http.client.methods.HttpRequestBase;
-import org.apache.http.entity.StringEntity;
+import com.squareup.okhttp.Headers;
+import com.squareup.okhttp.MediaType;
+import com.squareup.okhttp.OkHttpClient;
+import com.squareup.okhttp.Request;
+import com.squareup.okhttp.RequestBody;
+import com.squareup.okhttp.Response;
+import com.squareup.okhttp.ResponseBody;
 
 import com.mobilyzer.Config;
 import com.mobilyzer.MeasurementDesc;
@@ -37,17 +34,21 @@ import com.mobilyzer.MeasurementResult;
 import com.mobilyzer.MeasurementTask;
 import com.mobilyzer.MeasurementResult.TaskProgress;
 import com.mobilyzer.exceptions.MeasurementError;
+import com.mobilyzer.util.ByteArrayPool;
 import com.mobilyzer.util.Logger;
 import com.mobilyzer.util.MeasurementJsonConvertor;
 import com.mobilyzer.util.PhoneUtils;
+import com.mobilyzer.util.SharedHttpClient;
 import com.mobilyzer.util.Util;
 
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InvalidClassException;
 import java.net.MalformedURLException;
-import java.nio.ByteBuffer;
+import java.net.URL;
 import java.security.InvalidParameterException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.Date;
 import java.util.Map;
 
@@ -74,12 +75,25 @@ public class HttpTask extends MeasurementTask {
   // Not used by the HTTP protocol. Just in case we do not receive a status line
   // from the response
   public static final int DEFAULT_STATUS_CODE = 0;
+  // Connection modes. A warm measurement may reuse pooled connections and TLS sessions left by
+  // earlier measurements, a cold one sets up everything from scratch.
+  public static final String CONNECTION_MODE_WARM = "warm";
+  public static final String CONNECTION_MODE_COLD = "cold";
+  // What the result carries about the body. A sample holds the first MAX_BODY_SIZE_TO_UPLOAD
+  // bytes of the body, a digest the hash of all the bytes read.
+  public static final String BODY_MODE_SAMPLE = "sample";
+  public static final String BODY_MODE_DIGEST = "digest";
+  public static final String BODY_DIGEST_ALGORITHM = "SHA-256";
+  // Read buffers and body samples, shared by all HTTP measurements
+  private static final ByteArrayPool bufferPool =
+      new ByteArrayPool(Math.max(READ_BUFFER_SIZE, MAX_BODY_SIZE_TO_UPLOAD), 4);
+  // Content type AndroidHttpClient used to send POST bodies with
+  private static final MediaType POST_BODY_TYPE =
+      MediaType.parse("text/plain; charset=ISO-8859-1");
   
   //Track data consumption for this task to avoid exceeding user's limit  
   private long dataConsumed;
 
-  private AndroidHttpClient httpClient = null;
-
   private long duration;
 
   public HttpTask(MeasurementDesc desc) {
@@ -120,6 +134,8 @@ public class HttpTask extends MeasurementTask {
     private String method;
     private String headers;
     private String body;
+    private String connectionMode;
+    private String bodyMode;
 
     public HttpDesc(String key, Date startTime, Date endTime,
         double intervalSec, long count, long priority, int contextIntervalSec,
@@ -150,6 +166,14 @@ public class HttpTask extends MeasurementTask {
       }
       this.headers = params.get("headers");      
       this.body = params.get("body");
+      this.connectionMode = params.get("connection_mode");
+      if (!CONNECTION_MODE_COLD.equals(this.connectionMode)) {
+        this.connectionMode = CONNECTION_MODE_WARM;
+      }
+      this.bodyMode = params.get("body_mode");
+      if (!BODY_MODE_DIGEST.equals(this.bodyMode)) {
+        this.bodyMode = BODY_MODE_SAMPLE;
+      }
     }
 
     @Override
@@ -164,6 +188,8 @@ public class HttpTask extends MeasurementTask {
       method = in.readString();
       headers = in.readString();
       body = in.readString();
+      connectionMode = in.readString();
+      bodyMode = in.readString();
     }
 
     public static final Parcelable.Creator<HttpDesc> CREATOR =
@@ -184,6 +210,8 @@ public class HttpTask extends MeasurementTask {
       dest.writeString(method);
       dest.writeString(headers);
       dest.writeString(body);
+      dest.writeString(connectionMode);
+      dest.writeString(bodyMode);
     }
   }
 
@@ -209,11 +237,16 @@ public class HttpTask extends MeasurementTask {
     long originalHeadersLen = 0;
     long originalBodyLen;
     String headers = null;
-    ByteBuffer body = ByteBuffer.allocate(HttpTask.MAX_BODY_SIZE_TO_UPLOAD);
+    byte[] readBuffer = null;
+    byte[] bodySample = null;
+    int bodySampleLen = 0;
+    MessageDigest bodyDigest = null;
     //    boolean success = false;
     TaskProgress taskProgress=TaskProgress.FAILED;
     String errorMsg = "";
     InputStream inputStream = null;
+    OkHttpClient coldClient = null;
+    SharedHttpClient.CallTimings timings = null;
     
     long currentRxTx=Util.getCurrentRxTxBytes();
 
@@ -222,21 +255,29 @@ public class HttpTask extends MeasurementTask {
       // this is the file to be downloaded
       HttpDesc task = (HttpDesc) this.measurementDesc;
       String urlStr = task.url;
+      URL url = new URL(urlStr);
 
-      // TODO(Wenjie): Need to set timeout for the HTTP methods
-      httpClient = AndroidHttpClient.newInstance(Util.prepareUserAgent());
-      HttpRequestBase request = null;
+      // Both clients time out after SharedHttpClient.TIMEOUT_MS
+      OkHttpClient httpClient;
+      if (CONNECTION_MODE_COLD.equals(task.connectionMode)) {
+        coldClient = SharedHttpClient.newColdClient();
+        httpClient = coldClient;
+      } else {
+        httpClient = SharedHttpClient.get();
+      }
+      Request.Builder request = new Request.Builder().url(url)
+          .header("User-Agent", Util.prepareUserAgent())
+          // okhttp asks for gzip by default, we want to measure the bytes as served
+          .header("Accept-Encoding", "identity");
       if (task.method.compareToIgnoreCase("head") == 0) {
-        request = new HttpHead(urlStr);
+        request.head();
       } else if (task.method.compareToIgnoreCase("get") == 0) {
-        request = new HttpGet(urlStr);
+        request.get();
       } else if (task.method.compareToIgnoreCase("post") == 0) {
-        request = new HttpPost(urlStr);
-        HttpPost postRequest = (HttpPost) request;
-        postRequest.setEntity(new StringEntity(task.body));
+        request.post(RequestBody.create(POST_BODY_TYPE, task.body == null ? "" : task.body));
       } else {
         // Use GET by default
-        request = new HttpGet(urlStr);
+        request.get();
       }
 
       if (task.headers != null && task.headers.trim().length() > 0) {
@@ -251,70 +292,96 @@ public class HttpTask extends MeasurementTask {
       }
 
 
-      byte[] readBuffer = new byte[HttpTask.READ_BUFFER_SIZE];
+      readBuffer = bufferPool.acquire();
+      if (BODY_MODE_DIGEST.equals(task.bodyMode)) {
+        try {
+          bodyDigest = MessageDigest.getInstance(BODY_DIGEST_ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+          throw new MeasurementError(BODY_DIGEST_ALGORITHM + " is not available");
+        }
+      } else {
+        bodySample = bufferPool.acquire();
+      }
       int readLen;      
       int totalBodyLen = 0;
 
+      timings = SharedHttpClient.beginCall();
+      long callStartNanos = System.nanoTime();
       long startTime = System.currentTimeMillis();
-      HttpResponse response = httpClient.execute(request);
-
-      /* TODO(Wenjie): HttpClient does not automatically handle the following codes
-       * 301 Moved Permanently. HttpStatus.SC_MOVED_PERMANENTLY
-       * 302 Moved Temporarily. HttpStatus.SC_MOVED_TEMPORARILY
-       * 303 See Other. HttpStatus.SC_SEE_OTHER
-       * 307 Temporary Redirect. HttpStatus.SC_TEMPORARY_REDIRECT
-       * 
-       * We may want to fetch instead from the redirected page. 
-       */
-      StatusLine statusLine = response.getStatusLine();
-      if (statusLine != null) {
-        statusCode = statusLine.getStatusCode();
-        if(statusCode == 200){
-          taskProgress=TaskProgress.COMPLETED;
-        }
-        else{
-          taskProgress=TaskProgress.FAILED;
-        }
+      Response response = httpClient.newCall(request.build()).execute();
+      long firstByteNanos = System.nanoTime();
+
+      // okhttp 2.0 always follows redirects. Like the HttpClient used before, which did not,
+      // report the first response of the chain; a redirect is a failure without a body.
+      Response firstResponse = response;
+      while (firstResponse.priorResponse() != null) {
+        firstResponse = firstResponse.priorResponse();
+      }
+      if (firstResponse != response && response.body() != null) {
+        response.body().close();
       }
 
-      /* For HttpClient to work properly, we still want to consume the entire
-       * response even if the status code is not 200 
-       */
-      HttpEntity responseEntity = response.getEntity();      
-      originalBodyLen = responseEntity.getContentLength();
-      long expectedResponseLen = HttpTask.MAX_HTTP_RESPONSE_SIZE;
-      // getContentLength() returns negative number if body length is unknown
-      if (originalBodyLen > 0) {
-        expectedResponseLen = originalBodyLen;
+      statusCode = firstResponse.code();
+      if(statusCode == 200){
+        taskProgress=TaskProgress.COMPLETED;
+      }
+      else{
+        taskProgress=TaskProgress.FAILED;
       }
 
+      /* To keep the connection reusable, we still want to consume the entire
+       * response even if the status code is not 200 
+       */
+      ResponseBody responseEntity = firstResponse == response ? response.body() : null;
       if (responseEntity != null) {
-        inputStream = responseEntity.getContent();
-        while ((readLen = inputStream.read(readBuffer)) > 0 
+        originalBodyLen = responseEntity.contentLength();
+        long expectedResponseLen = HttpTask.MAX_HTTP_RESPONSE_SIZE;
+        // contentLength() returns negative number if body length is unknown
+        if (originalBodyLen > 0) {
+          expectedResponseLen = originalBodyLen;
+        }
+
+        inputStream = responseEntity.byteStream();
+        while ((readLen = inputStream.read(readBuffer, 0, HttpTask.READ_BUFFER_SIZE)) > 0 
             && totalBodyLen <= HttpTask.MAX_HTTP_RESPONSE_SIZE) {
           totalBodyLen += readLen;
-          // Fill in the body to report up to MAX_BODY_SIZE
-          if (body.remaining() > 0) {
-            int putLen = body.remaining() < readLen ? body.remaining() : readLen; 
-            body.put(readBuffer, 0, putLen);
+          if (bodyDigest != null) {
+            bodyDigest.update(readBuffer, 0, readLen);
+          } else if (bodySampleLen < HttpTask.MAX_BODY_SIZE_TO_UPLOAD) {
+            // Fill in the body to report up to MAX_BODY_SIZE
+            int putLen = Math.min(HttpTask.MAX_BODY_SIZE_TO_UPLOAD - bodySampleLen, readLen);
+            System.arraycopy(readBuffer, 0, bodySample, bodySampleLen, putLen);
+            bodySampleLen += putLen;
           }
         }
         duration = System.currentTimeMillis() - startTime;//TODO check this
       }
+      long lastByteNanos = System.nanoTime();
+      // New connections can only be seen for https
+      boolean https = url.getProtocol().equals("https");
+      int reuseCount = 0;
+      if (https) {
+        reuseCount = SharedHttpClient.endCall(timings, originOf(url));
+      } else {
+        SharedHttpClient.clearCall();
+      }
 
-      Header[] responseHeaders = response.getAllHeaders();
+      Headers responseHeaders = firstResponse.headers();
       if (responseHeaders != null) {
-        headers = "";
-        for (Header hdr : responseHeaders) {
+        StringBuilder headerText = new StringBuilder(responseHeaders.size() * 32);
+        for (int i = 0; i < responseHeaders.size(); i++) {
           /*
            * TODO(Wenjie): There can be preceding and trailing white spaces in
            * each header field. I cannot find internal methods that return the
            * number of bytes in a header. The solution here assumes the encoding
            * is one byte per character.
            */
-          originalHeadersLen += hdr.toString().length();
-          headers += hdr.toString() + "\r\n";
+          int lineStart = headerText.length();
+          headerText.append(responseHeaders.name(i)).append(": ").append(responseHeaders.value(i));
+          originalHeadersLen += headerText.length() - lineStart;
+          headerText.append("\r\n");
         }
+        headers = headerText.toString();
       }
 
       PhoneUtils phoneUtils = PhoneUtils.getPhoneUtils();
@@ -334,9 +401,38 @@ public class HttpTask extends MeasurementTask {
         result.addResult("headers_len", originalHeadersLen);
         result.addResult("body_len", totalBodyLen);
         result.addResult("headers", headers);
-        result.addResult("body", Base64.encodeToString(body.array(),
-          Base64.DEFAULT));
+        result.addResult("body_mode", task.bodyMode);
+        if (bodyDigest != null) {
+          result.addResult("body_sha256", toHex(bodyDigest.digest()));
+        } else {
+          result.addResult("body", Base64.encodeToString(bodySample, 0, bodySampleLen,
+            Base64.DEFAULT));
+        }
+      }
+      result.addResult("connection_mode", task.connectionMode);
+      if (https) {
+        result.addResult("pool_hit", timings.isPoolHit());
+        result.addResult("connection_reuse_count", reuseCount);
+      }
+      // Phase durations in ms with nanosecond resolution. A phase is left out if it did not
+      // happen or cannot be told apart: okhttp 2.0 resolves names, connects plain sockets and
+      // writes the request internally, so only the TLS handshake of a new https connection is
+      // seen. After a redirect the phases would mix the responses of the chain, so only the
+      // whole call is reported.
+      if (https && firstResponse == response) {
+        if (timings.isPoolHit()) {
+          // The call starts on a ready connection
+          addPhase(result, "first_byte_ms", callStartNanos, firstByteNanos);
+        } else if (timings.connectionsOpened == 1) {
+          addPhase(result, "tls_handshake_ms", timings.handshakeStartNanos,
+            timings.handshakeEndNanos);
+          addPhase(result, "first_byte_ms", timings.handshakeEndNanos, firstByteNanos);
+        }
+      }
+      if (firstResponse == response) {
+        addPhase(result, "last_byte_ms", firstByteNanos, lastByteNanos);
       }
+      addPhase(result, "call_ms", callStartNanos, lastByteNanos);
 
       Logger.i(MeasurementJsonConvertor.toJsonString(result));
       MeasurementResult[] mrArray= new MeasurementResult[1];
@@ -356,8 +452,11 @@ public class HttpTask extends MeasurementTask {
           Logger.e("Fails to close the input stream from the HTTP response");
         }
       }
-      if (httpClient != null) {
-        httpClient.close();
+      bufferPool.release(readBuffer);
+      bufferPool.release(bodySample);
+      SharedHttpClient.clearCall();
+      if (coldClient != null) {
+        coldClient.getConnectionPool().evictAll();
       }
 
     }
@@ -365,6 +464,33 @@ public class HttpTask extends MeasurementTask {
         + errorMsg);
   }  
 
+  /**
+   * Adds the time between two System.nanoTime() readings if both were taken
+   */
+  private static void addPhase(MeasurementResult result, String key, long startNanos,
+                               long endNanos) {
+    if (startNanos >= 0 && endNanos >= startNanos) {
+      result.addResult(key, (endNanos - startNanos) / 1e6);
+    }
+  }
+
+  private static String toHex(byte[] bytes) {
+    StringBuilder sb = new StringBuilder(bytes.length * 2);
+    for (byte b : bytes) {
+      sb.append(Character.forDigit((b >> 4) & 0xF, 16));
+      sb.append(Character.forDigit(b & 0xF, 16));
+    }
+    return sb.toString();
+  }
+
+  /**
+   * Key of the connection pool entries that can serve the URL
+   */
+  private static String originOf(URL url) {
+    int port = url.getPort() != -1 ? url.getPort() : url.getDefaultPort();
+    return url.getProtocol() + "://" + url.getHost() + ":" + port;
+  }
+
   @SuppressWarnings("rawtypes")
   public static Class getDescClass() throws InvalidClassException {
     return HttpDesc.class;
@@ -14,10 +14,7 @@
 package com.mobilyzer.measurements;
 
 
-import android.content.BroadcastReceiver;
-import android.content.Context;
 import android.content.Intent;
-import android.content.IntentFilter;
 import android.os.Parcel;
 import android.os.Parcelable;
 
@@ -25,7 +22,10 @@ import java.io.InvalidClassException;
 import java.security.InvalidParameterException;
 import java.util.ArrayList;
 import java.util.Date;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 import com.mobilyzer.MeasurementDesc;
 import com.mobilyzer.MeasurementResult;
@@ -34,6 +34,7 @@ import com.mobilyzer.MeasurementTask;
 import com.mobilyzer.PLTExecutorService;
 import com.mobilyzer.UpdateIntent;
 import com.mobilyzer.exceptions.MeasurementError;
+import com.mobilyzer.util.AndroidWebView;
 import com.mobilyzer.util.Logger;
 import com.mobilyzer.util.MeasurementJsonConvertor;
 import com.mobilyzer.util.PhoneUtils;
@@ -54,9 +55,16 @@ public class PageLoadTimeTask extends MeasurementTask {
 
 	private volatile ArrayList<String> navigationTimingResults; 
 	private volatile ArrayList<String> resourceTimingResults;
+	// Bytes and timing of each resource the WebView fetched, one page load after the other
+	private volatile ArrayList<String> resourceLoadResults;
+	// How long to wait for the WebView to report all the results
+	private static final long TIMEOUT_SEC=60*3;
+	// Released when the results are complete or the task is stopped, null when not running
+	private volatile CountDownLatch completion;
+	private volatile boolean stopped;
 
-	
-//	private long dataConsumed;
+	// Body bytes the page loads used, as counted by the WebView
+	private long bytesConsumed;
 
 	/**
 	 * The description of PageLoadTime measurement
@@ -64,6 +72,8 @@ public class PageLoadTimeTask extends MeasurementTask {
 	public static class PageLoadTimeDesc extends MeasurementDesc {
 		public String url;
 		public boolean spdyTest;
+		// AndroidWebView.CACHE_POLICY_COLD or CACHE_POLICY_WARM
+		public String cachePolicy;
 
 
 		public PageLoadTimeDesc(String key, Date startTime, Date endTime, double intervalSec,
@@ -99,6 +109,12 @@ public class PageLoadTimeTask extends MeasurementTask {
 				this.spdyTest=false;
 			}
 
+			if(AndroidWebView.CACHE_POLICY_WARM.equals(params.get("cache_policy"))){
+				this.cachePolicy=AndroidWebView.CACHE_POLICY_WARM;
+			}else{
+				this.cachePolicy=AndroidWebView.CACHE_POLICY_COLD;
+			}
+
 
 		}
 
@@ -106,6 +122,7 @@ public class PageLoadTimeTask extends MeasurementTask {
 			super(in);
 			url = in.readString();
 			spdyTest=in.readByte() != 0; 
+			cachePolicy=in.readString();
 
 		}
 
@@ -125,6 +142,7 @@ public class PageLoadTimeTask extends MeasurementTask {
 			super.writeToParcel(dest, flags);
 			dest.writeString(url);
 			dest.writeByte((byte) (spdyTest ? 1 : 0));
+			dest.writeString(cachePolicy);
 		}
 	}
 
@@ -134,9 +152,10 @@ public class PageLoadTimeTask extends MeasurementTask {
 
 		navigationTimingResults=new ArrayList<String>();
 		resourceTimingResults= new ArrayList<String>();
+		resourceLoadResults=new ArrayList<String>();
 		startTimeFilter=System.currentTimeMillis();
 
-//		dataConsumed=0;
+		bytesConsumed=0;
 
 		 this.duration=1000*60*4;
 	}
@@ -206,66 +225,78 @@ public class PageLoadTimeTask extends MeasurementTask {
 	 public MeasurementResult[] call() throws MeasurementError {
 		 MeasurementResult[] mrArray = new MeasurementResult[1];
 		 PageLoadTimeDesc taskDesc = (PageLoadTimeDesc) this.measurementDesc;
+		 stopped=false;
+		 synchronized (this) {
+			 // A stopped task runs again from scratch
+			 navigationTimingResults.clear();
+			 resourceTimingResults.clear();
+			 resourceLoadResults.clear();
+			 bytesConsumed=0;
+		 }
 
+		 // The WebView runs in this process and reports straight to the listener. Every page load
+		 // gets its own latch, counted down once all the results are in or the task is stopped.
+		 final CountDownLatch latch=new CountDownLatch(1);
+		 completion=latch;
+		 AndroidWebView.setResultListener(startTimeFilter, new AndroidWebView.ResultListener() {
+			 @Override
+			 public void onNavigationTiming(String message, long bytesUsed, List<String> resourceLoads) {
+				 synchronized (PageLoadTimeTask.this) {
+					 navigationTimingResults.add(message.substring(20));
+					 resourceLoadResults.addAll(resourceLoads);
+					 bytesConsumed+=bytesUsed;
+					 Logger.d("ashkan_plt: >>>>navigationTimingResults: "+navigationTimingResults.size());
+				 }
+				 if(isDone()){
+					 latch.countDown();
+				 }
+			 }
+
+			 @Override
+			 public void onResourceTiming(String message) {
+				 synchronized (PageLoadTimeTask.this) {
+					 String resrourcesStr=message.substring(18);
+					 String[] resourcesArray=resrourcesStr.split("mobilyzer_resource");
+					 for (String res: resourcesArray){
+						 if(res.length()<3){
+							 continue;
+						 }
+						 resourceTimingResults.add(res);
+					 }
+					 Logger.d("ashkan_plt: >>>>resourceTimingResults: "+resrourcesStr.length()+" "+resourceTimingResults.size());
+				 }
+				 if(isDone()){
+					 latch.countDown();
+				 }
+			 }
+		 });
 
 		 Intent newintent = new Intent(PhoneUtils.getGlobalContext(), PLTExecutorService.class);
 		 newintent.putExtra(UpdateIntent.PLT_TASK_PAYLOAD_URL, taskDesc.url);
 		 newintent.putExtra(UpdateIntent.PLT_TASK_PAYLOAD_TEST_TYPE, taskDesc.spdyTest);
 		 newintent.putExtra(UpdateIntent.PLT_TASK_PAYLOAD_STARTTIME, startTimeFilter);
+		 newintent.putExtra(UpdateIntent.PLT_TASK_PAYLOAD_CACHE_POLICY, taskDesc.cachePolicy);
 		 PhoneUtils.getGlobalContext().startService(newintent);
 		 Logger.d("ashkan_plt: PLT Test, Sending broadcast to start PLTExecutorService");
 
-		 IntentFilter filter = new IntentFilter();
-		 filter.addAction((UpdateIntent.PLT_MEASUREMENT_ACTION)+startTimeFilter);
-		 BroadcastReceiver broadcastReceiver = new BroadcastReceiver() {
-			 @Override
-			 public void onReceive(Context context, Intent intent) {
-
-				 if (intent.getAction().equals((UpdateIntent.PLT_MEASUREMENT_ACTION)+startTimeFilter)) {
-					 Logger.d("ashkan_plt: PageLoadTimeTask: "+intent.getAction() + " RECEIVED");
-					 if (intent.hasExtra(UpdateIntent.PLT_TASK_PAYLOAD_RESULT_NAV)){
-						 String navigationStr=intent.getStringExtra(UpdateIntent.PLT_TASK_PAYLOAD_RESULT_NAV).substring(20);
-						 navigationTimingResults.add(navigationStr);
-//						 if(intent.hasExtra(UpdateIntent.PLT_TASK_PAYLOAD_BYTE_USED)){
-////							 dataConsumed+=intent.getIntExtra(UpdateIntent.PLT_TASK_PAYLOAD_BYTE_USED, 0);
-////							 Logger.d("ashkan_plt: total data consumed: "+dataConsumed*2);
-//						 }
-						 
-						 Logger.d("ashkan_plt: >>>>navigationTimingResults: "+navigationTimingResults.size());
-					 }else if(intent.hasExtra(UpdateIntent.PLT_TASK_PAYLOAD_RESULT_RES)){
-						 String resrourcesStr=intent.getStringExtra(UpdateIntent.PLT_TASK_PAYLOAD_RESULT_RES).substring(18);
-					        String[] resourcesArray=resrourcesStr.split("mobilyzer_resource");
-					        for (String res: resourcesArray){
-					        	if(res.length()<3){
-					        		continue;
-					        	}
-					        	resourceTimingResults.add(res);
-					        }
-					        Logger.d("ashkan_plt: >>>>resourceTimingResults: "+resrourcesStr.length()+" "+resourceTimingResults.size());
-
-						 
-					 }
-
-				 }
-			 }
-		 };
-		 PhoneUtils.getGlobalContext().registerReceiver(broadcastReceiver, filter);
-
-
-
-		 for(int i=0;i<60*3;i++){
-			 if(isDone()){
-				 break;
-			 }
-			 try {
-				 Thread.sleep(1000);
-			 } catch (InterruptedException e) {
-				 e.printStackTrace();
+		 try {
+			 if(!stopped){
+				 latch.await(TIMEOUT_SEC, TimeUnit.SECONDS);
 			 }
+		 } catch (InterruptedException e) {
+			 // Cancelled by the scheduler
+			 Thread.currentThread().interrupt();
+		 } finally {
+			 AndroidWebView.setResultListener(startTimeFilter, null);
+			 completion=null;
 		 }
 		 Logger.e("ashkan_plt: PLTTask isDone");
-		 PhoneUtils.getGlobalContext().unregisterReceiver(broadcastReceiver);
-		 
+
+		 if(stopped || Thread.currentThread().isInterrupted()){
+			 PhoneUtils.getGlobalContext().stopService(new Intent(PhoneUtils.getGlobalContext(), PLTExecutorService.class));
+			 throw new MeasurementError("Page load time measurement was stopped");
+		 }
+
 		 if(isDone()){
 
 			 
@@ -276,6 +307,7 @@ public class PageLoadTimeTask extends MeasurementTask {
 					 phoneUtils.getDeviceProperty(this.getKey()),
 					 PageLoadTimeTask.TYPE, System.currentTimeMillis() * 1000,
 					 TaskProgress.COMPLETED, this.measurementDesc);
+			 result.addResult("cache_policy", taskDesc.cachePolicy);
 
 			 if(taskDesc.spdyTest){
 				 result.addResult("navigationTimingResults_0", getNavigationTimingResults().get(0));
@@ -293,6 +325,7 @@ public class PageLoadTimeTask extends MeasurementTask {
 					 res_index++;
 				 }  
 			 }
+			 addResourceLoads(result);
 			 Logger.i(MeasurementJsonConvertor.toJsonString(result));
 			 mrArray[0]=result;
 		 }else{
@@ -313,6 +346,7 @@ public class PageLoadTimeTask extends MeasurementTask {
 				 result.addResult("resource_"+res_index, resResults);
 				 res_index++;
 			 }
+			 addResourceLoads(result);
 			 Logger.i(MeasurementJsonConvertor.toJsonString(result));
 			 mrArray[0]=result;
 		 }
@@ -322,6 +356,18 @@ public class PageLoadTimeTask extends MeasurementTask {
 
 	 }
 
+	 /**
+	  * Adds the bytes and timing of each resource the WebView fetched, and their total
+	  */
+	 private synchronized void addResourceLoads(MeasurementResult result) {
+		 result.addResult("bytes_used", bytesConsumed);
+		 int load_index=0;
+		 for(String load: resourceLoadResults){
+			 result.addResult("resource_load_"+load_index, load);
+			 load_index++;
+		 }
+	 }
+
 	 @SuppressWarnings("rawtypes")
 	 public static Class getDescClass() throws InvalidClassException {
 		 return PageLoadTimeDesc.class;
@@ -344,8 +390,12 @@ public class PageLoadTimeTask extends MeasurementTask {
 
 	 @Override
 	 public boolean stop() {
-		 // There is nothing we need to do to stop the PLT measurement
-		 return false;
+		 stopped=true;
+		 CountDownLatch latch=completion;
+		 if(latch!=null){
+			 latch.countDown();
+		 }
+		 return true;
 	 }
 
 	 @Override
@@ -364,13 +414,14 @@ public class PageLoadTimeTask extends MeasurementTask {
 	 }
 
 	 /**
-	  * Since it is hard to get the amount of data sent directly, use a fixed value. The data consumed
-	  * is usually small, and the fixed value is a conservative estimate.
-	  * 
-	  * TODO find a better way to get this value
+	  * Once the page loads are done, the body bytes counted by the WebView. Before that, or if
+	  * nothing was counted, a fixed value which is a conservative estimate.
 	  */
 	 @Override
-	 public long getDataConsumed() {
+	 public synchronized long getDataConsumed() {
+	   if (bytesConsumed > 0) {
+	     return bytesConsumed;
+	   }
 	   long avgTotalPageSize=1024*1024;
 	     if (((PageLoadTimeDesc)getDescription()).spdyTest){
 	       return 2*avgTotalPageSize;
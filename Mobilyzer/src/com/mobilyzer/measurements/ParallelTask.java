@@ -18,13 +18,12 @@ import java.io.InvalidClassException;
 import java.security.InvalidParameterException;
 import java.util.ArrayList;
 import java.util.Date;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.ExecutionException;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.LinkedBlockingQueue;
 
 import android.os.Parcel;
 import android.os.Parcelable;
@@ -34,6 +33,7 @@ import com.mobilyzer.MeasurementDesc;
 import com.mobilyzer.MeasurementResult;
 import com.mobilyzer.MeasurementTask;
 import com.mobilyzer.exceptions.MeasurementError;
+import com.mobilyzer.measurements.SubtaskExecutor.Subtask;
 import com.mobilyzer.util.Logger;
 
 
@@ -43,13 +43,19 @@ import com.mobilyzer.util.Logger;
  * 
  * Parallel Task is a measurement task that can execute more than one measurement task 
  * in parallel using a thread pool.
+ * 
+ * Subtasks run on the pool shared by all composite tasks (see SubtaskExecutor), each with its
+ * own deadline. A subtask that fails or runs over its deadline is reported as a failure result,
+ * the results of its siblings are kept.
  */
 public class ParallelTask extends MeasurementTask{
 
   private long duration;
   private List<MeasurementTask> tasks;
 
-  private ExecutorService executor;
+  // Subtasks of the current run, null when not running
+  private volatile List<Subtask> running;
+  private volatile boolean stopFlag;
 
   // Type name for internal use
   public static final String TYPE = "parallel";
@@ -166,35 +172,63 @@ public class ParallelTask extends MeasurementTask{
   @Override
   public MeasurementResult[] call() throws MeasurementError {
     long timeout=duration;
-    executor=Executors.newFixedThreadPool(this.tasks.size());
-
     if(timeout==0){
       timeout=Config.DEFAULT_PARALLEL_TASK_DURATION;
     }else{
       //this is the longest time a task can run before it is forcibly killed
       timeout*=2;
     }
-    ArrayList<MeasurementResult> allResults=new ArrayList<MeasurementResult>();
-    List<Future<MeasurementResult[]>> futures;
+    // The scheduler runs a preempted task again, on the same object
+    stopFlag=false;
+    LinkedBlockingQueue<Subtask> finished=new LinkedBlockingQueue<Subtask>();
+    ArrayList<Subtask> subtasks=new ArrayList<Subtask>();
+    for(MeasurementTask mt: tasks){
+      subtasks.add(SubtaskExecutor.submit(mt, timeout, finished));
+    }
+    running=subtasks;
+
+    // Results are taken in order of completion, so each can be handed over right away
+    CompositeResults allResults=new CompositeResults(this, getResultListener());
+    LinkedList<Subtask> notHelped=new LinkedList<Subtask>(subtasks);
     try {
-      futures=executor.invokeAll(this.tasks,timeout,TimeUnit.MILLISECONDS);
-      for(Future<MeasurementResult[]> f: futures){
-        MeasurementResult[] r=f.get();
-        for(int i=0;i<r.length;i++){
-          allResults.add(r[i]);
+      for(int done=0;done<subtasks.size();done++){
+        Subtask s=SubtaskExecutor.awaitNext(finished, notHelped);
+        MeasurementResult[] r;
+        try {
+          r=s.get();
+        } catch (CancellationException e) {
+          if(!s.isTimedOut()){
+            // stop() was called on this task
+            continue;
+          }
+          r=MeasurementResult.getFailureResult(s.task,
+            new MeasurementError("Timed out after " + timeout + " ms"));
+        } catch (ExecutionException e) {
+          Logger.e("Subtask " + s.task.getDescriptor() + " of parallel task "
+              + this.getTaskId() + " failed: " + e.getCause());
+          r=MeasurementResult.getFailureResult(s.task, e.getCause());
         }
+        allResults.add(r);
       }
-
     } catch (InterruptedException e) {
       Logger.e("Parallel task " + this.getTaskId()+" got interrupted");
-    }catch (ExecutionException e) {
-      throw new MeasurementError("Execution error: " + e.getCause());
+      stopAll(subtasks);
+      Thread.currentThread().interrupt();
+    } finally {
+      running=null;
     }
-    finally{
-      executor.shutdown();
+    if(stopFlag){
+      // stop() returned true, so the scheduler runs the task again in full; these results
+      // must not count as a finished run
+      return allResults.fail(new MeasurementError("Cancelled"));
+    }
+    return allResults.toArray();
+  }
+
+  private static void stopAll(List<Subtask> subtasks) {
+    for(Subtask s: subtasks){
+      s.stop();
     }
-    return (MeasurementResult[])allResults.toArray(
-      new MeasurementResult[allResults.size()]);
   }
 
   @Override
@@ -216,7 +250,12 @@ public class ParallelTask extends MeasurementTask{
 
   @Override
   public boolean stop() {
-    return false;
+    stopFlag=true;
+    List<Subtask> subtasks=running;
+    if(subtasks!=null){
+      stopAll(subtasks);
+    }
+    return true;
   }
 
   @Override
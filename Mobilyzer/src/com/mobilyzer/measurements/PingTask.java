@@ -17,7 +17,6 @@ package com.mobilyzer.measurements;
 
 import android.os.Parcel;
 import android.os.Parcelable;
-import android.util.Log;
 
 
 import com.mobilyzer.Config;
@@ -26,32 +25,41 @@ import com.mobilyzer.MeasurementResult;
 import com.mobilyzer.MeasurementTask;
 import com.mobilyzer.MeasurementResult.TaskProgress;
 import com.mobilyzer.exceptions.MeasurementError;
+import com.mobilyzer.util.EchoProber;
 import com.mobilyzer.util.Logger;
 import com.mobilyzer.util.MeasurementJsonConvertor;
 import com.mobilyzer.util.PhoneUtils;
+import com.mobilyzer.util.PingOutputParser;
 import com.mobilyzer.util.Util;
 
-import java.io.BufferedReader;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.io.InvalidClassException;
+import java.io.OutputStream;
 import java.net.HttpURLConnection;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.MalformedURLException;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
 import java.net.URL;
 import java.net.UnknownHostException;
 import java.security.InvalidParameterException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
 import java.util.Map;
 
 import javax.net.ssl.HostnameVerifier;
 import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLPeerUnverifiedException;
 import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
 
 /**
- * A callable that executes a ping task using one of three methods
+ * A callable that executes a ping task using one of four methods
  */
 public class PingTask extends MeasurementTask{
 
@@ -68,10 +76,15 @@ public class PingTask extends MeasurementTask{
   private long duration;
 
   private Process pingProc = null;
+  public static final String PING_METHOD_SOCKET = "socket_ping";
+  // UDP probes to a closed port, timed by the port unreachable errors. Never chosen by default
+  public static final String PING_METHOD_UDP = "udp_ping";
   public static final String PING_METHOD_CMD  = "ping_cmd";
   public static final String PING_METHOD_JAVA = "java_ping";
   public static final String PING_METHOD_HTTP = "http";
+  public static final String PING_METHOD_HTTP_KEEPALIVE = "http_keepalive";
   private String targetIp = null;
+  private InetAddress targetAddr = null;
   //Track data consumption for this task to avoid exceeding user's limit  
   private long dataConsumed;
   
@@ -132,7 +145,10 @@ public class PingTask extends MeasurementTask{
         	this.pingIcmpIntervalSec = Double.parseDouble(val);  
         }
         if ((val = params.get("ping_method")) != null && val.length() > 0 && 
-            (val.equals(PING_METHOD_CMD) || val.equals(PING_METHOD_JAVA) || val.equals(PING_METHOD_HTTP))) {
+            (val.equals(PING_METHOD_SOCKET) || val.equals(PING_METHOD_UDP)
+                || val.equals(PING_METHOD_CMD)
+                || val.equals(PING_METHOD_JAVA) || val.equals(PING_METHOD_HTTP)
+                || val.equals(PING_METHOD_HTTP_KEEPALIVE))) {
             this.pingMethod = new String(val);
         }
         if ((val = params.get("use_https")) != null && val.length() > 0 && 
@@ -239,8 +255,9 @@ public class PingTask extends MeasurementTask{
     return new PingTask(newDesc);
   }
 
-  /* We will use three methods to ping the requested resource in the order of PING_COMMAND, 
-   * JAVA_ICMP_PING, and HTTP_PING. If all fails, then we declare the resource unreachable */
+  /* We will use four methods to ping the requested resource in the order of SOCKET_PING,
+   * PING_COMMAND, JAVA_ICMP_PING, and HTTP_PING. If all fails, then we declare the resource
+   * unreachable */
   @Override
   public MeasurementResult[] call() throws MeasurementError {
     MeasurementResult[] result = null;
@@ -253,12 +270,20 @@ public class PingTask extends MeasurementTask{
       Logger.i("IP address length is " + ipByteLength);
       // All ping methods ping against targetIp rather than desc.target
       targetIp = addr.getHostAddress();
+      targetAddr = addr;
       Logger.i("IP is " + targetIp);
     } catch (UnknownHostException e) {
       throw new MeasurementError("Unknown host " + desc.target);
     }
     result=new MeasurementResult[1];
     if(desc.pingMethod==null) {
+      try {
+        Logger.i("running socket ping");
+        result[0]=executeSocketPingTask(EchoProber.METHOD_ICMP);
+        return result;
+      } catch (MeasurementError se) {
+        // fall through to the ping command
+      }
       try {
         Logger.i("running ping command");
         // Prevents the phone from going to low-power mode where WiFi turns off
@@ -275,6 +300,16 @@ public class PingTask extends MeasurementTask{
         return result;
       }
     }
+      }else if(desc.pingMethod.equals(PING_METHOD_SOCKET)){
+        Logger.i("running socket ping");
+        result[0] = executeSocketPingTask(EchoProber.METHOD_ICMP);
+        return result;
+
+      }else if(desc.pingMethod.equals(PING_METHOD_UDP)){
+        Logger.i("running udp ping");
+        result[0] = executeSocketPingTask(EchoProber.METHOD_UDP);
+        return result;
+
       }else if(desc.pingMethod.equals(PING_METHOD_CMD)){
         Logger.i("running ping command");
         result[0] = executePingCmdTask(ipByteLength);
@@ -284,6 +319,10 @@ public class PingTask extends MeasurementTask{
         Logger.i("running java ping");
         result[0] = executeJavaPingTask();
         return result;
+      }else if(desc.pingMethod.equals(PING_METHOD_HTTP_KEEPALIVE)){
+        Logger.i("running keep-alive http ping");
+        result[0] = executeHttpKeepAlivePingTask();
+        return result;
       }else {
         Logger.i("running http ping");
         result[0] = executeHttpPingTask();
@@ -302,14 +341,14 @@ public class PingTask extends MeasurementTask{
     return DESCRIPTOR;
   }
 
-  private MeasurementResult constructResult(ArrayList<Double> rrtVals, double packetLoss,
+  private MeasurementResult constructResult(double[] rrtVals, double packetLoss,
                                             int packetsSent, String pingMethod) {
     double min = Double.MAX_VALUE;
     double max = Double.MIN_VALUE;
     double mdev, avg, filteredAvg;
     double total = 0;
 
-    if (rrtVals.size() == 0) {
+    if (rrtVals.length == 0) {
       return null;
     }
 
@@ -323,7 +362,7 @@ public class PingTask extends MeasurementTask{
       total += rrt;
     }
 
-    avg = total / rrtVals.size();
+    avg = total / rrtVals.length;
     mdev = Util.getStandardDeviation(rrtVals, avg);
     filteredAvg = filterPingResults(rrtVals, avg);
 
@@ -365,20 +404,70 @@ public class PingTask extends MeasurementTask{
    * needs to activate the wireless interface and resolve domain names.
    * Such distorted measurements are filtered out
    */
-  private double filterPingResults(final ArrayList<Double> rrts, double avg) {
-    double rrtAvg = avg;
-    // Our # of results should be less than the # of times we ping
+  private double filterPingResults(final double[] rrts, double avg) {
+    double upperBound = avg * Config.PING_FILTER_THRES;
+    double filteredTotal = 0;
+    int filteredCnt = 0;
+    for (double rrt : rrts) {
+      if (rrt <= upperBound && rrt >= Double.MIN_VALUE) {
+        filteredTotal += rrt;
+        filteredCnt++;
+      }
+    }
+    // Now we compute the average again based on the filtered results
+    return filteredCnt > 0 ? filteredTotal / filteredCnt : avg;
+  }
+
+  private static double[] toArray(ArrayList<Double> vals) {
+    double[] array = new double[vals.size()];
+    for (int i = 0; i < array.length; i++) {
+      array[i] = vals.get(i);
+    }
+    return array;
+  }
+
+  /**
+   * Pings from within the process through {@link EchoProber}, over an ICMP datagram socket, or
+   * over UDP when the task asked for udp_ping. Fails if the socket cannot be used, so that the
+   * default ping falls back to the ping command. The result's ping_method tells which one ran.
+   */
+  private MeasurementResult executeSocketPingTask(String method) throws MeasurementError {
+    PingDesc pingTask = (PingDesc) this.measurementDesc;
+    String errorMsg = "";
+    MeasurementResult result = null;
     try {
-      ArrayList<Double> filteredResults = Util.applyInnerBandFilter(rrts,
-        Double.MIN_VALUE, rrtAvg * Config.PING_FILTER_THRES);
-      // Now we compute the average again based on the filtered results
-      if (filteredResults != null && filteredResults.size() > 0) {
-        rrtAvg = Util.getSum(filteredResults) / filteredResults.size();
+      EchoProber prober = new EchoProber(targetAddr, pingTask.packetSizeByte,
+        pingTask.pingTimeToLive);
+      prober.setMethod(method);
+      long timeOutNanos = (long) (3e9 * pingTask.pingTimeoutSec /
+          Config.PING_COUNT_PER_MEASUREMENT);
+      EchoProber.Result probes = prober.probe(Config.PING_COUNT_PER_MEASUREMENT,
+        (long) (pingTask.pingIcmpIntervalSec * 1e9), timeOutNanos);
+
+      dataConsumed += pingTask.packetSizeByte * probes.sent * 2;
+
+      double[] rrts = probes.getRttsMs();
+      Logger.i("socket ping over " + probes.method + " got " + probes.received + " of "
+          + probes.sent + " replies");
+      if (probes.sent > 0) {
+        double packetLoss = 1 - ((double) probes.received / (double) probes.sent);
+        result = constructResult(rrts, packetLoss, probes.sent, probes.method);
       }
-    } catch (InvalidParameterException e) {
-      Log.wtf("", "This should never happen because rrts is never empty");
+      if (result == null) {
+        errorMsg += "No reply over " + probes.method + "\n";
+      }
+    } catch (IOException e) {
+      Logger.e(e.getMessage());
+      errorMsg += e.getMessage() + "\n";
+    } catch (SecurityException e) {
+      Logger.e(e.getMessage());
+      errorMsg += e.getMessage() + "\n";
     }
-    return rrtAvg;
+    if (result == null) {
+      Logger.i("socket ping fails");
+      throw new MeasurementError(errorMsg);
+    }
+    return result;
   }
 
   // Runs when SystemState is IDLE
@@ -402,53 +491,34 @@ public class PingTask extends MeasurementTask{
         "-s", pingTask.packetSizeByte, "-w", pingTask.pingTimeoutSec, "-c", 
         Config.PING_COUNT_PER_MEASUREMENT, "-t" ,pingTask.pingTimeToLive, targetIp);
       Logger.i("Running: " + command);
-      pingProc = Runtime.getRuntime().exec(command);
+      try {
+        pingProc = Runtime.getRuntime().exec(command);
+      } catch (IOException e) {
+        // The cached executable no longer runs, look it up again next time
+        Util.invalidatePingExecutable(ipByteLen);
+        throw e;
+      }
       
       dataConsumed += pingTask.packetSizeByte * Config.PING_COUNT_PER_MEASUREMENT * 2;
 
-      // Grab the output of the process that runs the ping command
-      InputStream is = pingProc.getInputStream();
-      BufferedReader br = new BufferedReader(new InputStreamReader(is));
-
-      String line = null;
-      int lineCnt = 0;
-      ArrayList<Double> rrts = new ArrayList<Double>();
-      ArrayList<Integer> receivedIcmpSeq = new ArrayList<Integer>();
-      double packetLoss = Double.MIN_VALUE;
-      int packetsSent = Config.PING_COUNT_PER_MEASUREMENT;
-      // Process each line of the ping output and store the rrt in array rrts.
-      while ((line = br.readLine()) != null) {
-        // Ping prints a number of 'param=value' pairs, among which we only need
-        // the 'time=rrt_val' pair
-        String[] extractedValues = Util.extractInfoFromPingOutput(line);
-        if (extractedValues != null) {
-          int curIcmpSeq = Integer.parseInt(extractedValues[0]);
-          double rrtVal = Double.parseDouble(extractedValues[1]);
-
-          // ICMP responses from the system ping command could be duplicate
-          // and out of order
-          if (!receivedIcmpSeq.contains(curIcmpSeq)) {
-            rrts.add(rrtVal);
-            receivedIcmpSeq.add(curIcmpSeq);
-          }
-        }
-
-
-        // Get the number of sent/received pings from the ping command output 
-        int[] packetLossInfo = Util.extractPacketLossInfoFromPingOutput(line);
-        if (packetLossInfo != null) {
-          packetsSent = packetLossInfo[0];
-          int packetsReceived = packetLossInfo[1];
-          packetLoss = 1 - ((double) packetsReceived / (double) packetsSent);
-        }
+      // Parse the output of the process that runs the ping command as it arrives
+      PingOutputParser parser = new PingOutputParser();
+      parser.parse(pingProc.getInputStream());
+      // ICMP responses from the system ping command could be duplicate and out of order, the
+      // parser only keeps the first response to each sequence number
+      double[] rrts = parser.getRttsMs();
+      Logger.i("ping command got " + rrts.length + " replies, " + parser.getDuplicateCount()
+          + " duplicates");
 
-        Logger.i(line);
-      }
       // Use the output from the ping command to compute packet loss. If that's not
       // available, use an estimation.
-      if (packetLoss == Double.MIN_VALUE) {
-        packetLoss = 1 - 
-            ((double) rrts.size() / (double) Config.PING_COUNT_PER_MEASUREMENT);
+      double packetLoss;
+      int packetsSent = Config.PING_COUNT_PER_MEASUREMENT;
+      if (parser.getPacketsTransmitted() > 0) {
+        packetsSent = parser.getPacketsTransmitted();
+        packetLoss = 1 - ((double) parser.getPacketsReceived() / (double) packetsSent);
+      } else {
+        packetLoss = 1 - ((double) rrts.length / (double) Config.PING_COUNT_PER_MEASUREMENT);
       }
       measurementResult = constructResult(rrts, packetLoss,
         packetsSent, PING_METHOD_CMD);
@@ -458,9 +528,6 @@ public class PingTask extends MeasurementTask{
     } catch (SecurityException e) {
       Logger.e(e.getMessage());
       errorMsg += e.getMessage() + "\n";
-    } catch (NumberFormatException e) {
-      Logger.e(e.getMessage());
-      errorMsg += e.getMessage() + "\n";  
     } catch (InvalidParameterException e) {
       Logger.e(e.getMessage());
       errorMsg += e.getMessage() + "\n";
@@ -506,7 +573,7 @@ public class PingTask extends MeasurementTask{
       
       dataConsumed += pingTask.packetSizeByte * Config.PING_COUNT_PER_MEASUREMENT * 2;
       
-      result = constructResult(rrts, packetLoss,
+      result = constructResult(toArray(rrts), packetLoss,
         Config.PING_COUNT_PER_MEASUREMENT, PING_METHOD_JAVA);
     } catch (IllegalArgumentException e) {
       Logger.e(e.getMessage());
@@ -588,7 +655,7 @@ public class PingTask extends MeasurementTask{
       
       dataConsumed += pingTask.packetSizeByte * Config.PING_COUNT_PER_MEASUREMENT * 2;
       
-      result = constructResult(rrts, packetLoss,
+      result = constructResult(toArray(rrts), packetLoss,
         Config.PING_COUNT_PER_MEASUREMENT, PING_METHOD_HTTP);
     } catch (MalformedURLException e) {
       Logger.e(e.getMessage());
@@ -605,6 +672,262 @@ public class PingTask extends MeasurementTask{
     }
   }
 
+  /**
+   * Use HEAD requests on one keep-alive connection to emulate ping. The DNS lookup, TCP connect
+   * and TLS handshake of the connection are reported separately, so the RTT samples only cover
+   * sending a request and receiving the first byte of its response.
+   */
+  private MeasurementResult executeHttpKeepAlivePingTask() throws MeasurementError {
+    PingDesc pingTask = (PingDesc) this.measurementDesc;
+    String errorMsg = "";
+    MeasurementResult result = null;
+    KeepAliveConnection conn = null;
+
+    try {
+      URL url = new URL((pingTask.useHttps ? "https://" : "http://") + pingTask.target);
+      int timeOut = (int) (3000 * (double) pingTask.pingTimeoutSec /
+          Config.PING_COUNT_PER_MEASUREMENT);
+      conn = new KeepAliveConnection(url, timeOut);
+
+      double[] rrts = new double[Config.PING_COUNT_PER_MEASUREMENT];
+      int rrtCnt = 0;
+      for (int i = 0; i < Config.PING_COUNT_PER_MEASUREMENT; i++) {
+        try {
+          rrts[rrtCnt++] = conn.ping() / 1e6;
+        } catch (SSLPeerUnverifiedException e) {
+          // Will not get any better on the next connection
+          throw e;
+        } catch (SocketTimeoutException e) {
+          // Count the probe as lost and start over on a fresh connection
+          rrtCnt--;
+          conn.close();
+        } catch (IOException e) {
+          // Same for a connection that failed, keeping the samples so far
+          Logger.i("keep-alive HTTP ping lost a probe: " + e.getMessage());
+          errorMsg = e.getMessage() + "\n";
+          rrtCnt--;
+          conn.close();
+        }
+      }
+      rrts = Arrays.copyOf(rrts, rrtCnt);
+      Logger.i("keep-alive HTTP ping succeeds over " + conn.connects + " connection(s)");
+      Logger.i("RTT is " + Arrays.toString(rrts));
+      double packetLoss = 1
+          - ((double) rrtCnt / (double) Config.PING_COUNT_PER_MEASUREMENT);
+
+      dataConsumed += conn.bytesSent + conn.bytesReceived;
+
+      result = constructResult(rrts, packetLoss,
+        Config.PING_COUNT_PER_MEASUREMENT, PING_METHOD_HTTP_KEEPALIVE);
+      if (result != null) {
+        result.addResult("dns_lookup_ms", conn.dnsNanos / 1e6);
+        result.addResult("tcp_connect_ms", conn.connectNanos / 1e6);
+        if (pingTask.useHttps) {
+          result.addResult("tls_handshake_ms", conn.tlsNanos / 1e6);
+        }
+        result.addResult("http_connections", conn.connects);
+      }
+    } catch (MalformedURLException e) {
+      Logger.e(e.getMessage());
+      errorMsg += e.getMessage() + "\n";
+    } catch (IOException e) {
+      Logger.e(e.getMessage());
+      errorMsg += e.getMessage() + "\n";
+    } finally {
+      if (conn != null) {
+        conn.close();
+      }
+    }
+    if (result != null) {
+      return result;
+    } else {
+      Logger.i("keep-alive HTTP ping fails");
+      throw new MeasurementError(errorMsg);
+    }
+  }
+
+  /**
+   * A persistent HTTP/1.1 connection for sending HEAD requests. Setup phases are timed on the
+   * first connection; the server closing the connection leads to a transparent reconnect, which
+   * is counted in connects.
+   */
+  private static class KeepAliveConnection {
+    private static final byte[] HEADER_END = {'\r', '\n', '\r', '\n'};
+    private static final byte[] CONNECTION_CLOSE = "connection: close".getBytes();
+    private static final byte[] HTTP_1_0 = "HTTP/1.0".getBytes();
+
+    private final String host;
+    private final int port;
+    private final boolean https;
+    private final int timeOut;
+    private final byte[] request;
+    private final byte[] buffer = new byte[4096];
+
+    private Socket socket = null;
+    private InputStream in;
+    private OutputStream out;
+    // Whether the next request may go out on the current socket
+    private boolean reusable = false;
+
+    long dnsNanos = 0;
+    long connectNanos = 0;
+    long tlsNanos = 0;
+    int connects = 0;
+    long bytesSent = 0;
+    long bytesReceived = 0;
+
+    KeepAliveConnection(URL url, int timeOut) throws IOException {
+      this.host = url.getHost();
+      this.port = url.getPort() != -1 ? url.getPort() : url.getDefaultPort();
+      this.https = url.getProtocol().equals("https");
+      this.timeOut = timeOut;
+      String path = url.getFile().length() == 0 ? "/" : url.getFile();
+      String hostHeader = url.getPort() == -1 ? host : host + ":" + url.getPort();
+      this.request = ("HEAD " + path + " HTTP/1.1\r\n"
+          + "Host: " + hostHeader + "\r\n"
+          + "User-Agent: " + Util.prepareUserAgent() + "\r\n"
+          + "Connection: keep-alive\r\n\r\n").getBytes("US-ASCII");
+    }
+
+    /**
+     * @return nanoseconds between sending a request and the first byte of the response
+     */
+    long ping() throws IOException {
+      boolean reused = reusable;
+      if (!reusable) {
+        connect();
+      }
+      try {
+        return exchange();
+      } catch (SocketTimeoutException e) {
+        throw e;
+      } catch (IOException e) {
+        if (!reused) {
+          throw e;
+        }
+        // The server dropped the idle connection, retry once on a new one
+        Logger.i("keep-alive connection closed by server: " + e.getMessage());
+        connect();
+        return exchange();
+      }
+    }
+
+    private void connect() throws IOException {
+      close();
+      long start = System.nanoTime();
+      InetAddress addr = InetAddress.getByName(host);
+      long resolved = System.nanoTime();
+      Socket s = new Socket();
+      try {
+        s.setTcpNoDelay(true);
+        s.connect(new InetSocketAddress(addr, port), timeOut);
+        s.setSoTimeout(timeOut);
+        long connected = System.nanoTime();
+        if (https) {
+          SSLSocket ssl = (SSLSocket) ((SSLSocketFactory) SSLSocketFactory.getDefault())
+              .createSocket(s, host, port, true);
+          ssl.startHandshake();
+          // The socket factory does not check the certificate is for this host
+          if (!HttpsURLConnection.getDefaultHostnameVerifier().verify(host, ssl.getSession())) {
+            ssl.close();
+            throw new SSLPeerUnverifiedException("Certificate does not match " + host);
+          }
+          if (connects == 0) {
+            tlsNanos = System.nanoTime() - connected;
+          }
+          s = ssl;
+        }
+        if (connects == 0) {
+          dnsNanos = resolved - start;
+          connectNanos = connected - resolved;
+        }
+      } catch (IOException e) {
+        s.close();
+        throw e;
+      }
+      connects++;
+      socket = s;
+      in = s.getInputStream();
+      out = s.getOutputStream();
+      reusable = true;
+    }
+
+    private long exchange() throws IOException {
+      long sent = System.nanoTime();
+      out.write(request);
+      out.flush();
+      bytesSent += request.length;
+
+      int n = in.read(buffer, 0, buffer.length);
+      long firstByte = System.nanoTime();
+      if (n < 0) {
+        reusable = false;
+        throw new EOFException("connection closed before response");
+      }
+      // Read the rest of the response header, a HEAD response has no body
+      int headerLength = n;
+      while (indexOfIgnoreCase(buffer, headerLength, HEADER_END) < 0) {
+        if (headerLength == buffer.length) {
+          // Keep only the tail, enough to spot the end of the header
+          System.arraycopy(buffer, headerLength - 3, buffer, 0, 3);
+          headerLength = 3;
+        }
+        int read = in.read(buffer, headerLength, buffer.length - headerLength);
+        if (read < 0) {
+          reusable = false;
+          throw new EOFException("connection closed inside response header");
+        }
+        n += read;
+        headerLength += read;
+      }
+      bytesReceived += n;
+      reusable = indexOfIgnoreCase(buffer, headerLength, CONNECTION_CLOSE) < 0
+          && !startsWith(buffer, headerLength, HTTP_1_0);
+      return firstByte - sent;
+    }
+
+    void close() {
+      reusable = false;
+      if (socket != null) {
+        try {
+          socket.close();
+        } catch (IOException e) {
+          Logger.w("Unable to close keep-alive connection " + e.getMessage());
+        }
+        socket = null;
+      }
+    }
+
+    private static int indexOfIgnoreCase(byte[] data, int length, byte[] lowerCasePattern) {
+      outer:
+      for (int i = 0; i <= length - lowerCasePattern.length; i++) {
+        for (int j = 0; j < lowerCasePattern.length; j++) {
+          byte b = data[i + j];
+          if (b >= 'A' && b <= 'Z') {
+            b += 'a' - 'A';
+          }
+          if (b != lowerCasePattern[j]) {
+            continue outer;
+          }
+        }
+        return i;
+      }
+      return -1;
+    }
+
+    private static boolean startsWith(byte[] data, int length, byte[] prefix) {
+      if (length < prefix.length) {
+        return false;
+      }
+      for (int i = 0; i < prefix.length; i++) {
+        if (data[i] != prefix[i]) {
+          return false;
+        }
+      }
+      return true;
+    }
+  }
+
   @Override
   public String toString() {
     PingDesc desc = (PingDesc) measurementDesc;
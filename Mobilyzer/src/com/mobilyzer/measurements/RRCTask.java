@@ -56,6 +56,7 @@ import com.mobilyzer.MeasurementResult.TaskProgress;
 import com.mobilyzer.exceptions.MeasurementError;
 import com.mobilyzer.util.Logger;
 import com.mobilyzer.util.MeasurementJsonConvertor;
+import com.mobilyzer.util.PacketTrainProber;
 import com.mobilyzer.util.PhoneUtils;
 import com.mobilyzer.util.Util;
 
@@ -93,6 +94,11 @@ public class RRCTask extends MeasurementTask {
   //Track data consumption for this task to avoid exceeding user's limit
   public static long data_consumed = 0;
 
+  // Echo probes of the current inference run share one channel, opened on first use
+  private PacketTrainProber prober;
+  // Echo replies later than this are lost, and an interval with no reply is recorded as this
+  private static final int REPLY_TIMEOUT_MS = 7000;
+
 
   /**
    * Stores parameters for the RRC inference task
@@ -133,6 +139,17 @@ public class RRCTask extends MeasurementTask {
     // Whether RRC result is visible to users
     public boolean RESULT_VISIBILITY = false;
 
+    // How the demotion timers are inferred: measure every interval from 0 to size, or bisect
+    // over the intervals until both timers are located
+    public static final String SEARCH_MODE_GRID = "grid";
+    public static final String SEARCH_MODE_BISECT = "bisect";
+    String searchMode = SEARCH_MODE_GRID;
+    // Demotion timers located by the bisection, in units of GRANULARITY. -1 if not located
+    int dchDemotionTimer = -1;
+    int fachDemotionTimer = -1;
+    // Number of probes the bisection took, each probe is one run of inferDemotionHelper
+    int searchProbes = 0;
+
     /*
      * For the upper-layer tests, a series of tests are made for different inter-packet intervals,
      * in order. "Times" indicates the inter-packet intervals, the other fields store the results.
@@ -180,6 +197,7 @@ public class RRCTask extends MeasurementTask {
       SIZES = in.readByte() != 0;
       RESULT_VISIBILITY = in.readByte() != 0;
       GIVEUP_THRESHHOLD = in.readInt();
+      searchMode = in.readString();
       Object[] temp = in.readArray(Integer.class.getClassLoader());
       times = Arrays.copyOf(temp, temp.length, Integer[].class);
     }
@@ -215,6 +233,7 @@ public class RRCTask extends MeasurementTask {
       dest.writeByte((byte) (SIZES ? 1 : 0));
       dest.writeByte((byte) (RESULT_VISIBILITY ? 1 : 0));
       dest.writeInt(GIVEUP_THRESHHOLD);
+      dest.writeString(searchMode);
       dest.writeArray(times);
     }
 
@@ -223,6 +242,15 @@ public class RRCTask extends MeasurementTask {
       if (TCP) result.addResult("tcp", tcpTest);
       if (DNS) result.addResult("dns", dnsTest);
       result.addResult("times", times);
+      if (SEARCH_MODE_BISECT.equals(searchMode)) {
+        if (dchDemotionTimer >= 0) {
+          result.addResult("dch_demotion_timer_ms", dchDemotionTimer * GRANULARITY);
+        }
+        if (fachDemotionTimer >= 0) {
+          result.addResult("fach_demotion_timer_ms", fachDemotionTimer * GRANULARITY);
+        }
+        result.addResult("search_probes", searchProbes);
+      }
       return result;
     }
 
@@ -377,6 +405,11 @@ public class RRCTask extends MeasurementTask {
           this.GIVEUP_THRESHHOLD = Integer.parseInt(val);
         }
         Logger.d("param: GIVEUP_THRESHHOLD " + this.GIVEUP_THRESHHOLD);
+        // Grid sweep or bisection for the demotion timers
+        if (SEARCH_MODE_BISECT.equals(params.get("search_mode"))) {
+          this.searchMode = SEARCH_MODE_BISECT;
+        }
+        Logger.d("param: search_mode " + this.searchMode);
 
         // Default assumed timers for the upper layer tests (HTTP, DNS, TCP),
         // in units of GRANULARITY. These are set via a comma-separated list
@@ -532,6 +565,11 @@ public class RRCTask extends MeasurementTask {
 
     ArrayList<RrcSizeTestData> packetSizes;
 
+    // Which intervals were measured. When only some were, as with the bisection, the others are
+    // left out of the upload instead of being reported as timeouts.
+    boolean[] measured;
+    boolean measuredOnly = false;
+
     // Unique incrementing value that identifies this set of tests.
     long testId;
 
@@ -552,6 +590,7 @@ public class RRCTask extends MeasurementTask {
       signalStrengthLarge = new int[size];
       errorCountLarge = new int[size];
       errorCountSmall = new int[size];
+      measured = new boolean[size];
 
       this.testId = testId;
 
@@ -577,9 +616,12 @@ public class RRCTask extends MeasurementTask {
     }
 
     public String[] toJSON(String networktype, String phoneId) {
-      String[] returnval = new String[rttsSmall.length];
+      ArrayList<String> returnval = new ArrayList<String>(rttsSmall.length);
       try {
         for (int i = 0; i < rttsSmall.length; i++) {
+          if (measuredOnly && !measured[i]) {
+            continue;
+          }
           JSONObject subtest = new JSONObject();
           subtest.put("rtt_low", rttsSmall[i]);
           subtest.put("rtt_high", rttsLarge[i]);
@@ -593,13 +635,13 @@ public class RRCTask extends MeasurementTask {
           subtest.put("time_delay", i);
           subtest.put("test_id", testId);
           subtest.put("phone_id", phoneId);
-          returnval[i] = subtest.toString();
+          returnval.add(subtest.toString());
           Logger.w("Test ID for rrc inference test was " + this.testId);
         }
       } catch (JSONException e) {
         Logger.e("Error converting RRC data to JSON");
       }
-      return returnval;
+      return returnval.toArray(new String[returnval.size()]);
     }
 
     /**
@@ -641,6 +683,7 @@ public class RRCTask extends MeasurementTask {
       this.errorCountSmall[index] = errorLow;
       this.signalStrengthLarge[index] = signalHigh;
       this.signalStrengthSmall[index] = signalLow;
+      this.measured[index] = true;
     }
 
     public void setRrcSizeTestData(int index, int size, long result, long testId)
@@ -900,15 +943,8 @@ public class RRCTask extends MeasurementTask {
         desc = inferDemotion(serverAddr, desc, data, utils);
 
         Logger.d("About to save data");
-
-        try {
-          Logger.w("RRC: update the model on the GAE datastore");
-          uploadRrcInferenceData(data);
-          Logger.d("Saving data complete");
-        } catch (IOException e) {
-          e.printStackTrace();
-          Logger.e("Data not saved: " + e.getMessage());
-        }
+        storeRrcInferenceData(data);
+        Logger.d("Saving data complete");
       }
 
       // Check if the upper layer tasks are enabled
@@ -933,7 +969,7 @@ public class RRCTask extends MeasurementTask {
         if (desc.SIZES) {
           Logger.w("Start size dependence task");
           runSizeThresholdTest(desc.times, desc, data, desc.testId);
-          uploadRrcInferenceSizeData(data);
+          storeRrcInferenceSizeData(data);
         }
       }
 
@@ -948,24 +984,19 @@ public class RRCTask extends MeasurementTask {
       e.printStackTrace();
     } catch (MeasurementError e) {
       if (e.getMessage().equals("Rescheduled")) {
-        try {
-          // If the RRC task is enabled and we get partial data
-          if (desc.RRC && data.rttsSmall[0] != 7000) {
-            Logger.i("RRC Reschedule: update the model on the GAE datastore");
-            uploadRrcInferenceData(data);
-            Logger.d("RRC Reschedule: Saving data complete");
-          }
-          else {
-            Logger.i("RRC Reschedule: no model available");
-          }
-        } catch (IOException ee) {
-          ee.printStackTrace();
-          Logger.e("Data not saved: " + ee.getMessage());
+        // If the RRC task is enabled and we get partial data
+        if (desc.RRC && data.rttsSmall[0] != 7000) {
+          Logger.i("RRC Reschedule: update the model on the GAE datastore");
+          storeRrcInferenceData(data);
+          Logger.d("RRC Reschedule: Saving data complete");
+        }
+        else {
+          Logger.i("RRC Reschedule: no model available");
         }
         // Check if the upper layer tasks are enabled and we get partial results
         if (desc.runUpperLayerTests && desc.SIZES && !data.packetSizes.isEmpty()) {
           Logger.i("RRC Reschedule: update the size on the GAE datastore, array size " + data.packetSizes.size());
-          uploadRrcInferenceSizeData(data);
+          storeRrcInferenceSizeData(data);
           Logger.d("RRC Reschedule: Saving data complete");
         }
         else {
@@ -973,63 +1004,50 @@ public class RRCTask extends MeasurementTask {
         }
       }
       throw e;
+    } finally {
+      if (prober != null) {
+        prober.close();
+        prober = null;
+      }
+      // All the measurement traffic is done, the stored rows can go out now. Whatever fails is
+      // retried at the next checkin.
+      new Checkin(PhoneUtils.getGlobalContext()).uploadRrcResults();
     }
 
     return desc;
   }
 
   /**
-   * Impact of packet sizes on rrc inference results.
+   * Impact of packet sizes on rrc inference results. Stored for upload once the run is over.
    * 
    * @param sizeData Contains data to upload
    */
-  private void uploadRrcInferenceSizeData(RRCTestData sizeData) {
+  private void storeRrcInferenceSizeData(RRCTestData sizeData) {
     PhoneUtils phoneUtils = PhoneUtils.getPhoneUtils();
-    Checkin checkin = new Checkin(PhoneUtils.getGlobalContext());
     DeviceInfo info = phoneUtils.getDeviceInfo();
     String network_id = phoneUtils.getNetwork();
     String[] sizeParameters = sizeData.sizeDataToJSON(network_id, info.deviceId);
-
-    try {
-      for (String parameter : sizeParameters) {
-        Logger.w("Uploading RRC size data: " + parameter);
-        String response = checkin.serviceRequest("rrc/uploadRRCInferenceSizes", parameter);
-        Logger.w("Response from GAE: " + response);
-      }
-    } catch (IOException e) {
-      // TODO Auto-generated catch block
-      e.printStackTrace();
-    }
+    Logger.w("Storing " + sizeParameters.length + " RRC size results");
+    Checkin.saveRrcResults(PhoneUtils.getGlobalContext(), "rrc/uploadRRCInferenceSizes",
+        sizeParameters);
   }
 
   /**
-   * Send the RRC data to the server.
+   * Store the RRC data for sending to the server once the run is over, so that uploads do not
+   * change the RRC state while it is being measured.
    * 
    * Sent as a separate call because the data is formatted in a different, more complicated way than
    * other measurement tasks.
    * 
    * @param data Contains data to upload
-   * @throws IOException
    */
-  private void uploadRrcInferenceData(RRCTestData data) throws IOException {
+  private void storeRrcInferenceData(RRCTestData data) {
     PhoneUtils phoneUtils = PhoneUtils.getPhoneUtils();
-    Checkin checkin = new Checkin(PhoneUtils.getGlobalContext());
     DeviceInfo info = phoneUtils.getDeviceInfo();
     String network_id = phoneUtils.getNetwork();
     String[] parameters = data.toJSON(network_id, info.deviceId);
-    try {
-      for (String parameter : parameters) {
-        Logger.w("Uploading RRC raw data: " + parameter);
-        String response = checkin.serviceRequest("rrc/uploadRRCInference", parameter);
-        Logger.w("Response from GAE: " + response);
-
-        Logger.i("TaskSchedule.uploadMeasurementResult() complete");
-      }
-    } catch (IOException e) {
-      throw new IOException(e.getMessage());
-    } catch (NumberFormatException e) {
-      e.printStackTrace();
-    }
+    Logger.w("Storing " + parameters.length + " RRC raw results");
+    Checkin.saveRrcResults(PhoneUtils.getGlobalContext(), "rrc/uploadRRCInference", parameters);
   }
 
 
@@ -1442,6 +1460,13 @@ public class RRCTask extends MeasurementTask {
    */
   private RRCDesc inferDemotion(InetAddress serverAddr, RRCDesc desc, RRCTestData data,
       PhoneUtils utils) throws InterruptedException, IOException, MeasurementError {
+    if (RRCDesc.SEARCH_MODE_BISECT.equals(desc.searchMode)) {
+      if (inferDemotionBisect(serverAddr, desc, data, utils)) {
+        return desc;
+      }
+      Logger.w("Bisection could not tell the RRC states apart, falling back to the grid sweep");
+      data.measuredOnly = false;
+    }
     Logger.d("Demotion basic test");
 
     for (int i = 0; i <= desc.size; i++) {
@@ -1464,6 +1489,176 @@ public class RRCTask extends MeasurementTask {
     return desc;
   }
 
+  /**
+   * RTTs measured at one inter-packet interval during the bisection. Probes that were lost or
+   * disturbed by other traffic are counted but give no sample.
+   */
+  static class GapSamples {
+    final ArrayList<Long> rttsLarge = new ArrayList<Long>();
+    final ArrayList<Long> rttsSmall = new ArrayList<Long>();
+    int probes = 0;
+
+    void add(long[] rtts) {
+      probes++;
+      if (rtts[0] >= 0 && rtts[1] >= 0) {
+        rttsLarge.add(rtts[0]);
+        rttsSmall.add(rtts[1]);
+      }
+    }
+
+    static long median(ArrayList<Long> rtts) {
+      if (rtts.isEmpty()) {
+        return -1;
+      }
+      Long[] sorted = rtts.toArray(new Long[rtts.size()]);
+      Arrays.sort(sorted);
+      return sorted[sorted.length / 2];
+    }
+  }
+
+  // Samples at an interval must disagree with the other verdict by this many to be trusted
+  private static final int CONFIDENCE_MARGIN = 2;
+  // Probes at an interval after which the majority decides anyway
+  private static final int MAX_PROBES_PER_GAP = 5;
+  // Probes taken at the two ends of the range to learn the RTT of each state
+  private static final int BASELINE_PROBES = 3;
+  // Below this difference between the DCH and IDLE RTTs, in ms, the states are not told apart
+  private static final long MIN_STATE_RTT_GAP = 100;
+
+  /**
+   * Locates the DCH to FACH and FACH to IDLE demotion timers by bisection over the inter-packet
+   * interval instead of measuring every interval.
+   * <ol>
+   * <li>Interval 0 (still in DCH) and the largest interval (IDLE) are probed to learn the RTT of
+   * each end state.</li>
+   * <li>After the DCH timer, large packets need a promotion and their RTT rises. A quarter of the
+   * way from the DCH RTT to the IDLE RTT is taken as the threshold, since promoting from FACH is
+   * faster than from IDLE.</li>
+   * <li>Small packets go out on FACH without promotion, so their RTT only rises after the FACH
+   * timer. The midpoint between the two end states is the threshold.</li>
+   * </ol>
+   * Each interval is probed until its samples agree on a side of the threshold by
+   * CONFIDENCE_MARGIN, or MAX_PROBES_PER_GAP probes were taken. Samples are shared between the
+   * two searches.
+   *
+   * @return false if the end states could not be told apart, the caller should sweep the grid
+   */
+  private boolean inferDemotionBisect(InetAddress serverAddr, RRCDesc desc, RRCTestData data,
+      PhoneUtils utils) throws InterruptedException, IOException, MeasurementError {
+    Logger.d("Demotion bisection test");
+    GapSamples[] samples = new GapSamples[desc.size + 1];
+    data.measuredOnly = true;
+
+    for (int i = 0; i < BASELINE_PROBES; i++) {
+      probeGap(serverAddr, 0, samples, data, desc, utils);
+      probeGap(serverAddr, desc.size, samples, data, desc, utils);
+    }
+    long dchLarge = GapSamples.median(samples[0].rttsLarge);
+    long dchSmall = GapSamples.median(samples[0].rttsSmall);
+    long idleLarge = GapSamples.median(samples[desc.size].rttsLarge);
+    long idleSmall = GapSamples.median(samples[desc.size].rttsSmall);
+    Logger.d("RRC bisection baselines: DCH " + dchLarge + "/" + dchSmall + " ms, IDLE "
+        + idleLarge + "/" + idleSmall + " ms");
+    if (dchLarge < 0 || idleLarge < 0 || idleLarge - dchLarge < MIN_STATE_RTT_GAP
+        || idleSmall - dchSmall < MIN_STATE_RTT_GAP) {
+      desc.searchProbes = countProbes(samples);
+      return false;
+    }
+    long largeThreshold = dchLarge + (idleLarge - dchLarge) / 4;
+    long smallThreshold = (dchSmall + idleSmall) / 2;
+
+    // Invariant: interval lo is still in the state, hi has left it
+    int lo = 0;
+    int hi = desc.size;
+    while (hi - lo > 1) {
+      int mid = (lo + hi) / 2;
+      if (isDemoted(serverAddr, mid, true, largeThreshold, samples, data, desc, utils)) {
+        hi = mid;
+      } else {
+        lo = mid;
+      }
+    }
+    desc.dchDemotionTimer = hi;
+
+    // The radio cannot reach IDLE before it leaves DCH
+    hi = desc.size;
+    while (hi - lo > 1) {
+      int mid = (lo + hi) / 2;
+      if (isDemoted(serverAddr, mid, false, smallThreshold, samples, data, desc, utils)) {
+        hi = mid;
+      } else {
+        lo = mid;
+      }
+    }
+    desc.fachDemotionTimer = hi;
+    desc.searchProbes = countProbes(samples);
+    Logger.i("RRC bisection: DCH timer " + desc.dchDemotionTimer * desc.GRANULARITY
+        + " ms, FACH timer " + desc.fachDemotionTimer * desc.GRANULARITY + " ms, after "
+        + desc.searchProbes + " probes");
+    return true;
+  }
+
+  /**
+   * Whether the radio had left the state by interval gap, judged from the large packet RTTs for
+   * the DCH timer or the small packet ones for the FACH timer. Probes the interval until the
+   * verdict is confident.
+   */
+  private boolean isDemoted(InetAddress serverAddr, int gap, boolean large, long threshold,
+      GapSamples[] samples, RRCTestData data, RRCDesc desc, PhoneUtils utils)
+      throws InterruptedException, IOException, MeasurementError {
+    while (true) {
+      int above = 0;
+      int below = 0;
+      if (samples[gap] != null) {
+        for (long rtt : large ? samples[gap].rttsLarge : samples[gap].rttsSmall) {
+          if (rtt > threshold) {
+            above++;
+          } else {
+            below++;
+          }
+        }
+      }
+      if (above - below >= CONFIDENCE_MARGIN) {
+        return true;
+      }
+      if (below - above >= CONFIDENCE_MARGIN) {
+        return false;
+      }
+      if (samples[gap] != null && samples[gap].probes >= MAX_PROBES_PER_GAP) {
+        Logger.d("RRC bisection: no confident verdict at " + gap + ", " + above + " above and "
+            + below + " below");
+        return above > below;
+      }
+      probeGap(serverAddr, gap, samples, data, desc, utils);
+    }
+  }
+
+  private void probeGap(InetAddress serverAddr, int gap, GapSamples[] samples, RRCTestData data,
+      RRCDesc desc, PhoneUtils utils) throws InterruptedException, IOException, MeasurementError {
+    try {
+      checkIfWifi();
+    } catch (MeasurementError e) {
+      throw new MeasurementError("Rescheduled");
+    }
+    if (stopFlag) {
+      throw new MeasurementError("Cancelled");
+    }
+    if (samples[gap] == null) {
+      samples[gap] = new GapSamples();
+    }
+    samples[gap].add(inferDemotionHelper(serverAddr, gap, data, desc, utils));
+  }
+
+  private static int countProbes(GapSamples[] samples) {
+    int probes = 0;
+    for (GapSamples gapSamples : samples) {
+      if (gapSamples != null) {
+        probes += gapSamples.probes;
+      }
+    }
+    return probes;
+  }
+
   @Override
   public String toString() {
     RRCDesc desc = (RRCDesc) measurementDesc;
@@ -1496,70 +1691,6 @@ public class RRCTask extends MeasurementTask {
     Thread.sleep(timeToSleep);
   }
 
-  /**
-   * Sends a bunch of UDP packets of the size indicated and wait for the response.
-   * 
-   * Counts how long it takes for all the packets to return. PAckets are currently not labelled: the
-   * total time is the time for the first packet to leave until the last packet arrives. AFter 7000
-   * ms it is assumed packets are lost and the socket times out. In that case, the number of packets
-   * lost is recorded.
-   * 
-   * @param serverAddr server to which to send the packets
-   * @param size size of the packets
-   * @param num number of packets to send
-   * @param packetSize size of the packets sent
-   * @param port port to send the packets to
-   * @return first value: the amount of time to send all packets and get a response. second value:
-   *         number of packets lost, on a timeout.
-   * @throws IOException
-   */
-  public static long[] sendMultiPackets(InetAddress serverAddr, int size, int num, int packetSize,
-      int port) throws IOException {
-
-    long startTime = 0;
-    long endTime = 0;
-    byte[] buf = new byte[size];
-    byte[] rcvBuf = new byte[packetSize];
-    long[] retval = {-1, -1};
-    long numLost = 0;
-    int i = 0;
-    long dataConsumedThisTask = 0;
-
-    DatagramSocket socket = new DatagramSocket();
-    DatagramPacket packetRcv = new DatagramPacket(rcvBuf, rcvBuf.length);
-    DatagramPacket packet = new DatagramPacket(buf, buf.length, serverAddr, port);
-    
-    // number * (packet sent + packet received)
-    dataConsumedThisTask += num * (size + packetSize);
-
-    try {
-      socket.setSoTimeout(7000);
-      startTime = System.currentTimeMillis();
-      Logger.d("Sending packet, waiting for response ");
-      for (i = 0; i < num; i++) {
-        socket.send(packet);
-      }
-      for (i = 0; i < num; i++) {
-        socket.receive(packetRcv);
-        if (i == 0) {
-
-          endTime = System.currentTimeMillis();
-        }
-      }
-    } catch (SocketTimeoutException e) {
-      Logger.d("Timed out");
-      numLost += (num - i);
-      socket.close();
-    }
-    Logger.d("Sending complete: " + endTime);
-
-    retval[0] = endTime - startTime;
-    retval[1] = numLost;
-
-    incrementData(dataConsumedThisTask);
-    return retval;
-  }
-
   /**
    * Helper function that sends a single packet and receives an empty packet back.
    * 
@@ -1618,35 +1749,71 @@ public class RRCTask extends MeasurementTask {
     return endTime - startTime;
   }
 
+  /**
+   * Sends a train of datagrams on the prober of this run, opening it if needed, and charges the
+   * bytes it took to the task's data consumption.
+   */
+  private PacketTrainProber.Train sendTrain(InetAddress serverAddr, RRCDesc desc, int size,
+      int count) throws IOException {
+    if (prober == null) {
+      // The size dependence test goes up to 1 KB whatever MAX is
+      prober = new PacketTrainProber(serverAddr, desc.port, Math.max(Math.max(desc.MAX, 1024),
+          desc.MIN));
+    }
+    long before = prober.getBytesSent() + prober.getBytesReceived();
+    PacketTrainProber.Train train =
+        prober.sendTrain(size, count, REPLY_TIMEOUT_MS * 1000000L);
+    incrementData(prober.getBytesSent() + prober.getBytesReceived() - before);
+    return train;
+  }
+
+  /**
+   * Waits the given number of GRANULARITY units after the radio last carried traffic for the
+   * train.
+   */
+  private static void waitAfter(PacketTrainProber.Train train, int wait, RRCDesc desc)
+      throws InterruptedException {
+    Logger.d("Wait for n ms: " + wait * desc.GRANULARITY);
+    PacketTrainProber.waitUntil(train.getEndNanos() + wait * desc.GRANULARITY * 1000000L);
+  }
+
+  /**
+   * @return time to the first reply of the train in ms, -1 if nothing came back
+   */
+  private static long firstReplyMs(PacketTrainProber.Train train) {
+    long nanos = train.getFirstReplyNanos();
+    return nanos < 0 ? -1 : nanos / 1000000;
+  }
+
   /**
    * Performs a single RRC inference test to account for packet sizes.
    * 
-   * Sends a packet, waits for the specified length of time, then sends a cluster of packets of the
-   * specified size.
+   * Sends a packet, waits for the specified length of time, then sends a packet of the specified
+   * size.
    * 
    * @param serverAddr Echo server to calculate round trip
-   * @param wait Time to wait between packets, in milliseconds.
+   * @param wait Time to wait between packets, in units of GRANULARITY.
    * @param desc Holds parameters for the RRC inference task
    * @param size Size, in bytes, of the packet to send.
-   * @return The amount of time to send all packets and get a response.
+   * @return The round trip time of the packet, -1 if it was lost or there was always competing
+   *         traffic.
    * @throws IOException
    * @throws InterruptedException
    */
-  public static long inferDemotionPacketSize(InetAddress serverAddr, int wait, RRCDesc desc,
+  private long inferDemotionPacketSize(InetAddress serverAddr, int wait, RRCDesc desc,
       int size) throws IOException, InterruptedException {
     long retval = -1;
     for (int j = 0; j < desc.GIVEUP_THRESHHOLD; j++) {
       Logger.d("Active inference: determine packet size, size " + size + " interval " + wait);
 
       // Induce the highest power state
-      sendPacket(serverAddr, desc.MAX, desc.MIN, desc.port);
+      PacketTrainProber.Train promotion = sendTrain(serverAddr, desc, desc.MAX, 1);
 
       // WAit for the specified amount of time
-      waitTime(wait * desc.GRANULARITY, true);
+      waitAfter(promotion, wait, desc);
 
       // Send the specified packet size
-      long[] rtts = sendMultiPackets(serverAddr, size, 1, desc.MIN, desc.port);
-      long rttPacket = rtts[0];
+      long rttPacket = firstReplyMs(sendTrain(serverAddr, desc, size, 1));
 
       PacketMonitor packetMonitor = new PacketMonitor();
       if (!packetMonitor.isTrafficInterfering(3, 3)) {
@@ -1667,27 +1834,28 @@ public class RRCTask extends MeasurementTask {
    * 
    * <ol>
    * <li>Induce the highest-power RRC state by sending a large packet.</li>
-   * <li>Wait the indicated number of seconds.</li>
-   * <li>Send a series of 10 large packets at once. Measure: a) Time for all packets to be echoed
-   * back b) number of packets lost, if any c) associated signal strength d) error rate is currently
-   * not implemented.</li>
+   * <li>Wait the indicated time after its echo came back.</li>
+   * <li>Send a series of 10 large packets at once. Measure: a) Time for the first packet to be
+   * echoed back b) number of packets lost, if any c) associated signal strength d) error rate is
+   * currently not implemented.</li>
+   * <li>Wait the indicated time again, then do the same with 10 small packets.</li>
    * <li>Check if the expected number of packets were sent while performing a test. If too many
    * packets were sent, abort.</li>
    * </ol>
    * 
    * @param serverAddr Echo server to calculate round trip
-   * @param wait Time in milliseconds to pause between packets sent
+   * @param wait Time to pause between packets sent, in units of GRANULARITY
    * @param data Stores the results of the RRC inference tests
    * @param desc Stores parameters for the RRC inference tests
    * @param index Index of the current test, corresponds to the inter-packet time in intervals of
    *        half milliseconds
    * @param utils Used to retrieve the phone's RSSI at the time of collecting the data
-   * @return first value: the amount of time to send all small packets and get a response. Second
-   *         value: time to send all large packets and get a response.
+   * @return first value: the time for the first large packet to be echoed. Second value: likewise
+   *         for the small packets. -1 if nothing came back or there was always competing traffic.
    * @throws IOException
    * @throws InterruptedException
    */
-  public static long[] inferDemotionHelper(InetAddress serverAddr, int wait, RRCTestData data,
+  private long[] inferDemotionHelper(InetAddress serverAddr, int wait, RRCTestData data,
       RRCDesc desc, int index, PhoneUtils utils) throws IOException, InterruptedException {
     /**
      * Once we generalize the RRC state inference problem, this is what we will use (since in
@@ -1714,25 +1882,25 @@ public class RRCTask extends MeasurementTask {
       PacketMonitor packetMonitor = new PacketMonitor();
 
       // Induce the highest power state
-      sendPacket(serverAddr, desc.MAX, desc.MIN, desc.port);
+      PacketTrainProber.Train promotion = sendTrain(serverAddr, desc, desc.MAX, 1);
 
       // WAit for the specified amount of time
-      waitTime(wait * desc.GRANULARITY, true);
+      waitAfter(promotion, wait, desc);
 
       // Send a bunch of large packets, all at once, and take measurements on the result
 //      signalStrengthLarge = utils.getCurrentRssi();
-      long[] retval = sendMultiPackets(serverAddr, desc.MAX, 10, desc.MIN, desc.port);
-      packetsLostSmall = (int) retval[1];
-      rttLargePacket = retval[0];
+      PacketTrainProber.Train large = sendTrain(serverAddr, desc, desc.MAX, 10);
+      packetsLostLarge = large.getLost();
+      rttLargePacket = firstReplyMs(large);
 
       // wait for the specified amount of time
-      waitTime(wait * desc.GRANULARITY, true);
+      waitAfter(large, wait, desc);
 
       // Send a bunch of small packets, all at once, and take measurements on the result
 //      signalStrengthSmall = utils.getCurrentRssi();
-      retval = sendMultiPackets(serverAddr, desc.MIN, 10, desc.MIN, desc.port);
-      packetsLostLarge = (int) retval[1];
-      rttSmallPacket = retval[0];
+      PacketTrainProber.Train small = sendTrain(serverAddr, desc, desc.MIN, 10);
+      packetsLostSmall = small.getLost();
+      rttSmallPacket = firstReplyMs(small);
 
       if (!packetMonitor.isTrafficInterfering(21, 21)) {
         break;
@@ -1753,8 +1921,10 @@ public class RRCTask extends MeasurementTask {
         + packetsLostSmall + " " + packetsLostLarge);
 
     long[] retval = {rttLargePacket, rttSmallPacket};
-    data.updateAll(index, (int) rttLargePacket, (int) rttSmallPacket, packetsLostSmall,
-        packetsLostLarge, errorCountLarge, errorCountSmall, signalStrengthLarge,
+    // No reply at all is stored as a timeout, like an interval that was never measured
+    data.updateAll(index, rttLargePacket < 0 ? REPLY_TIMEOUT_MS : (int) rttLargePacket,
+        rttSmallPacket < 0 ? REPLY_TIMEOUT_MS : (int) rttSmallPacket, packetsLostLarge,
+        packetsLostSmall, errorCountLarge, errorCountSmall, signalStrengthLarge,
         signalStrengthSmall);
 
     return retval;
@@ -20,11 +20,8 @@ import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.ExecutionException;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
-import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 
 import org.json.JSONArray;
@@ -38,6 +35,7 @@ import com.mobilyzer.MeasurementDesc;
 import com.mobilyzer.MeasurementResult;
 import com.mobilyzer.MeasurementTask;
 import com.mobilyzer.exceptions.MeasurementError;
+import com.mobilyzer.measurements.SubtaskExecutor.Subtask;
 import com.mobilyzer.measurements.TracerouteTask.TracerouteDesc;
 import com.mobilyzer.util.Logger;
 import com.mobilyzer.util.MeasurementJsonConvertor;
@@ -52,19 +50,23 @@ import android.os.Parcelable;
  * 
  * Sequential Task is a measurement task that can execute more than one measurement task 
  * in series.
+ * 
+ * Subtasks run one by one on the shared SubtaskExecutor pool, each with a deadline of twice its
+ * duration. The thread calling call() waits for each one no longer than its deadline, counted
+ * from when it starts, so a subtask that hangs without reacting to stop() is abandoned rather
+ * than holding up the rest. It is reported as timed out, like in the other composite tasks.
+ * The task owns no threads, so clones made on every reschedule leave nothing behind.
  */
 public class SequentialTask extends MeasurementTask{
   private List<MeasurementTask> tasks;
 
-  private ExecutorService executor;
-
   // Type name for internal use
   public static final String TYPE = "sequential";
   // Human readable name for the task
   public static final String DESCRIPTOR = "sequential";
   private volatile boolean stopFlag;
   private long duration;
-  private volatile MeasurementTask currentTask;
+  private volatile Subtask currentTask;
 
   public static class SequentialDesc extends MeasurementDesc { 
 	  
@@ -151,8 +153,6 @@ public class SequentialTask extends MeasurementTask{
 	    super(new SequentialDesc(desc.key, desc.startTime, desc.endTime,
 	      desc.intervalSec, desc.count, desc.priority, desc.contextIntervalSec,
 	      desc.parameters));
-	    //we are using executor because it has builtin support for execution timeouts.
-	    executor=Executors.newSingleThreadExecutor();
 	    long totalduration=0;
 	    this.tasks=(List<MeasurementTask>)(((SequentialDesc)getDescription()).subTasks).clone();
 	    for(MeasurementTask mt: tasks){
@@ -168,8 +168,6 @@ public class SequentialTask extends MeasurementTask{
       desc.intervalSec, desc.count, desc.priority, desc.contextIntervalSec,
       desc.parameters));
     this.tasks=(List<MeasurementTask>) tasks.clone();
-    //we are using executor because it has builtin support for execution timeouts.
-    executor=Executors.newSingleThreadExecutor();
     long totalduration=0;
     for(MeasurementTask mt: tasks){
       totalduration+=mt.getDuration();
@@ -184,7 +182,6 @@ public class SequentialTask extends MeasurementTask{
 //    ClassLoader loader = Thread.currentThread().getContextClassLoader();
     // we cannot directly cast Parcelable[] to MeasurementTask[]. Cast them one-by-one
     Parcelable[] tempTasks = in.readParcelableArray(MeasurementTask.class.getClassLoader());
-    executor=Executors.newSingleThreadExecutor();
     tasks = new ArrayList<MeasurementTask>();
     long totalduration=0;
     for ( Parcelable pTask : tempTasks ) {
@@ -228,12 +225,12 @@ public class SequentialTask extends MeasurementTask{
   @Override
   public MeasurementResult[] call() throws MeasurementError {
 
-    ArrayList<MeasurementResult> allResults=new ArrayList<MeasurementResult>();
+    CompositeResults allResults=new CompositeResults(this, getResultListener());
     try {
       //      futures=executor.invokeAll(this.tasks,timeout,TimeUnit.MILLISECONDS);
       for(MeasurementTask mt: tasks){
         if(stopFlag){
-          throw new MeasurementError("Cancelled");
+          return allResults.fail(new MeasurementError("Cancelled"));
         }
 /*        
         if(allResults.size()>0 && mt.getType().equals(TracerouteTask.TYPE) && ((TracerouteDesc)(mt.getDescription())).preCondition!=null){
@@ -285,34 +282,54 @@ public class SequentialTask extends MeasurementTask{
         
 */        
         Logger.i("Sub task "+mt.getType()+" is going to run");
-        Future<MeasurementResult[]> f=executor.submit(mt);
-        currentTask=mt;
-        MeasurementResult[] results;
         //specifying timeout for each task based on its duration
+        long timeout=mt.getDuration()==0 ?
+            Config.DEFAULT_TASK_DURATION_TIMEOUT * 2 : mt.getDuration() * 2;
+        Subtask s=new Subtask(mt, timeout);
+        // A stop() from here on cancels s, whether it has started or not
+        currentTask=s;
+        if(stopFlag){
+          s.stop();
+        }else{
+          SubtaskExecutor.execute(s);
+        }
         try {
-          results = f.get( mt.getDuration()==0 ?
-              Config.DEFAULT_TASK_DURATION_TIMEOUT * 2 : mt.getDuration() * 2,
-              TimeUnit.MILLISECONDS);
-          for(int i=0;i<results.length;i++){
-            allResults.add(results[i]);
-          }
+          allResults.add(s.getWithinDeadline());
         } catch (TimeoutException e) {
-          if(mt.stop()){
-            f.cancel(true);
+          s.timeOut();
+          Logger.e("Sub task "+mt.getType()+" was abandoned after running over its deadline");
+          allResults.add(MeasurementResult.getFailureResult(mt,
+            new MeasurementError("Timed out after " + timeout + " ms")));
+        } catch (CancellationException e) {
+          if(!s.isTimedOut()){
+            // stop() was called on this task
+            Logger.e("Sub task "+mt.getType()+" was stopped");
+            continue;
           }
+          allResults.add(MeasurementResult.getFailureResult(mt,
+            new MeasurementError("Timed out after " + timeout + " ms")));
         }
       }
+      if(stopFlag){
+        // The last step was stopped, the scheduler runs the task again
+        return allResults.fail(new MeasurementError("Cancelled"));
+      }
 
     } catch (InterruptedException e) {
       Logger.e("Sequential task " + this.getTaskId() + " got interrupted!");
+      Thread.currentThread().interrupt();
     }catch (ExecutionException e) {
-      throw new MeasurementError("Execution error: " + e.getCause());
+      return allResults.fail(new MeasurementError("Execution error: " + e.getCause()));
     }
     finally{
-      executor.shutdown();
+      // Do not leave the subtask running when call() is interrupted or fails
+      Subtask s=currentTask;
+      if(s!=null){
+        s.stop();
+      }
+      currentTask=null;
     }
-    return (MeasurementResult[])allResults.toArray(
-      new MeasurementResult[allResults.size()]);
+    return allResults.toArray();
   }
 
   @Override
@@ -334,14 +351,12 @@ public class SequentialTask extends MeasurementTask{
 
   @Override
   public boolean stop() {
-    if(currentTask.stop()){
-      stopFlag=true;
-      executor.shutdown();
-      return true;
-    }else{
-      return false;
+    stopFlag=true;
+    Subtask s=currentTask;
+    if(s!=null){
+      s.stop();
     }
-    
+    return true;
   }
 
   @Override
@@ -0,0 +1,262 @@
+/* Copyright 2013 RobustNet Lab, University of Michigan. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mobilyzer.measurements;
+
+import java.util.LinkedList;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.mobilyzer.MeasurementResult;
+import com.mobilyzer.MeasurementTask;
+import com.mobilyzer.util.Logger;
+
+/**
+ * Runs the subtasks of composite tasks on one bounded pool shared by all of them, instead of
+ * every run starting and tearing down threads of its own.
+ *
+ * A composite task waiting on its subtasks runs the ones no pool thread has started yet itself
+ * while every pool thread is busy, so composite tasks nested deeper than the pool is wide cannot
+ * starve it. Otherwise it only waits, and is free to start new subtasks as soon as one ends.
+ *
+ * Every subtask has a deadline counted from when it starts. When it passes the subtask is asked
+ * to stop() and its thread is interrupted; results of its siblings are not affected. A subtask
+ * that ignores both keeps its pool thread, so callers that must not wait on it longer than the
+ * deadline wait with getWithinDeadline() and timeOut() it themselves.
+ */
+class SubtaskExecutor {
+  private static final int POOL_SIZE =
+      Math.max(4, 2 * Runtime.getRuntime().availableProcessors());
+  // Idle pool threads exit after this long
+  private static final long KEEP_ALIVE_SEC = 30;
+  // How often a waiting composite task checks whether the pool has filled up
+  private static final long SATURATION_CHECK_MS = 100;
+
+  private static final ThreadPoolExecutor pool;
+  // Fires the deadlines
+  private static final ScheduledThreadPoolExecutor watchdog;
+
+  static {
+    pool = new ThreadPoolExecutor(POOL_SIZE, POOL_SIZE, KEEP_ALIVE_SEC, TimeUnit.SECONDS,
+        new LinkedBlockingQueue<Runnable>(), new NamedThreadFactory("subtask"));
+    pool.allowCoreThreadTimeOut(true);
+    watchdog = new ScheduledThreadPoolExecutor(1, new NamedThreadFactory("subtask-watchdog"));
+  }
+
+  /**
+   * One run of a subtask. It starts at most once, on a pool thread or on the thread calling
+   * run() first.
+   */
+  static class Subtask extends FutureTask<MeasurementResult[]> {
+    final MeasurementTask task;
+    private final long timeoutMs;
+    // Gets the subtask once it is done, cancelled or not. May be null.
+    private final BlockingQueue<Subtask> finished;
+    private final AtomicBoolean started = new AtomicBoolean(false);
+    // System.nanoTime() when the subtask started, -1 before
+    private volatile long startNanos = -1;
+    private volatile boolean timedOut = false;
+
+    Subtask(MeasurementTask task, long timeoutMs) {
+      this(task, timeoutMs, null);
+    }
+
+    Subtask(MeasurementTask task, long timeoutMs, BlockingQueue<Subtask> finished) {
+      super(task);
+      this.task = task;
+      this.timeoutMs = timeoutMs;
+      this.finished = finished;
+    }
+
+    @Override
+    protected void done() {
+      if (finished != null) {
+        finished.offer(this);
+      }
+    }
+
+    /**
+     * Runs the subtask on the calling thread, unless it was started already
+     */
+    @Override
+    public void run() {
+      if (!started.compareAndSet(false, true)) {
+        return;
+      }
+      startNanos = System.nanoTime();
+      boolean wasInterrupted = Thread.currentThread().isInterrupted();
+      ScheduledFuture<?> deadline = watchdog.schedule(new Runnable() {
+        @Override
+        public void run() {
+          timeOut();
+        }
+      }, timeoutMs, TimeUnit.MILLISECONDS);
+      try {
+        super.run();
+      } finally {
+        deadline.cancel(false);
+        // The interrupt from stop() was meant for this subtask only. Do not leave it behind for
+        // whatever the caller runs next.
+        if (isCancelled() && !wasInterrupted) {
+          Thread.interrupted();
+        }
+      }
+    }
+
+    /**
+     * Asks the task to stop and interrupts it. get() throws a CancellationException afterwards,
+     * unless the task had already finished.
+     */
+    void stop() {
+      if (!isDone()) {
+        task.stop();
+        cancel(true);
+      }
+    }
+
+    /**
+     * Stops the subtask for running over its deadline
+     */
+    void timeOut() {
+      if (!isDone()) {
+        Logger.w("Subtask " + task.getDescriptor() + " ran over " + timeoutMs + " ms");
+        timedOut = true;
+        stop();
+      }
+    }
+
+    long getTimeoutMs() {
+      return timeoutMs;
+    }
+
+    /**
+     * Waits for the result no longer than the deadline, counted from when the subtask starts
+     * like the watchdog's. While it waits in the queue of a pool whose threads are all busy, it
+     * is run on the calling thread instead.
+     *
+     * @throws TimeoutException if the deadline passed, the subtask may still be running
+     */
+    MeasurementResult[] getWithinDeadline()
+        throws InterruptedException, ExecutionException, TimeoutException {
+      while (true) {
+        long start = startNanos;
+        if (start >= 0) {
+          long remaining = start + TimeUnit.MILLISECONDS.toNanos(timeoutMs) - System.nanoTime();
+          return get(Math.max(remaining, 0), TimeUnit.NANOSECONDS);
+        }
+        if (isSaturated()) {
+          // Does nothing if a pool thread has picked it up meanwhile
+          run();
+          continue;
+        }
+        try {
+          return get(SATURATION_CHECK_MS, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+          // Not started yet, or started and still within its deadline
+        }
+      }
+    }
+
+    boolean isTimedOut() {
+      return timedOut;
+    }
+  }
+
+  /**
+   * Queues task on the shared pool
+   * @param timeoutMs deadline of the task once it starts
+   */
+  static Subtask submit(MeasurementTask task, long timeoutMs) {
+    return submit(task, timeoutMs, null);
+  }
+
+  /**
+   * Queues task on the shared pool
+   * @param timeoutMs deadline of the task once it starts
+   * @param finished gets the subtask once it is done, so callers can take results in order of
+   *        completion
+   */
+  static Subtask submit(MeasurementTask task, long timeoutMs, BlockingQueue<Subtask> finished) {
+    Subtask subtask = new Subtask(task, timeoutMs, finished);
+    execute(subtask);
+    return subtask;
+  }
+
+  /**
+   * Whether every pool thread is busy, so that a subtask submitted now would wait in the queue
+   */
+  static boolean isSaturated() {
+    return pool.getActiveCount() >= POOL_SIZE;
+  }
+
+  /**
+   * Waits for the next of a composite task's subtasks to finish. While every pool thread is
+   * busy, subtasks in notHelped no pool thread has started yet are run on the calling thread
+   * instead, one at a time.
+   *
+   * @param finished the queue the subtasks were submitted with
+   * @param notHelped started subtasks the caller has not offered to run itself yet
+   */
+  static Subtask awaitNext(BlockingQueue<Subtask> finished,
+      LinkedList<? extends Subtask> notHelped) throws InterruptedException {
+    Subtask done = finished.poll();
+    while (done == null) {
+      if (notHelped.isEmpty()) {
+        done = finished.take();
+      } else if (isSaturated()) {
+        // Does nothing if a pool thread has picked it up meanwhile
+        notHelped.removeFirst().run();
+        done = finished.poll();
+      } else {
+        // The pool may fill up while waiting
+        done = finished.poll(SATURATION_CHECK_MS, TimeUnit.MILLISECONDS);
+      }
+    }
+    return done;
+  }
+
+  /**
+   * Queues a subtask created by the caller, for subclasses that need to hook into it
+   */
+  static void execute(Subtask subtask) {
+    pool.execute(subtask);
+  }
+
+  private static class NamedThreadFactory implements ThreadFactory {
+    private final String name;
+    private final AtomicInteger count = new AtomicInteger(0);
+
+    NamedThreadFactory(String name) {
+      this.name = name;
+    }
+
+    @Override
+    public Thread newThread(Runnable runnable) {
+      Thread thread = new Thread(runnable, name + "-" + count.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    }
+  }
+}
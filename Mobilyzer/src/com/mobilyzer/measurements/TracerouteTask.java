@@ -17,10 +17,8 @@ package com.mobilyzer.measurements;
 import android.os.Parcel;
 import android.os.Parcelable;
 
-import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.io.InvalidClassException;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
@@ -49,6 +47,7 @@ import com.mobilyzer.exceptions.MeasurementError;
 import com.mobilyzer.util.Logger;
 import com.mobilyzer.util.MeasurementJsonConvertor;
 import com.mobilyzer.util.PhoneUtils;
+import com.mobilyzer.util.PingOutputParser;
 import com.mobilyzer.util.Util;
 
 
@@ -83,6 +82,8 @@ public class TracerouteTask extends MeasurementTask implements PreemptibleMeasur
   private long totalRunningTime;
   private int ttl;
   private int maxHopCount;
+  // Address length of the target, selects ping or ping6
+  private int ipByteLen;
 
   // Track data consumption for this task to avoid exceeding user's limit
   private long dataConsumed;
@@ -309,7 +310,7 @@ public class TracerouteTask extends MeasurementTask implements PreemptibleMeasur
       InetAddress hostInetAddr = InetAddress.getByName(target);
       hostIp = hostInetAddr.getHostAddress();
       // add support for ipv6
-      int ipByteLen = hostInetAddr.getAddress().length;
+      ipByteLen = hostInetAddr.getAddress().length;
       Logger.i("IP address length is " + ipByteLen);
       Logger.i("IP is " + hostIp);
       task.pingExe = Util.pingExecutableBasedOnIPType(ipByteLen);
@@ -439,100 +440,20 @@ public class TracerouteTask extends MeasurementTask implements PreemptibleMeasur
     }
   }
 
-  private HashSet<String> processPingOutput(BufferedReader br, String hostIp) throws IOException {
+  private HashSet<String> processPingOutput(InputStream is, String hostIp) throws IOException {
     HashSet<String> hostsAtThisDistance = new HashSet<String>();
-    String line = null;
-    while ((line = br.readLine()) != null) {
-      if (line.startsWith("From")) {
-        String ip = getHostIp(line);
-        if (ip != null && ip.compareTo(hostIp) != 0) {
-          Logger.d("IP: " + ip);
-          hostsAtThisDistance.add(ip);
-        }
-      } else if (line.contains("time=")) {
-        hostsAtThisDistance.add(hostIp);
+    PingOutputParser parser = new PingOutputParser();
+    parser.parse(is);
+    for (String ip : parser.getFromHosts()) {
+      if (ip.compareTo(hostIp) != 0) {
+        Logger.d("IP: " + ip);
+        hostsAtThisDistance.add(ip);
       }
     }
-    return hostsAtThisDistance;
-  }
-
-  /*
-   * TODO(Wenjie): The current search for valid IPs assumes the IP string is not a proper substring
-   * of the space-separated tokens. For more robust searching in case different outputs from ping
-   * due to its different versions, we need to refine the search by testing weather any substring of
-   * the tokens contains a valid IP
-   */
-  private String getHostIp(String line) {
-    String[] tokens = line.split(" ");
-    // In most cases, the second element in the array is the IP
-    String tempIp = tokens[1];
-    /**
-     * In Android 4.3 or above, the second token of the result is like "192.168.1.1:". So we should
-     * remove the last ":"
-     */
-    if (tempIp.endsWith(":")) {
-      tempIp = tempIp.substring(0, tempIp.length() - 1);
+    if (parser.getReplyCount() > 0) {
+      hostsAtThisDistance.add(hostIp);
     }
-    if (isValidIpv4Addr(tempIp) || isValidIpv6Addr(tempIp)) {
-      return tempIp;
-    } else {
-      for (int i = 0; i < tokens.length; i++) {
-        if (i == 1) {
-          // Examined already
-          continue;
-        } else {
-          if (isValidIpv4Addr(tokens[i]) || isValidIpv6Addr(tokens[i])) {
-            return tokens[i];
-          }
-        }
-      }
-    }
-
-    return null;
-  }
-
-  // Tells whether the string is an valid IPv4 address
-  private boolean isValidIpv4Addr(String ip) {
-    String[] tokens = ip.split("\\.");
-    if (tokens.length == 4) {
-      for (int i = 0; i < 4; i++) {
-        try {
-          int val = Integer.parseInt(tokens[i]);
-          if (val < 0 || val > 255) {
-            return false;
-          }
-        } catch (NumberFormatException e) {
-          Logger.d(ip + " is not a valid IPv4 address");
-          return false;
-        }
-      }
-      return true;
-    }
-    return false;
-  }
-
-  // Tells whether the string is an valid IPv6 address
-  private boolean isValidIpv6Addr(String ip) {
-    int max = Integer.valueOf("FFFF", 16);
-    String[] tokens = ip.split("\\:");
-    if (tokens.length <= 8) {
-      for (int i = 0; i < tokens.length; i++) {
-        try {
-          // zeros might get grouped
-          if (tokens[i].isEmpty())
-            continue;
-          int val = Integer.parseInt(tokens[i], 16);
-          if (val < 0 || val > max) {
-            return false;
-          }
-        } catch (NumberFormatException e) {
-          Logger.d(ip + " is not a valid IPv6 address");
-          return false;
-        }
-      }
-      return true;
-    }
-    return false;
+    return hostsAtThisDistance;
   }
 
   private class HopInfo {
@@ -646,6 +567,8 @@ public class TracerouteTask extends MeasurementTask implements PreemptibleMeasur
         Logger.e("Does not have the permission to run ping on this device");
       } catch (IOException e) {
         Logger.e("The ping program cannot be executed");
+        // Look the executable up again for the next task
+        Util.invalidatePingExecutable(ipByteLen);
         Logger.e(e.getMessage());
       } finally {
         cleanUp(pingProc);
@@ -704,15 +627,12 @@ public class TracerouteTask extends MeasurementTask implements PreemptibleMeasur
       rtt += procwrapper.duration;
 
 
-      // Grab the output of the process that runs the ping command
-      InputStream is = proc.getInputStream();
-      BufferedReader br = new BufferedReader(new InputStreamReader(is));
       /*
-       * Process each line of the ping output and extracts the intermediate hops into
-       * hostAtThisDistance
+       * Process the output of the process that runs the ping command and extract the
+       * intermediate hops into hostAtThisDistance
        */
       try {
-        hosts = processPingOutput(br, hostIp);
+        hosts = processPingOutput(proc.getInputStream(), hostIp);
       } catch (IOException e) {
 
         e.printStackTrace();
@@ -15,15 +15,12 @@ package com.mobilyzer.measurements;
 
 import java.io.InvalidClassException;
 import java.security.InvalidParameterException;
-import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.Date;
 import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
-import android.content.BroadcastReceiver;
-import android.content.Context;
-import android.content.Intent;
-import android.content.IntentFilter;
 import android.net.Uri;
 import android.os.Parcel;
 import android.os.Parcelable;
@@ -32,12 +29,13 @@ import com.mobilyzer.MeasurementDesc;
 import com.mobilyzer.MeasurementResult;
 import com.mobilyzer.MeasurementResult.TaskProgress;
 import com.mobilyzer.MeasurementTask;
-import com.mobilyzer.UpdateIntent;
 import com.mobilyzer.exceptions.MeasurementError;
 import com.mobilyzer.util.Logger;
 import com.mobilyzer.util.MeasurementJsonConvertor;
 import com.mobilyzer.util.PhoneUtils;
+import com.mobilyzer.util.video.PlaybackFuture;
 import com.mobilyzer.util.video.VideoPlayerService;
+import com.mobilyzer.util.video.VideoQoEStats;
 import com.mobilyzer.util.video.util.DemoUtil;
 
 /**
@@ -50,19 +48,12 @@ public class VideoQoETask extends MeasurementTask {
   // Human readable name for the task
   public static final String DESCRIPTOR = "Video QoE";
 
-  private boolean isSucceed = false;
-  private int numFrameDropped;
-  private double initialLoadingTime;
-  private ArrayList<Double> rebufferTimes = new ArrayList<Double>();
-  private ArrayList<String> goodputTimestamps = new ArrayList<String>();
-  private ArrayList<Double> goodputValues = new ArrayList<Double>();
-  private ArrayList<Long> goodputEstimateValues = new ArrayList<Long>();
-  private ArrayList<String> bitrateTimestamps = new ArrayList<String>();
-  private ArrayList<Integer> bitrateValues = new ArrayList<Integer>();
-  private long bbaSwitchTime;
+  // Playback of the running measurement, cancelled by stop()
+  private volatile PlaybackFuture playback;
+  // Seconds to wait for the video to finish playing
+  private static final long TIMEOUT_SEC = 60 * 5;
   private long dataConsumed;
   
-  private boolean isResultReceived;
   private long duration;
   /**
    * @author laoyao
@@ -145,7 +136,6 @@ public class VideoQoETask extends MeasurementTask {
   public VideoQoETask(MeasurementDesc desc) {
     super(new VideoQoEDesc(desc.key, desc.startTime, desc.endTime, desc.intervalSec,
         desc.count, desc.priority, desc.contextIntervalSec, desc.parameters));
-    bbaSwitchTime=-1;
     dataConsumed=0;
   }
   
@@ -191,98 +181,31 @@ public class VideoQoETask extends MeasurementTask {
     MeasurementResult[] mrArray = new MeasurementResult[1];
     VideoQoEDesc taskDesc = (VideoQoEDesc) this.measurementDesc;
 
-    Intent videoIntent = new Intent(PhoneUtils.getGlobalContext(), VideoPlayerService.class);
-    videoIntent.setData(Uri.parse(taskDesc.contentURL));
-    videoIntent.putExtra(DemoUtil.CONTENT_ID_EXTRA, taskDesc.contentId);
-    videoIntent.putExtra(DemoUtil.CONTENT_TYPE_EXTRA, taskDesc.contentType);
-    PhoneUtils.getGlobalContext().startService(videoIntent);
-
-
-    IntentFilter filter = new IntentFilter();
-    filter.addAction(UpdateIntent.VIDEO_MEASUREMENT_ACTION);
-    BroadcastReceiver broadcastReceiver = new BroadcastReceiver() {
-        @Override
-        public void onReceive(Context context, Intent intent) {
-          Logger.d("Video QoE: result received");
-          if (intent.hasExtra(UpdateIntent.VIDEO_TASK_PAYLOAD_IS_SUCCEED)){
-            isSucceed = intent.getBooleanExtra(UpdateIntent.VIDEO_TASK_PAYLOAD_IS_SUCCEED, false);
-            Logger.d("Is succeed: " + isSucceed);
-          }
-          if (intent.hasExtra(UpdateIntent.VIDEO_TASK_PAYLOAD_NUM_FRAME_DROPPED)){
-            numFrameDropped = intent.getIntExtra(UpdateIntent.VIDEO_TASK_PAYLOAD_NUM_FRAME_DROPPED, 0);
-            Logger.d("Num frame dropped: " + numFrameDropped);
-          }
-          if (intent.hasExtra(UpdateIntent.VIDEO_TASK_PAYLOAD_INITIAL_LOADING_TIME)){
-            initialLoadingTime = intent.getDoubleExtra(UpdateIntent.VIDEO_TASK_PAYLOAD_INITIAL_LOADING_TIME, 0.0);
-            Logger.d("Initial Loading Time: " + initialLoadingTime);
-          }
-          if (intent.hasExtra(UpdateIntent.VIDEO_TASK_PAYLOAD_REBUFFER_TIME)) {
-            double[] rebufferTimeArray = intent.getDoubleArrayExtra(UpdateIntent.VIDEO_TASK_PAYLOAD_REBUFFER_TIME);
-            for (double rebuffer : rebufferTimeArray) {
-              rebufferTimes.add(rebuffer);
-            }
-            Logger.d("Rebuffer Times: " + rebufferTimes);
-          }
-          if (intent.hasExtra(UpdateIntent.VIDEO_TASK_PAYLOAD_GOODPUT_TIMESTAMP)) {
-            String[] goodputTimestampArray = intent.getStringArrayExtra(UpdateIntent.VIDEO_TASK_PAYLOAD_GOODPUT_TIMESTAMP);
-            goodputTimestamps = new ArrayList<String>(Arrays.asList(goodputTimestampArray));
-            Logger.d("Goodput Timestamps: " + goodputTimestamps);
-          }
-          if (intent.hasExtra(UpdateIntent.VIDEO_TASK_PAYLOAD_GOODPUT_VALUE)) {
-            double[] goodputValueArray = intent.getDoubleArrayExtra(UpdateIntent.VIDEO_TASK_PAYLOAD_GOODPUT_VALUE);
-            for (double goodput : goodputValueArray) {
-              goodputValues.add(goodput);
-            }
-            Logger.d("Goodput Values: " + goodputValues);
-          }
-          if (intent.hasExtra(UpdateIntent.VIDEO_TASK_PAYLOAD_GOODPUT_ESTIMATE_VALUE)) {
-            long[] goodputEstimateValueArray = intent.getLongArrayExtra(UpdateIntent.VIDEO_TASK_PAYLOAD_GOODPUT_ESTIMATE_VALUE);
-            for (long estiamte : goodputEstimateValueArray) {
-              goodputEstimateValues.add(estiamte);
-            }
-            Logger.d("Goodput Estimated Values: " + goodputValues);
-          }
-          if (intent.hasExtra(UpdateIntent.VIDEO_TASK_PAYLOAD_BITRATE_TIMESTAMP)) {
-            String[] bitrateTimestampArray = intent.getStringArrayExtra(UpdateIntent.VIDEO_TASK_PAYLOAD_BITRATE_TIMESTAMP);
-            bitrateTimestamps = new ArrayList<String>(Arrays.asList(bitrateTimestampArray));
-            Logger.d("Bitrate Timestamps: " + bitrateTimestamps);
-          }
-          if (intent.hasExtra(UpdateIntent.VIDEO_TASK_PAYLOAD_BITRATE_VALUE)) {
-            int[] bitrateValueArray = intent.getIntArrayExtra(UpdateIntent.VIDEO_TASK_PAYLOAD_BITRATE_VALUE);
-            for (int bitrate : bitrateValueArray) {
-              bitrateValues.add(bitrate);
-            }
-            Logger.d("Bitrate Values: " + bitrateValues);
-          }
-          if (intent.hasExtra(UpdateIntent.VIDEO_TASK_PAYLOAD_BBA_SWITCH_TIME)){
-            bbaSwitchTime=intent.getLongExtra(UpdateIntent.VIDEO_TASK_PAYLOAD_BBA_SWITCH_TIME, -1);
-          }
-          if (intent.hasExtra(UpdateIntent.VIDEO_TASK_PAYLOAD_BYTE_USED)){
-            dataConsumed=intent.getLongExtra(UpdateIntent.VIDEO_TASK_PAYLOAD_BYTE_USED, 0);
-            Logger.d("Data consumed: " + dataConsumed);
-          }
-          isResultReceived = true;
-        }
-    };
-    PhoneUtils.getGlobalContext().registerReceiver(broadcastReceiver, filter);
-
-
-
-    for(int i=0;i<60*5;i++){
-        if(isDone()){
-            break;
-        }
-        try {
-            Thread.sleep(1000);
-        } catch (InterruptedException e) {
-            e.printStackTrace();
-        }
+    // The player service completes the future when it releases the player, the task thread
+    // just blocks on it
+    PlaybackFuture future = VideoPlayerService.startPlayback(PhoneUtils.getGlobalContext(),
+        Uri.parse(taskDesc.contentURL), taskDesc.contentId, taskDesc.contentType);
+    playback = future;
+    VideoQoEStats stats = null;
+    try {
+      stats = future.get(TIMEOUT_SEC, TimeUnit.SECONDS);
+    } catch (TimeoutException e) {
+      future.cancel(true);
+    } catch (CancellationException e) {
+      throw new MeasurementError("Video QoE measurement was stopped");
+    } catch (InterruptedException e) {
+      future.cancel(true);
+      Thread.currentThread().interrupt();
+      throw new MeasurementError("Video QoE measurement was interrupted");
+    } finally {
+      playback = null;
     }
-    Logger.e("Video QoE: result ready? " + this.isResultReceived);
-    PhoneUtils.getGlobalContext().unregisterReceiver(broadcastReceiver);
+    Logger.e("Video QoE: result ready? " + (stats != null));
     
-    if(isDone()){
+    if(stats != null){
         Logger.i("Video QoE: Successfully measured QoE data");
+        Logger.d("Is succeed: " + stats.isSucceed);
+        dataConsumed = stats.bytesUsed;
         PhoneUtils phoneUtils = PhoneUtils.getPhoneUtils();
         MeasurementResult result = new MeasurementResult(
                 phoneUtils.getDeviceInfo().deviceId,
@@ -290,16 +213,26 @@ public class VideoQoETask extends MeasurementTask {
                 VideoQoETask.TYPE, System.currentTimeMillis() * 1000,
                 TaskProgress.COMPLETED, this.measurementDesc);
 //        result.addResult(UpdateIntent.VIDEO_TASK_PAYLOAD_IS_SUCCEED, isSucceed);
-        result.addResult("video_num_frame_dropped", this.numFrameDropped);
-        result.addResult("video_initial_loading_time", this.initialLoadingTime);
-        result.addResult("video_rebuffer_times", this.rebufferTimes);
-        result.addResult("video_goodput_times", this.goodputTimestamps);
-        result.addResult("video_goodput_values", this.goodputValues);
-        result.addResult("video_goodput_estimate_values", this.goodputEstimateValues);
-        result.addResult("video_bitrate_times", this.bitrateTimestamps);
-        result.addResult("video_bitrate_values", this.bitrateValues);
-        if(this.bbaSwitchTime!=-1){
-          result.addResult("video_bba_switch_time", this.bbaSwitchTime);
+        result.addResult("video_num_frame_dropped", stats.numFrameDropped);
+        result.addResult("video_initial_loading_time", stats.initialLoadingTime);
+        result.addResult("video_rebuffer_times", stats.rebufferTimes);
+        result.addResult("video_rebuffer_count", stats.rebufferCount);
+        result.addResult("video_total_stall_time", stats.totalStallTime);
+        result.addResult("video_goodput_times", stats.goodputTimestamps);
+        result.addResult("video_goodput_values", stats.goodputValues);
+        result.addResult("video_goodput_estimate_values", stats.goodputEstimateValues);
+        if (!Double.isNaN(stats.goodputMean)) {
+          result.addResult("video_goodput_min", stats.goodputMin);
+          result.addResult("video_goodput_max", stats.goodputMax);
+          result.addResult("video_goodput_mean", stats.goodputMean);
+          result.addResult("video_goodput_median", stats.goodputMedian);
+          result.addResult("video_goodput_p90", stats.goodputP90);
+        }
+        result.addResult("video_bitrate_times", stats.bitrateTimestamps);
+        result.addResult("video_bitrate_values", stats.bitrateValues);
+        result.addResult("video_bitrate_switches", stats.bitrateSwitches);
+        if(stats.bbaSwitchTime!=-1){
+          result.addResult("video_bba_switch_time", stats.bbaSwitchTime);
         }
 
         Logger.i(MeasurementJsonConvertor.toJsonString(result));
@@ -317,13 +250,8 @@ public class VideoQoETask extends MeasurementTask {
         mrArray[0]=result;
     }
 
-//    PhoneUtils.getGlobalContext().stopService(new Intent(PhoneUtils.getGlobalContext(), PLTExecutorService.class));
     return mrArray;
   }
-  
-  private boolean isDone() {
-    return isResultReceived;
-  }
 
   @SuppressWarnings("rawtypes")
   public static Class getDescClass() throws InvalidClassException {
@@ -353,8 +281,11 @@ public class VideoQoETask extends MeasurementTask {
    */
   @Override
   public boolean stop() {
-    // There is nothing we need to do to stop the video measurement
-    return false;
+    PlaybackFuture future = playback;
+    if (future != null) {
+      future.cancel(true);
+    }
+    return true;
   }
 
   /* (non-Javadoc)
@@ -1,5 +1,6 @@
 package com.mobilyzer.util;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.security.KeyManagementException;
@@ -7,6 +8,10 @@ import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
 import java.security.cert.CertificateException;
 import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
 
 
 import javax.net.ssl.HttpsURLConnection;
@@ -15,6 +20,7 @@ import javax.net.ssl.TrustManager;
 import javax.net.ssl.X509TrustManager;
 
 import com.mobilyzer.UpdateIntent;
+import com.squareup.okhttp.Cache;
 import com.squareup.okhttp.ConnectionPool;
 import com.squareup.okhttp.OkHttpClient;
 import com.squareup.okhttp.Protocol;
@@ -38,6 +44,44 @@ public class AndroidWebView extends WebView {
 	public static enum WebViewProtocol{
 		SPDY, HTTP
 	}
+
+	/**
+	 * Receives the timing results of a page load directly from the WebView callbacks, on the
+	 * main thread. Results for a page load without a listener are broadcast instead.
+	 */
+	public interface ResultListener{
+		/**
+		 * @param message the "mobilyzer_navigation|protocol..." console message
+		 * @param bytesUsed body bytes of the resources loaded so far
+		 * @param resourceLoads "protocol|url|bytes|response_ms|first_byte_ms|last_byte_ms" of
+		 *     every resource loaded so far, as fetched through the interception stream
+		 */
+		void onNavigationTiming(String message, long bytesUsed, List<String> resourceLoads);
+
+		/**
+		 * @param message the "mobilyzer_resource|..." console message
+		 */
+		void onResourceTiming(String message);
+	}
+
+	// Listeners by the start time filter of the page load they wait for
+	private static final HashMap<Long, ResultListener> resultListeners=new HashMap<Long, ResultListener>();
+
+	public static void setResultListener(long startTimeFilter, ResultListener listener){
+		synchronized(resultListeners){
+			if(listener==null){
+				resultListeners.remove(startTimeFilter);
+			}else{
+				resultListeners.put(startTimeFilter, listener);
+			}
+		}
+	}
+
+	private static ResultListener getResultListener(long startTimeFilter){
+		synchronized(resultListeners){
+			return resultListeners.get(startTimeFilter);
+		}
+	}
 	
 	private static String USER_AGENT="Mozilla/5.0 (Linux; U; Android 4.3; en-us; SCH-I535 Build/JSS15J) AppleWebKit/534.30 (KHTML, like Gecko) Version/4.0 Mobile Safari/534.30";
 	
@@ -48,46 +92,83 @@ public class AndroidWebView extends WebView {
 	Context context;
 	long pageStartLoading;
 	WebViewProtocol protocol;
+	String cachePolicy;
 //	private volatile ArrayList<String> objsTimings;
-//	private volatile int totalByte;
+	// Body bytes of all the resources fetched through the interception stream
+	private final AtomicLong totalBytes=new AtomicLong();
+	// Bytes and timing of each of those resources, guarded by itself
+	private final ArrayList<String> resourceLoads=new ArrayList<String>();
+	// Incremented for every page load the view is prepared for, so that callbacks left over
+	// from an earlier load of a pooled view can be told apart
+	private int runId=0;
+	private boolean active=false;
+
+	/*
+	 * Pool of configured WebViews. Creating a WebView and its settings, client and trust
+	 * manager is slow and its cost varies, so views are kept across measurements and only
+	 * reset according to the cache policy. WebViews live on the main thread, and so does the
+	 * pool: all of it must only be used from there.
+	 */
+	private static final int POOL_SIZE=2;
+	private static final ArrayList<AndroidWebView> idleViews=new ArrayList<AndroidWebView>();
+	private static final ArrayList<AndroidWebView> activeViews=new ArrayList<AndroidWebView>();
+	// Shared by the clients of all views under the warm cache policy. Cold page loads get a
+	// pool of their own and no cache, and leave these alone.
+	private static Cache httpCache=null;
+	private static ConnectionPool warmPool=null;
+	private static final long HTTP_CACHE_SIZE=10*1024*1024;
+
+	/** Every page load starts with empty caches and no open connections */
+	public static final String CACHE_POLICY_COLD="cold";
+	/** Caches and connections left by earlier page loads are kept */
+	public static final String CACHE_POLICY_WARM="warm";
+
+	/**
+	 * Creates idle views until the pool is full, call ahead of measurements
+	 */
+	public static void prewarm(Context context){
+		while(idleViews.size()+activeViews.size()<POOL_SIZE){
+			idleViews.add(new AndroidWebView(context.getApplicationContext()));
+		}
+	}
+
+	/**
+	 * @return a pooled view prepared for loading url, or a new one if none is idle
+	 */
+	public static AndroidWebView acquire(Context context, boolean spdyTest, WebViewProtocol protocol, long startTimeFilter, String url, String cachePolicy){
+		AndroidWebView view;
+		if(idleViews.isEmpty()){
+			view=new AndroidWebView(context.getApplicationContext());
+		}else{
+			view=idleViews.remove(idleViews.size()-1);
+		}
+		view.prepare(spdyTest, protocol, startTimeFilter, url, cachePolicy);
+		activeViews.add(view);
+		return view;
+	}
+
+	/**
+	 * Releases the views that are still loading, e.g. when a measurement times out
+	 */
+	public static void releaseAll(){
+		while(!activeViews.isEmpty()){
+			activeViews.get(activeViews.size()-1).release();
+		}
+	}
+
 	public AndroidWebView(Context context, boolean spdyTest, WebViewProtocol protocol, long startTimeFilter, String url) {
+		this(context);
+		prepare(spdyTest, protocol, startTimeFilter, url, CACHE_POLICY_COLD);
+	}
+
+	private AndroidWebView(Context context) {
 		super(context);
-		this.spdyTest=spdyTest;
 		this.context=context;
-		this.url=url;
-		this.protocol=protocol;
-		
-		
-		
-		this.startTimeFilter=startTimeFilter;
-		clearCache(true);
-		getSettings().setCacheMode(WebSettings.LOAD_NO_CACHE);
 		getSettings().setAppCacheEnabled(false);
 		getSettings().setJavaScriptEnabled(true);
 		getSettings().setUserAgentString(USER_AGENT);
-		context.deleteDatabase("webview.db");
-		context.deleteDatabase("webviewCache.db");
-		clearHistory();
 		
 		client= new OkHttpClient();
-		if(client.getConnectionPool()!=null && client.getConnectionPool().getConnectionCount()!=0){
-			client.getConnectionPool().evictAll();
-		}
-		
-		client.setConnectionPool(ConnectionPool.getDefault());
-//		client.getCache().delete();
-		
-		
-		if(spdyTest){
-			if(protocol.equals(WebViewProtocol.HTTP)){
-				client.setProtocols(Util.immutableList(Protocol.HTTP_1_1));
-			}else{
-				client.setProtocols(Util.immutableList(Protocol.SPDY_3, Protocol.HTTP_1_1));
-			}
-		}else{
-			client.setProtocols(Util.immutableList(Protocol.HTTP_1_1));
-		}
-		
 		
 		TrustManager localTrustmanager = new X509TrustManager() {
 
@@ -139,7 +220,12 @@ public class AndroidWebView extends WebView {
 		      @Override
 		      public void onPageFinished(WebView view, String url) {
 		    	Logger.d("ashkan_plt: Page finished: "+url);
-		      
+		    	if(!active){
+		    		// The blank page loaded on release
+		    		super.onPageFinished(view, url);
+		    		return;
+		    	}
+		    	final int finishedRun=runId;
 		    	
 		    	new Handler(){
 		    		private WebView view;
@@ -150,6 +236,10 @@ public class AndroidWebView extends WebView {
 		    			postDelayed(new Runnable() {
 							@Override
 							public void run() {
+							  if(!active || runId!=finishedRun){
+							    // The view has moved on to another page load
+							    return;
+							  }
 
 							  String js_code = "javascript:(\n function() { \n";
 							  js_code += "            var result='';\n";
@@ -226,13 +316,21 @@ public class AndroidWebView extends WebView {
 		        	  }else{
 		        		  message=message.replace("mobilyzer_navigation", "mobilyzer_navigation|http");
 		        	  }
-		        	  newintent.putExtra(UpdateIntent.PLT_TASK_PAYLOAD_RESULT_NAV, message);
-//		        	  newintent.putExtra(UpdateIntent.PLT_TASK_PAYLOAD_BYTE_USED, totalByte);//TODO
-		              PhoneUtils.getGlobalContext().sendBroadcast(newintent);
-		              Logger.d("ashkan_plt: onConsoleMessage: Broadcasting mobilyzer_navigation result "+message.length());
+		        	  ResultListener listener=getResultListener(AndroidWebView.this.startTimeFilter);
+		        	  if(listener!=null){
+		        		  List<String> loads;
+		        		  synchronized(resourceLoads){
+		        			  loads=new ArrayList<String>(resourceLoads);
+		        		  }
+		        		  listener.onNavigationTiming(message, totalBytes.get(), loads);
+		        	  }else{
+		        		  newintent.putExtra(UpdateIntent.PLT_TASK_PAYLOAD_RESULT_NAV, message);
+		        		  PhoneUtils.getGlobalContext().sendBroadcast(newintent);
+		        	  }
+		              Logger.d("ashkan_plt: onConsoleMessage: Delivered mobilyzer_navigation result "+message.length());
 		            
 		            if(AndroidWebView.this.spdyTest && AndroidWebView.this.protocol.equals(WebViewProtocol.HTTP)){
-		            	AndroidWebView spdyWebView=new AndroidWebView(AndroidWebView.this.context, true, WebViewProtocol.SPDY ,AndroidWebView.this.startTimeFilter, AndroidWebView.this.url);
+		            	AndroidWebView spdyWebView=acquire(AndroidWebView.this.context, true, WebViewProtocol.SPDY ,AndroidWebView.this.startTimeFilter, AndroidWebView.this.url, AndroidWebView.this.cachePolicy);
 	            		spdyWebView.loadUrl();
 		            }
 		            
@@ -241,9 +339,16 @@ public class AndroidWebView extends WebView {
 		            
 		            
 		          }else if(message.startsWith("mobilyzer_resource")){
-                    newintent.putExtra(UpdateIntent.PLT_TASK_PAYLOAD_RESULT_RES, message);
-                    PhoneUtils.getGlobalContext().sendBroadcast(newintent);
-                    Logger.d("ashkan_plt: onConsoleMessage: Broadcasting mobilyzer_resource result "+message.length());
+                    ResultListener listener=getResultListener(AndroidWebView.this.startTimeFilter);
+                    if(listener!=null){
+                      listener.onResourceTiming(message);
+                    }else{
+                      newintent.putExtra(UpdateIntent.PLT_TASK_PAYLOAD_RESULT_RES, message);
+                      PhoneUtils.getGlobalContext().sendBroadcast(newintent);
+                    }
+                    Logger.d("ashkan_plt: onConsoleMessage: Delivered mobilyzer_resource result "+message.length());
+                    // The resource timings are the last thing a page load reports
+                    release();
 		          } 
 		      }
 		    });
@@ -270,45 +375,187 @@ public class AndroidWebView extends WebView {
 	        
 	    }
 	    
-	    class MyInputStream extends InputStream{
-	        private String url;
-	        private boolean initialized;
-	        private InputStream is;
-	        public MyInputStream(String url) {
-	            this.url=url;
-	            initialized=false;
-	        }
-	        @Override
-	        public int read() throws IOException {
-	            if(!initialized){
-	                try {
-	                    
-	                    Request request = new Request.Builder()
-	                    .url(url)
-	                    .header("User-Agent", "Mozilla/5.0 (Linux; U; Android 4.3; en-us; SCH-I535 Build/JSS15J) AppleWebKit/534.30 (KHTML, like Gecko) Version/4.0 Mobile Safari/534.30")
-	                    .build();
-
-
-	                    long startTime=System.currentTimeMillis();
-	                    Response response = client.newCall(request).execute();
-	                    Logger.d("ashkan_plt: HTTP: "+client.getConnectionPool().getHttpConnectionCount()+" SPDY: "+client.getConnectionPool().getSpdyConnectionCount());
-	                    long endTime=System.currentTimeMillis();
-	                    is= response.body().byteStream();
-	                     
-	                   Logger.d("ashkan_plt: load time for "+url+":\t "+(endTime-startTime));
-	                } catch (IOException e) {
-	                    e.printStackTrace();
-	                }
-	                initialized=true;
-	            }
-	            return is.read();
-	        }
-	        
-	    }
+	/**
+	 * Fetches an intercepted resource through okhttp and hands it to the WebView. The WebView
+	 * reads in bulk, so bulk reads go straight to the buffered response body. The bytes and
+	 * timing of each resource are recorded once it has been read, and reported with the
+	 * navigation timing.
+	 */
+	class MyInputStream extends InputStream{
+		private String url;
+		private boolean initialized;
+		private InputStream is;
+		private long requestStartNanos;
+		private long responseNanos;
+		private long firstByteNanos=-1;
+		private long bytesRead=0;
+		private boolean accounted=false;
+
+		public MyInputStream(String url) {
+			this.url=url;
+			initialized=false;
+		}
+
+		private void open() {
+			initialized=true;
+			try {
+				Request request = new Request.Builder()
+				.url(url)
+				.header("User-Agent", USER_AGENT)
+				.build();
+
+				requestStartNanos=System.nanoTime();
+				Response response = client.newCall(request).execute();
+				responseNanos=System.nanoTime();
+				is= response.body().byteStream();
+				Logger.d("ashkan_plt: HTTP: "+client.getConnectionPool().getHttpConnectionCount()+" SPDY: "+client.getConnectionPool().getSpdyConnectionCount());
+			} catch (IOException e) {
+				// The WebView sees an empty resource
+				Logger.e("ashkan_plt: failed to load "+url+": "+e.getMessage());
+			}
+		}
+
+		@Override
+		public int read() throws IOException {
+			if(!initialized){
+				open();
+			}
+			if(is==null){
+				return -1;
+			}
+			int b=is.read();
+			account(b<0 ? -1 : 1);
+			return b;
+		}
+
+		@Override
+		public int read(byte[] buffer, int offset, int length) throws IOException {
+			if(!initialized){
+				open();
+			}
+			if(is==null){
+				return -1;
+			}
+			int n=is.read(buffer, offset, length);
+			account(n);
+			return n;
+		}
+
+		@Override
+		public int available() throws IOException {
+			return is==null ? 0 : is.available();
+		}
+
+		@Override
+		public void close() throws IOException {
+			if(is!=null){
+				// The WebView may stop reading early, account for what it got
+				finish();
+				is.close();
+			}
+		}
+
+		private void account(int n) {
+			if(n>0){
+				if(firstByteNanos<0){
+					firstByteNanos=System.nanoTime();
+				}
+				bytesRead+=n;
+			}else if(n<0){
+				finish();
+			}
+		}
+
+		private void finish() {
+			if(accounted){
+				return;
+			}
+			accounted=true;
+			long endNanos=System.nanoTime();
+			totalBytes.addAndGet(bytesRead);
+			String load=(protocol.equals(WebViewProtocol.SPDY) ? "spdy" : "http")+"|"+url+"|"+bytesRead
+				+"|"+(responseNanos-requestStartNanos)/1e6
+				+"|"+(firstByteNanos<0 ? -1 : (firstByteNanos-requestStartNanos)/1e6)
+				+"|"+(endNanos-requestStartNanos)/1e6;
+			synchronized(resourceLoads){
+				resourceLoads.add(load);
+			}
+			Logger.d("ashkan_plt: resource load "+load);
+		}
+	}
 
-	
 	public void loadUrl() {
 		super.loadUrl(this.url);
 	}
 
+	/**
+	 * Resets the view for a page load
+	 */
+	private void prepare(boolean spdyTest, WebViewProtocol protocol, long startTimeFilter, String url, String cachePolicy) {
+		this.spdyTest=spdyTest;
+		this.protocol=protocol;
+		this.startTimeFilter=startTimeFilter;
+		this.url=url;
+		this.cachePolicy=CACHE_POLICY_WARM.equals(cachePolicy) ? CACHE_POLICY_WARM : CACHE_POLICY_COLD;
+		runId++;
+		active=true;
+		totalBytes.set(0);
+		synchronized(resourceLoads){
+			resourceLoads.clear();
+		}
+
+		if(spdyTest && protocol.equals(WebViewProtocol.SPDY)){
+			client.setProtocols(Util.immutableList(Protocol.SPDY_3, Protocol.HTTP_1_1));
+		}else{
+			client.setProtocols(Util.immutableList(Protocol.HTTP_1_1));
+		}
+
+		if(this.cachePolicy.equals(CACHE_POLICY_WARM)){
+			getSettings().setCacheMode(WebSettings.LOAD_DEFAULT);
+			if(httpCache==null){
+				try {
+					httpCache=new Cache(new File(context.getCacheDir(), "plt_http_cache"), HTTP_CACHE_SIZE);
+				} catch (IOException e) {
+					Logger.e("ashkan_plt: cannot create the HTTP cache: "+e.getMessage());
+				}
+			}
+			client.setCache(httpCache);
+			if(warmPool==null){
+				warmPool=new ConnectionPool(SharedHttpClient.MAX_IDLE_CONNECTIONS, SharedHttpClient.KEEP_ALIVE_DURATION_MS);
+			}
+			client.setConnectionPool(warmPool);
+		}else{
+			clearCache(true);
+			getSettings().setCacheMode(WebSettings.LOAD_NO_CACHE);
+			context.deleteDatabase("webview.db");
+			context.deleteDatabase("webviewCache.db");
+			client.setCache(null);
+			// Resources of the page still share connections with each other
+			client.setConnectionPool(new ConnectionPool(SharedHttpClient.MAX_IDLE_CONNECTIONS, SharedHttpClient.KEEP_ALIVE_DURATION_MS));
+		}
+		clearHistory();
+	}
+
+	/**
+	 * Stops the page load and returns the view to the pool
+	 */
+	private void release() {
+		if(!active){
+			return;
+		}
+		active=false;
+		activeViews.remove(this);
+		stopLoading();
+		if(client.getConnectionPool()!=warmPool){
+			// Connections of a cold page load are of no use to anyone else
+			client.getConnectionPool().evictAll();
+		}
+		super.loadUrl("about:blank");
+		if(idleViews.size()+activeViews.size()<POOL_SIZE){
+			idleViews.add(this);
+		}else{
+			destroy();
+		}
+	}
+
 }
@@ -0,0 +1,65 @@
+/* Copyright 2013 RobustNet Lab, University of Michigan. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mobilyzer.util;
+
+/**
+ * A bounded pool of equally sized byte arrays, for I/O buffers that measurements would otherwise
+ * allocate on every run. When the pool is empty a new array is allocated; arrays returned to a
+ * full pool are left to the garbage collector, so the pool never holds more than maxPooled
+ * arrays. Arrays handed out are not cleared.
+ */
+public class ByteArrayPool {
+  private final int bufferSize;
+  private final byte[][] pooled;
+  private int count = 0;
+
+  public ByteArrayPool(int bufferSize, int maxPooled) {
+    this.bufferSize = bufferSize;
+    this.pooled = new byte[maxPooled][];
+  }
+
+  public int getBufferSize() {
+    return bufferSize;
+  }
+
+  /**
+   * @return an array of getBufferSize() bytes with arbitrary content
+   */
+  public byte[] acquire() {
+    synchronized (pooled) {
+      if (count > 0) {
+        byte[] buffer = pooled[--count];
+        pooled[count] = null;
+        return buffer;
+      }
+    }
+    return new byte[bufferSize];
+  }
+
+  /**
+   * Returns an array obtained from acquire(). The caller must not use it afterwards.
+   */
+  public void release(byte[] buffer) {
+    if (buffer == null || buffer.length != bufferSize) {
+      return;
+    }
+    synchronized (pooled) {
+      if (count < pooled.length) {
+        pooled[count++] = buffer;
+      }
+    }
+  }
+}
@@ -0,0 +1,527 @@
+/* Copyright 2013 RobustNet Lab, University of Michigan. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mobilyzer.util;
+
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.PortUnreachableException;
+import java.net.SocketTimeoutException;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * In-process echo prober, used by PingTask so that a ping does not have to start the ping binary
+ * and parse its output.
+ *
+ * By default probes are ICMP echo requests sent over an unprivileged ICMP datagram socket, which
+ * needs the kernel to allow it (net.ipv4.ping_group_range covers the app) and the platform to
+ * expose the socket calls through android.system.Os, which is looked up at run time. When it
+ * does not, probe() fails and the caller falls back to some other way of pinging.
+ *
+ * Only when asked for with setMethod(METHOD_UDP), the probes are UDP datagrams sent on a
+ * connected socket to a port that is normally closed; either an echoed datagram or the ICMP port
+ * unreachable, which surfaces as a PortUnreachableException, ends the probe. A port unreachable
+ * does not tell which probe it answers, so over UDP a probe is only sent once the previous one is
+ * answered or timed out. Targets that rate-limit ICMP errors show up as packet loss.
+ *
+ * ICMP probes are sent on a fixed System.nanoTime() schedule while replies are collected in
+ * between, so a late reply does not push back the following probes.
+ */
+public class EchoProber {
+  public static final String METHOD_ICMP = "icmp_socket";
+  public static final String METHOD_UDP = "udp_socket";
+  /** First port of the traceroute range, which hosts almost never listen on */
+  public static final int DEFAULT_UDP_PORT = 33434;
+
+  // Returned by Transport.receive()
+  private static final int NO_REPLY = -1;
+  private static final int UNATTRIBUTED_REPLY = -2;
+
+  private static final int ICMP_HEADER_LENGTH = 8;
+  // Sequence number and token at the start of each UDP payload
+  private static final int UDP_PROBE_HEADER_LENGTH = 6;
+
+  private final InetAddress target;
+  private final int payloadSize;
+  private final int ttl;
+  private int udpPort = DEFAULT_UDP_PORT;
+  private String method = METHOD_ICMP;
+
+  /**
+   * Outcome of a probe run. Times are System.nanoTime() readings, lost probes have a receive time
+   * of -1.
+   */
+  public static class Result {
+    public final String method;
+    public final int sent;
+    public final int received;
+    public final int duplicates;
+    public final long[] sendNanos;
+    public final long[] receiveNanos;
+
+    Result(String method, int sent, int received, int duplicates, long[] sendNanos,
+           long[] receiveNanos) {
+      this.method = method;
+      this.sent = sent;
+      this.received = received;
+      this.duplicates = duplicates;
+      this.sendNanos = sendNanos;
+      this.receiveNanos = receiveNanos;
+    }
+
+    /**
+     * @return round trip times in milliseconds of the answered probes, in sequence order
+     */
+    public double[] getRttsMs() {
+      double[] rtts = new double[received];
+      int n = 0;
+      for (int i = 0; i < sent; i++) {
+        if (receiveNanos[i] >= 0) {
+          rtts[n++] = (receiveNanos[i] - sendNanos[i]) / 1e6;
+        }
+      }
+      return rtts;
+    }
+  }
+
+  /**
+   * @param payloadSize bytes following the ICMP header, or the size of the UDP payload
+   * @param ttl IP time to live of ICMP probes, ignored where the platform cannot set it
+   */
+  public EchoProber(InetAddress target, int payloadSize, int ttl) {
+    this.target = target;
+    this.payloadSize = payloadSize;
+    this.ttl = ttl;
+  }
+
+  public void setUdpPort(int udpPort) {
+    this.udpPort = udpPort;
+  }
+
+  /**
+   * @param method METHOD_ICMP, the default, or METHOD_UDP
+   */
+  public void setMethod(String method) {
+    this.method = method;
+  }
+
+  /**
+   * Sends count probes intervalNanos apart. A reply counts if it arrives within replyTimeoutNanos
+   * of its probe.
+   * @throws IOException if the socket of the chosen method cannot be used
+   */
+  public Result probe(int count, long intervalNanos, long replyTimeoutNanos)
+      throws IOException {
+    Transport transport;
+    if (METHOD_UDP.equals(method)) {
+      transport = new UdpTransport(target, udpPort, payloadSize);
+    } else {
+      transport = new IcmpTransport(target, payloadSize, ttl);
+    }
+    try {
+      return run(transport, count, intervalNanos, replyTimeoutNanos);
+    } finally {
+      transport.close();
+    }
+  }
+
+  private Result run(Transport transport, int count, long intervalNanos,
+                     long replyTimeoutNanos) throws IOException {
+    long[] sendNanos = new long[count];
+    long[] receiveNanos = new long[count];
+    Arrays.fill(receiveNanos, -1);
+    int next = 0;
+    int received = 0;
+    int duplicates = 0;
+    boolean oneAtATime = transport instanceof UdpTransport;
+
+    long start = System.nanoTime();
+    while (received < count && !Thread.currentThread().isInterrupted()) {
+      long now = System.nanoTime();
+      long nextSend = start + next * intervalNanos;
+      if (oneAtATime && next > 0 && receiveNanos[next - 1] < 0
+          && sendNanos[next - 1] + replyTimeoutNanos - nextSend > 0) {
+        // Hold the probe until the previous one is answered or timed out
+        nextSend = sendNanos[next - 1] + replyTimeoutNanos;
+      }
+      if (next < count && now - nextSend >= 0) {
+        sendNanos[next] = System.nanoTime();
+        transport.send(next);
+        next++;
+        continue;
+      }
+      if (received == 0 && transport instanceof UdpTransport
+          && now - sendNanos[0] > replyTimeoutNanos) {
+        // The target drops UDP silently, no point in waiting for the rest
+        break;
+      }
+
+      long remaining =
+          (next < count ? nextSend : sendNanos[count - 1] + replyTimeoutNanos) - now;
+      if (remaining <= 0) {
+        break;
+      } else if (remaining < 1000000) {
+        // Socket timeouts are in milliseconds, sleep off the rest to send on time
+        LockSupport.parkNanos(remaining);
+        continue;
+      }
+      int seq = transport.receive((int) Math.min(remaining / 1000000, Integer.MAX_VALUE));
+      long receiveTime = System.nanoTime();
+      if (seq == UNATTRIBUTED_REPLY) {
+        // Only the last probe can be outstanding, see above
+        seq = next - 1;
+      }
+      if (seq < 0 || seq >= next) {
+        continue;
+      }
+      if (receiveNanos[seq] >= 0) {
+        duplicates++;
+      } else if (receiveTime - sendNanos[seq] <= replyTimeoutNanos) {
+        receiveNanos[seq] = receiveTime;
+        received++;
+      }
+    }
+    return new Result(transport.method(), next, received, duplicates, sendNanos, receiveNanos);
+  }
+
+  private interface Transport {
+    String method();
+
+    void send(int seq) throws IOException;
+
+    /**
+     * Waits up to timeoutMs for a reply
+     * @return sequence number of the answered probe, NO_REPLY on timeout or for a foreign packet,
+     *         UNATTRIBUTED_REPLY for a reply that does not tell which probe it answers
+     */
+    int receive(int timeoutMs) throws IOException;
+
+    void close();
+  }
+
+  /**
+   * UDP probes carrying a sequence number and a per-run token. A closed port answers with an
+   * ICMP port unreachable, which does not carry our payload and is matched to the one
+   * outstanding probe instead.
+   */
+  private static class UdpTransport implements Transport {
+    private final DatagramSocket socket;
+    private final byte[] sendBuffer;
+    private final DatagramPacket sendPacket;
+    private final byte[] receiveBuffer;
+    private final DatagramPacket receivePacket;
+    private int soTimeout = -1;
+
+    UdpTransport(InetAddress target, int port, int payloadSize) throws IOException {
+      sendBuffer = new byte[Math.max(payloadSize, UDP_PROBE_HEADER_LENGTH)];
+      new Random().nextBytes(sendBuffer);
+      receiveBuffer = new byte[sendBuffer.length];
+      socket = new DatagramSocket();
+      socket.connect(target, port);
+      sendPacket = new DatagramPacket(sendBuffer, sendBuffer.length);
+      receivePacket = new DatagramPacket(receiveBuffer, receiveBuffer.length);
+    }
+
+    @Override
+    public String method() {
+      return METHOD_UDP;
+    }
+
+    @Override
+    public void send(int seq) throws IOException {
+      sendBuffer[0] = (byte) (seq >> 8);
+      sendBuffer[1] = (byte) seq;
+      try {
+        socket.send(sendPacket);
+      } catch (PortUnreachableException e) {
+        // The error answers an earlier probe and was consumed by the send, not this datagram.
+        // That probe is answered or timed out already, since a probe is only sent once the
+        // previous one is, so the error arrived too late to count as its reply.
+        Logger.d("Dropping a late port unreachable before sending probe " + seq);
+        socket.send(sendPacket);
+      }
+    }
+
+    @Override
+    public int receive(int timeoutMs) throws IOException {
+      if (timeoutMs != soTimeout) {
+        socket.setSoTimeout(timeoutMs);
+        soTimeout = timeoutMs;
+      }
+      receivePacket.setLength(receiveBuffer.length);
+      try {
+        socket.receive(receivePacket);
+      } catch (SocketTimeoutException e) {
+        return NO_REPLY;
+      } catch (PortUnreachableException e) {
+        return UNATTRIBUTED_REPLY;
+      }
+      if (receivePacket.getLength() < UDP_PROBE_HEADER_LENGTH) {
+        return NO_REPLY;
+      }
+      for (int i = 2; i < UDP_PROBE_HEADER_LENGTH; i++) {
+        if (receiveBuffer[i] != sendBuffer[i]) {
+          return NO_REPLY;
+        }
+      }
+      return ((receiveBuffer[0] & 0xFF) << 8) | (receiveBuffer[1] & 0xFF);
+    }
+
+    @Override
+    public void close() {
+      socket.close();
+    }
+  }
+
+  /**
+   * ICMP echo over a SOCK_DGRAM/IPPROTO_ICMP socket. The kernel fills in the identifier and
+   * checksum and only hands us replies to our own identifier, without the IP header.
+   */
+  private static class IcmpTransport implements Transport {
+    private final OsCalls os;
+    private final FileDescriptor fd;
+    private final InetAddress target;
+    private final byte[] sendBuffer;
+    private final byte[] receiveBuffer;
+    private final int replyType;
+    private int soTimeout = -1;
+
+    IcmpTransport(InetAddress target, int payloadSize, int ttl) throws IOException {
+      os = OsCalls.get();
+      if (os == null) {
+        throw new IOException("android.system.Os is not available");
+      }
+      boolean v6 = target instanceof Inet6Address;
+      this.target = target;
+      fd = os.socket(v6 ? os.AF_INET6 : os.AF_INET, os.SOCK_DGRAM,
+                     v6 ? os.IPPROTO_ICMPV6 : os.IPPROTO_ICMP);
+      try {
+        if (v6 && os.IPV6_UNICAST_HOPS >= 0) {
+          os.setsockoptInt(fd, os.IPPROTO_IPV6, os.IPV6_UNICAST_HOPS, ttl);
+        } else if (!v6 && os.IP_TTL >= 0) {
+          os.setsockoptInt(fd, os.IPPROTO_IP, os.IP_TTL, ttl);
+        }
+      } catch (IOException e) {
+        Logger.w("Unable to set ttl on ICMP socket: " + e.getMessage());
+      }
+      sendBuffer = new byte[ICMP_HEADER_LENGTH + payloadSize];
+      for (int i = ICMP_HEADER_LENGTH; i < sendBuffer.length; i++) {
+        sendBuffer[i] = (byte) i;
+      }
+      // Echo request, 8 for ICMP and 128 for ICMPv6
+      sendBuffer[0] = (byte) (v6 ? 128 : 8);
+      replyType = v6 ? 129 : 0;
+      receiveBuffer = new byte[sendBuffer.length + ICMP_HEADER_LENGTH];
+    }
+
+    @Override
+    public String method() {
+      return METHOD_ICMP;
+    }
+
+    @Override
+    public void send(int seq) throws IOException {
+      sendBuffer[6] = (byte) (seq >> 8);
+      sendBuffer[7] = (byte) seq;
+      os.sendto(fd, sendBuffer, target);
+    }
+
+    @Override
+    public int receive(int timeoutMs) throws IOException {
+      if (timeoutMs != soTimeout) {
+        os.setReceiveTimeout(fd, timeoutMs);
+        soTimeout = timeoutMs;
+      }
+      int length = os.recvfrom(fd, receiveBuffer);
+      if (length < ICMP_HEADER_LENGTH || (receiveBuffer[0] & 0xFF) != replyType) {
+        return NO_REPLY;
+      }
+      return ((receiveBuffer[6] & 0xFF) << 8) | (receiveBuffer[7] & 0xFF);
+    }
+
+    @Override
+    public void close() {
+      os.close(fd);
+    }
+  }
+
+  /**
+   * The android.system.Os socket calls, resolved by reflection since they are not part of the
+   * SDK this library compiles against.
+   */
+  private static class OsCalls {
+    private static final OsCalls instance = load();
+
+    final int AF_INET;
+    final int AF_INET6;
+    final int SOCK_DGRAM;
+    final int IPPROTO_IP;
+    final int IPPROTO_IPV6;
+    final int IPPROTO_ICMP;
+    final int IPPROTO_ICMPV6;
+    // -1 where the platform does not define the option
+    final int IP_TTL;
+    final int IPV6_UNICAST_HOPS;
+    private final int SOL_SOCKET;
+    private final int SO_RCVTIMEO;
+    private final int EAGAIN;
+    private final int EINTR;
+
+    private final Method socket;
+    private final Method sendto;
+    private final Method recvfrom;
+    private final Method setsockoptInt;
+    private final Method setsockoptTimeval;
+    private final Method close;
+    private final Method timevalFromMillis;
+    private final Field errno;
+
+    static OsCalls get() {
+      return instance;
+    }
+
+    private static OsCalls load() {
+      try {
+        return new OsCalls();
+      } catch (Exception e) {
+        return null;
+      }
+    }
+
+    private OsCalls() throws Exception {
+      Class<?> os = Class.forName("android.system.Os");
+      Class<?> constants = Class.forName("android.system.OsConstants");
+      Class<?> timeval = Class.forName("android.system.StructTimeval");
+      AF_INET = constant(constants, "AF_INET");
+      AF_INET6 = constant(constants, "AF_INET6");
+      SOCK_DGRAM = constant(constants, "SOCK_DGRAM");
+      IPPROTO_IP = constant(constants, "IPPROTO_IP");
+      IPPROTO_IPV6 = constant(constants, "IPPROTO_IPV6");
+      IPPROTO_ICMP = constant(constants, "IPPROTO_ICMP");
+      IPPROTO_ICMPV6 = constant(constants, "IPPROTO_ICMPV6");
+      IP_TTL = optionalConstant(constants, "IP_TTL");
+      IPV6_UNICAST_HOPS = optionalConstant(constants, "IPV6_UNICAST_HOPS");
+      SOL_SOCKET = constant(constants, "SOL_SOCKET");
+      SO_RCVTIMEO = constant(constants, "SO_RCVTIMEO");
+      EAGAIN = constant(constants, "EAGAIN");
+      EINTR = constant(constants, "EINTR");
+      socket = os.getMethod("socket", int.class, int.class, int.class);
+      sendto = os.getMethod("sendto", FileDescriptor.class, byte[].class, int.class, int.class,
+                            int.class, InetAddress.class, int.class);
+      recvfrom = os.getMethod("recvfrom", FileDescriptor.class, byte[].class, int.class,
+                              int.class, int.class, InetSocketAddress.class);
+      setsockoptInt = os.getMethod("setsockoptInt", FileDescriptor.class, int.class, int.class,
+                                   int.class);
+      setsockoptTimeval = os.getMethod("setsockoptTimeval", FileDescriptor.class, int.class,
+                                       int.class, timeval);
+      close = os.getMethod("close", FileDescriptor.class);
+      timevalFromMillis = timeval.getMethod("fromMillis", long.class);
+      errno = Class.forName("android.system.ErrnoException").getField("errno");
+    }
+
+    FileDescriptor socket(int domain, int type, int protocol) throws IOException {
+      return (FileDescriptor) invoke(socket, domain, type, protocol);
+    }
+
+    void sendto(FileDescriptor fd, byte[] buffer, InetAddress address) throws IOException {
+      invoke(sendto, fd, buffer, 0, buffer.length, 0, address, 0);
+    }
+
+    /**
+     * @return bytes received, or 0 if the receive timeout expired
+     */
+    int recvfrom(FileDescriptor fd, byte[] buffer) throws IOException {
+      try {
+        return (Integer) invoke(recvfrom, fd, buffer, 0, buffer.length, 0, null);
+      } catch (ErrnoIOException e) {
+        if (e.errno == EAGAIN || e.errno == EINTR) {
+          return 0;
+        }
+        throw e;
+      }
+    }
+
+    void setsockoptInt(FileDescriptor fd, int level, int option, int value)
+        throws IOException {
+      invoke(setsockoptInt, fd, level, option, value);
+    }
+
+    void setReceiveTimeout(FileDescriptor fd, int timeoutMs) throws IOException {
+      Object timeval;
+      try {
+        timeval = timevalFromMillis.invoke(null, (long) timeoutMs);
+      } catch (Exception e) {
+        throw new IOException(e.toString());
+      }
+      invoke(setsockoptTimeval, fd, SOL_SOCKET, SO_RCVTIMEO, timeval);
+    }
+
+    void close(FileDescriptor fd) {
+      try {
+        invoke(close, fd);
+      } catch (IOException e) {
+        Logger.w("Unable to close ICMP socket: " + e.getMessage());
+      }
+    }
+
+    private Object invoke(Method method, Object... args) throws IOException {
+      try {
+        return method.invoke(null, args);
+      } catch (InvocationTargetException e) {
+        Throwable cause = e.getCause();
+        int code = -1;
+        try {
+          code = errno.getInt(cause);
+        } catch (Exception ignored) {
+          // Not an ErrnoException
+        }
+        throw new ErrnoIOException(method.getName() + ": " + cause, code);
+      } catch (IllegalAccessException e) {
+        throw new IOException(e.toString());
+      }
+    }
+
+    private static int constant(Class<?> constants, String name) throws Exception {
+      return constants.getField(name).getInt(null);
+    }
+
+    private static int optionalConstant(Class<?> constants, String name) {
+      try {
+        return constant(constants, name);
+      } catch (Exception e) {
+        return -1;
+      }
+    }
+  }
+
+  private static class ErrnoIOException extends IOException {
+    final int errno;
+
+    ErrnoIOException(String message, int errno) {
+      super(message);
+      this.errno = errno;
+    }
+  }
+}
@@ -0,0 +1,256 @@
+/* Copyright 2013 RobustNet Lab, University of Michigan. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mobilyzer.util;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Map;
+
+import com.google.myjson.JsonArray;
+import com.google.myjson.JsonElement;
+import com.google.myjson.JsonObject;
+import com.google.myjson.JsonPrimitive;
+
+/**
+ * Streaming JSON writer that emits exactly the text org.json's JSONObject.toString() produces.
+ *
+ * Results used to go through gson into a String, get parsed into a JSONObject and then be
+ * stringified again before they were stored or uploaded. Writing through this class skips both
+ * intermediate representations while keeping the output byte-identical: strings are escaped the
+ * way JSONStringer does it and numbers are formatted as they would be after a JSONTokener round
+ * trip (integral doubles lose their fraction, -0.0 becomes -0).
+ */
+public class JsonStreamWriter {
+  private final Writer out;
+  // hasElement[i] is true once the container at nesting level i holds at least one entry
+  private boolean[] hasElement = new boolean[16];
+  private int depth = 0;
+  private boolean afterName = false;
+
+  public JsonStreamWriter(Writer out) {
+    this.out = out;
+  }
+
+  public JsonStreamWriter beginObject() throws IOException {
+    beforeValue();
+    push();
+    out.write('{');
+    return this;
+  }
+
+  public JsonStreamWriter endObject() throws IOException {
+    depth--;
+    out.write('}');
+    return this;
+  }
+
+  public JsonStreamWriter beginArray() throws IOException {
+    beforeValue();
+    push();
+    out.write('[');
+    return this;
+  }
+
+  public JsonStreamWriter endArray() throws IOException {
+    depth--;
+    out.write(']');
+    return this;
+  }
+
+  public JsonStreamWriter name(String name) throws IOException {
+    if (hasElement[depth]) {
+      out.write(',');
+    }
+    hasElement[depth] = true;
+    string(name);
+    out.write(':');
+    afterName = true;
+    return this;
+  }
+
+  public JsonStreamWriter value(String value) throws IOException {
+    return value((CharSequence) value);
+  }
+
+  public JsonStreamWriter value(CharSequence value) throws IOException {
+    if (value == null) {
+      return nullValue();
+    }
+    beforeValue();
+    string(value);
+    return this;
+  }
+
+  public JsonStreamWriter value(boolean value) throws IOException {
+    beforeValue();
+    out.write(value ? "true" : "false");
+    return this;
+  }
+
+  public JsonStreamWriter value(long value) throws IOException {
+    beforeValue();
+    out.write(Long.toString(value));
+    return this;
+  }
+
+  public JsonStreamWriter value(double value) throws IOException {
+    beforeValue();
+    out.write(formatDouble(value));
+    return this;
+  }
+
+  public JsonStreamWriter value(Number value) throws IOException {
+    if (value == null) {
+      return nullValue();
+    }
+    if (value instanceof Long || value instanceof Integer || value instanceof Short
+        || value instanceof Byte) {
+      return value(value.longValue());
+    }
+    if (value instanceof Float) {
+      // gson prints floats with Float.toString(), which JSONTokener then reads back as a double
+      return value(Double.parseDouble(value.toString()));
+    }
+    return value(value.doubleValue());
+  }
+
+  public JsonStreamWriter nullValue() throws IOException {
+    beforeValue();
+    out.write("null");
+    return this;
+  }
+
+  /**
+   * Writes a flat string map as a JSON object, preserving the map's iteration order.
+   */
+  public JsonStreamWriter value(Map<String, String> map) throws IOException {
+    if (map == null) {
+      return nullValue();
+    }
+    beginObject();
+    for (Map.Entry<String, String> entry : map.entrySet()) {
+      name(entry.getKey()).value(entry.getValue());
+    }
+    return endObject();
+  }
+
+  /**
+   * Writes a gson tree. Used for the polymorphic descriptor classes whose fields are only known
+   * to gson's reflection.
+   */
+  public JsonStreamWriter value(JsonElement element) throws IOException {
+    if (element == null || element.isJsonNull()) {
+      return nullValue();
+    }
+    if (element.isJsonPrimitive()) {
+      JsonPrimitive primitive = element.getAsJsonPrimitive();
+      if (primitive.isBoolean()) {
+        return value(primitive.getAsBoolean());
+      } else if (primitive.isNumber()) {
+        return value(primitive.getAsNumber());
+      }
+      return value(primitive.getAsString());
+    }
+    if (element.isJsonArray()) {
+      beginArray();
+      for (JsonElement child : (JsonArray) element) {
+        value(child);
+      }
+      return endArray();
+    }
+    beginObject();
+    for (Map.Entry<String, JsonElement> entry : ((JsonObject) element).entrySet()) {
+      name(entry.getKey()).value(entry.getValue());
+    }
+    return endObject();
+  }
+
+  public void flush() throws IOException {
+    out.flush();
+  }
+
+  private void beforeValue() throws IOException {
+    if (afterName) {
+      afterName = false;
+      return;
+    }
+    if (hasElement[depth]) {
+      out.write(',');
+    }
+    hasElement[depth] = true;
+  }
+
+  private void push() {
+    depth++;
+    if (depth == hasElement.length) {
+      boolean[] grown = new boolean[hasElement.length * 2];
+      System.arraycopy(hasElement, 0, grown, 0, hasElement.length);
+      hasElement = grown;
+    }
+    hasElement[depth] = false;
+  }
+
+  private static String formatDouble(double value) {
+    if (value == 0 && 1 / value < 0) {
+      return "-0";
+    }
+    long longValue = (long) value;
+    if (value == (double) longValue) {
+      return Long.toString(longValue);
+    }
+    return Double.toString(value);
+  }
+
+  private void string(CharSequence value) throws IOException {
+    out.write('"');
+    for (int i = 0, length = value.length(); i < length; i++) {
+      char c = value.charAt(i);
+      switch (c) {
+        case '"':
+        case '\\':
+        case '/':
+          out.write('\\');
+          out.write(c);
+          break;
+        case '\t':
+          out.write("\\t");
+          break;
+        case '\b':
+          out.write("\\b");
+          break;
+        case '\n':
+          out.write("\\n");
+          break;
+        case '\r':
+          out.write("\\r");
+          break;
+        case '\f':
+          out.write("\\f");
+          break;
+        default:
+          if (c <= 0x1F) {
+            out.write("\\u00");
+            out.write(Character.forDigit(c >> 4, 16));
+            out.write(Character.forDigit(c & 0xF, 16));
+          } else {
+            out.write(c);
+          }
+          break;
+      }
+    }
+    out.write('"');
+  }
+}
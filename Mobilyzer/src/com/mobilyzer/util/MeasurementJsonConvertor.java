@@ -26,20 +26,20 @@ import com.google.myjson.JsonPrimitive;
 import com.google.myjson.JsonSerializationContext;
 import com.google.myjson.JsonSerializer;
 import com.mobilyzer.MeasurementDesc;
+import com.mobilyzer.MeasurementResult;
 import com.mobilyzer.MeasurementTask;
 
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.io.IOException;
+import java.io.Writer;
 import java.lang.reflect.Constructor;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.lang.reflect.Type;
-import java.text.DateFormat;
 import java.text.ParseException;
-import java.text.SimpleDateFormat;
 import java.util.Date;
-import java.util.TimeZone;
 
 
 /**
@@ -59,12 +59,6 @@ public class MeasurementJsonConvertor {
   public static Gson gson = new GsonBuilder().serializeNulls().
       registerTypeAdapter(Date.class, new DateTypeConverter()).
       setFieldNamingPolicy(FieldNamingPolicy.LOWER_CASE_WITH_UNDERSCORES).create();
-  private static final DateFormat dateFormat = 
-      new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'");
-
-  static {
-    dateFormat.setTimeZone(TimeZone.getTimeZone("GMT"));
-  }
   
   public static MeasurementTask makeMeasurementTaskFromJson(
       JSONObject json) throws IllegalArgumentException {  
@@ -109,6 +103,14 @@ public class MeasurementJsonConvertor {
     return new JSONObject(str);
   }
   
+  /**
+   * Streams a result into the given sink as a single JSON object. The text is byte-identical
+   * to encodeToJson(result).toString(), without building the intermediate String and JSONObject.
+   */
+  public static void writeResult(MeasurementResult result, Writer out) throws IOException {
+    result.writeJson(new JsonStreamWriter(out));
+  }
+  
   public static String toJsonString(Object obj) {
     return gson.toJson(obj);
   }
@@ -144,11 +146,15 @@ public class MeasurementJsonConvertor {
     }
   }
   
+  /**
+   * The adapter is shared by the scheduler, checkin, receiver and IPC threads, so it goes through
+   * the lock-free TimestampCodec rather than a shared SimpleDateFormat
+   */
   private static Date parseDate(String dateString) throws ParseException {
-    return dateFormat.parse(dateString);
+    return TimestampCodec.parse(dateString);
   }
 
   private static String formatDate(Date date) {
-    return dateFormat.format(date);
+    return TimestampCodec.format(date);
   }
 }
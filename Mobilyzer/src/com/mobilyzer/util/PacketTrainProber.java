@@ -0,0 +1,191 @@
+/* Copyright 2013 RobustNet Lab, University of Michigan. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mobilyzer.util;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.PortUnreachableException;
+import java.net.SocketTimeoutException;
+import java.util.Arrays;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Sends trains of UDP datagrams to an echo server and times the replies, for RRCTask.
+ *
+ * One connected socket and its buffers are kept for the whole inference run, so no probe pays
+ * for socket setup. Send and receive times are System.nanoTime() readings, and waits between
+ * probes run against nanoTime deadlines rather than a sleep after whatever the previous step
+ * took.
+ *
+ * The echo server does not tag its replies. Replies still queued from an earlier train, which
+ * timed out, are drained before each train so they are not taken for answers to it.
+ */
+public class PacketTrainProber {
+  // Sleep until this close to a deadline, then park off the rest
+  private static final long SPIN_THRESHOLD_NANOS = 2000000;
+
+  private final DatagramSocket socket;
+  private final DatagramPacket sendPacket;
+  private final byte[] receiveBuffer;
+  private final DatagramPacket receivePacket;
+  private int soTimeout = -1;
+  private long bytesSent = 0;
+  private long bytesReceived = 0;
+
+  /**
+   * Outcome of one train. Lost datagrams have a receive time of -1. Replies are matched to
+   * datagrams in order of arrival.
+   */
+  public static class Train {
+    public final long[] sendNanos;
+    public final long[] receiveNanos;
+    public final int received;
+
+    Train(long[] sendNanos, long[] receiveNanos, int received) {
+      this.sendNanos = sendNanos;
+      this.receiveNanos = receiveNanos;
+      this.received = received;
+    }
+
+    public int getLost() {
+      return sendNanos.length - received;
+    }
+
+    /**
+     * @return time from the first send to the first reply, -1 if nothing came back
+     */
+    public long getFirstReplyNanos() {
+      return received == 0 ? -1 : receiveNanos[0] - sendNanos[0];
+    }
+
+    /**
+     * @return when the train was done with: the last reply, or the last send if none came back
+     */
+    public long getEndNanos() {
+      return received == 0 ? sendNanos[sendNanos.length - 1] : receiveNanos[received - 1];
+    }
+  }
+
+  /**
+   * @param maxPacketSize largest datagram that will be sent or received
+   */
+  public PacketTrainProber(InetAddress server, int port, int maxPacketSize) throws IOException {
+    socket = new DatagramSocket();
+    socket.connect(server, port);
+    // Zero filled, the echo server only looks at the size
+    sendPacket = new DatagramPacket(new byte[maxPacketSize], maxPacketSize);
+    receiveBuffer = new byte[maxPacketSize];
+    receivePacket = new DatagramPacket(receiveBuffer, receiveBuffer.length);
+  }
+
+  /**
+   * Sends count datagrams of size bytes back to back and collects up to count replies, giving up
+   * timeoutNanos after the first send.
+   */
+  public Train sendTrain(int size, int count, long timeoutNanos) throws IOException {
+    drain();
+    long[] sendNanos = new long[count];
+    long[] receiveNanos = new long[count];
+    Arrays.fill(receiveNanos, -1);
+    for (int i = 0; i < count; i++) {
+      sendPacket.setLength(size);
+      sendNanos[i] = System.nanoTime();
+      socket.send(sendPacket);
+      bytesSent += size;
+    }
+
+    int received = 0;
+    long deadline = sendNanos[0] + timeoutNanos;
+    while (received < count) {
+      long remaining = deadline - System.nanoTime();
+      if (remaining <= 0) {
+        break;
+      }
+      // A timeout of 0 blocks forever, so wait at least a millisecond
+      if (receive((int) Math.max(1, remaining / 1000000))) {
+        receiveNanos[received++] = System.nanoTime();
+      }
+    }
+    return new Train(sendNanos, receiveNanos, received);
+  }
+
+  /**
+   * Waits until System.nanoTime() reaches deadlineNanos
+   */
+  public static void waitUntil(long deadlineNanos) throws InterruptedException {
+    while (true) {
+      long remaining = deadlineNanos - System.nanoTime();
+      if (remaining <= 0) {
+        return;
+      }
+      if (remaining > SPIN_THRESHOLD_NANOS) {
+        long sleepNanos = remaining - SPIN_THRESHOLD_NANOS;
+        Thread.sleep(sleepNanos / 1000000, (int) (sleepNanos % 1000000));
+      } else {
+        LockSupport.parkNanos(remaining);
+        if (Thread.interrupted()) {
+          throw new InterruptedException();
+        }
+      }
+    }
+  }
+
+  public long getBytesSent() {
+    return bytesSent;
+  }
+
+  public long getBytesReceived() {
+    return bytesReceived;
+  }
+
+  public void close() {
+    socket.close();
+  }
+
+  /**
+   * Waits up to timeoutMs for a datagram
+   * @return whether one was received, empty datagrams included
+   */
+  private boolean receive(int timeoutMs) throws IOException {
+    if (timeoutMs != soTimeout) {
+      socket.setSoTimeout(timeoutMs);
+      soTimeout = timeoutMs;
+    }
+    receivePacket.setLength(receiveBuffer.length);
+    try {
+      socket.receive(receivePacket);
+    } catch (SocketTimeoutException e) {
+      return false;
+    } catch (PortUnreachableException e) {
+      // Nobody listens on the echo port, the train is lost
+      return false;
+    }
+    bytesReceived += receivePacket.getLength();
+    return true;
+  }
+
+  private void drain() throws IOException {
+    int stale = 0;
+    while (receive(1)) {
+      stale++;
+    }
+    if (stale > 0) {
+      Logger.d("Dropped " + stale + " late replies from an earlier train");
+    }
+  }
+}
@@ -0,0 +1,390 @@
+/* Copyright 2013 RobustNet Lab, University of Michigan. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mobilyzer.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.BitSet;
+
+/**
+ * Streaming parser for the output of the ping and ping6 commands, shared by PingTask and
+ * TracerouteTask.
+ *
+ * The process output is consumed as raw bytes. Each line is collected in a fixed buffer and
+ * scanned in place for the fields we care about, so parsing allocates nothing per reply:
+ * <ul>
+ * <li>echo replies ("... icmp_seq=N ttl=T time=R ms") are stored as sequence number, ttl and
+ * round trip time in primitive arrays. Duplicate sequence numbers are tracked in a bitset and
+ * not stored again.</li>
+ * <li>the summary line ("N packets transmitted, M received") gives the sent and received
+ * counts.</li>
+ * <li>"From ADDR ..." lines, the ICMP errors traceroute relies on, give the address of the
+ * sending host.</li>
+ * </ul>
+ * A parser can be reused after {@link #reset()}.
+ */
+public class PingOutputParser {
+  // Longer lines are truncated, ping never prints anything of interest past this
+  private static final int MAX_LINE_LENGTH = 512;
+
+  private static final byte[] ICMP_SEQ = ascii("icmp_seq=");
+  private static final byte[] TTL = ascii("ttl=");
+  // BSD style ping6 reports the hop limit instead
+  private static final byte[] HLIM = ascii("hlim=");
+  private static final byte[] TIME = ascii(" time=");
+  private static final byte[] PACKETS = ascii(" packets transmitted");
+  private static final byte[] RECEIVED = ascii(" received");
+  private static final byte[] FROM = ascii("From ");
+  private static final Charset ASCII = Charset.forName("US-ASCII");
+
+  private final byte[] line = new byte[MAX_LINE_LENGTH];
+  private int lineLength = 0;
+  private byte[] readBuffer;
+
+  private int replyCount = 0;
+  private int[] seqs = new int[16];
+  private int[] ttls = new int[16];
+  private double[] rtts = new double[16];
+  private final BitSet seenSeqs = new BitSet();
+  private int duplicateCount = 0;
+  private int packetsTransmitted = -1;
+  private int packetsReceived = -1;
+  private ArrayList<String> fromHosts = null;
+
+  public void reset() {
+    lineLength = 0;
+    replyCount = 0;
+    seenSeqs.clear();
+    duplicateCount = 0;
+    packetsTransmitted = -1;
+    packetsReceived = -1;
+    fromHosts = null;
+  }
+
+  /**
+   * Consumes the stream until it ends
+   */
+  public void parse(InputStream in) throws IOException {
+    if (readBuffer == null) {
+      readBuffer = new byte[1024];
+    }
+    int n;
+    while ((n = in.read(readBuffer, 0, readBuffer.length)) > 0) {
+      write(readBuffer, 0, n);
+    }
+    finish();
+  }
+
+  /**
+   * Consumes a chunk of output, which need not end on a line boundary
+   */
+  public void write(byte[] buffer, int offset, int length) {
+    for (int i = offset, end = offset + length; i < end; i++) {
+      byte b = buffer[i];
+      if (b == '\n') {
+        endLine();
+      } else if (b != '\r' && lineLength < MAX_LINE_LENGTH) {
+        line[lineLength++] = b;
+      }
+    }
+  }
+
+  /**
+   * Parses a trailing line that was not terminated by a newline
+   */
+  public void finish() {
+    if (lineLength > 0) {
+      endLine();
+    }
+  }
+
+  /** @return number of distinct echo replies parsed */
+  public int getReplyCount() {
+    return replyCount;
+  }
+
+  public int getSeq(int i) {
+    return seqs[i];
+  }
+
+  /** @return ttl of reply i, or -1 if ping did not print it */
+  public int getTtl(int i) {
+    return ttls[i];
+  }
+
+  public double getRttMs(int i) {
+    return rtts[i];
+  }
+
+  /** @return the round trip times of the distinct replies, in the order they were printed */
+  public double[] getRttsMs() {
+    double[] copy = new double[replyCount];
+    System.arraycopy(rtts, 0, copy, 0, replyCount);
+    return copy;
+  }
+
+  public int getDuplicateCount() {
+    return duplicateCount;
+  }
+
+  /** @return packets sent according to the summary line, or -1 if there was none */
+  public int getPacketsTransmitted() {
+    return packetsTransmitted;
+  }
+
+  /** @return packets received according to the summary line, or -1 if there was none */
+  public int getPacketsReceived() {
+    return packetsReceived;
+  }
+
+  /**
+   * @return addresses of the hosts that sent the "From" lines, in order, possibly repeated
+   */
+  public ArrayList<String> getFromHosts() {
+    return fromHosts == null ? new ArrayList<String>() : fromHosts;
+  }
+
+  private void endLine() {
+    int length = lineLength;
+    lineLength = 0;
+    if (startsWith(line, length, FROM)) {
+      parseFromLine(length);
+      return;
+    }
+    int seqAt = indexOf(line, length, ICMP_SEQ, 0);
+    if (seqAt >= 0) {
+      int timeAt = indexOf(line, length, TIME, seqAt);
+      if (timeAt >= 0) {
+        parseReply(length, seqAt + ICMP_SEQ.length, timeAt + TIME.length);
+      }
+      return;
+    }
+    int packetsAt = indexOf(line, length, PACKETS, 0);
+    if (packetsAt >= 0) {
+      int receivedAt = indexOf(line, length, RECEIVED, packetsAt);
+      if (receivedAt >= 0) {
+        int sent = digitsBefore(line, packetsAt);
+        int received = digitsBefore(line, receivedAt);
+        if (sent >= 0 && received >= 0) {
+          packetsTransmitted = sent;
+          packetsReceived = received;
+        }
+      }
+    }
+  }
+
+  private void parseReply(int length, int seqStart, int timeStart) {
+    int seq = 0;
+    int i = seqStart;
+    for (; i < length && isDigit(line[i]); i++) {
+      seq = seq * 10 + (line[i] - '0');
+    }
+    if (i == seqStart) {
+      return;
+    }
+
+    long mantissa = 0;
+    int scale = 0;
+    int digits = 0;
+    boolean fraction = false;
+    for (i = timeStart; i < length; i++) {
+      byte b = line[i];
+      if (isDigit(b)) {
+        if (digits < 18) {
+          mantissa = mantissa * 10 + (b - '0');
+          digits++;
+          scale += fraction ? 1 : 0;
+        } else if (!fraction) {
+          // Keep the magnitude of absurdly long integers, precision is gone anyway
+          scale--;
+        }
+      } else if (b == '.' && !fraction) {
+        fraction = true;
+      } else {
+        break;
+      }
+    }
+    if (digits == 0) {
+      return;
+    }
+    double rtt = scale >= 0 ? mantissa / Math.pow(10, scale) : mantissa * Math.pow(10, -scale);
+
+    if (seenSeqs.get(seq)) {
+      duplicateCount++;
+      return;
+    }
+    seenSeqs.set(seq);
+
+    int ttl = -1;
+    int ttlAt = indexOf(line, length, TTL, 0);
+    int ttlStart = ttlAt >= 0 ? ttlAt + TTL.length : -1;
+    if (ttlAt < 0) {
+      ttlAt = indexOf(line, length, HLIM, 0);
+      ttlStart = ttlAt >= 0 ? ttlAt + HLIM.length : -1;
+    }
+    if (ttlStart >= 0 && ttlStart < length && isDigit(line[ttlStart])) {
+      ttl = 0;
+      for (i = ttlStart; i < length && isDigit(line[i]); i++) {
+        ttl = ttl * 10 + (line[i] - '0');
+      }
+    }
+
+    if (replyCount == seqs.length) {
+      int capacity = replyCount * 2;
+      int[] newSeqs = new int[capacity];
+      int[] newTtls = new int[capacity];
+      double[] newRtts = new double[capacity];
+      System.arraycopy(seqs, 0, newSeqs, 0, replyCount);
+      System.arraycopy(ttls, 0, newTtls, 0, replyCount);
+      System.arraycopy(rtts, 0, newRtts, 0, replyCount);
+      seqs = newSeqs;
+      ttls = newTtls;
+      rtts = newRtts;
+    }
+    seqs[replyCount] = seq;
+    ttls[replyCount] = ttl;
+    rtts[replyCount] = rtt;
+    replyCount++;
+  }
+
+  /**
+   * Picks the sender address out of a "From" line. It is normally the second token, possibly
+   * followed by a colon (Android 4.3 and above); otherwise the first token that looks like an
+   * address is used.
+   */
+  private void parseFromLine(int length) {
+    int start = FROM.length;
+    while (start < length) {
+      while (start < length && line[start] == ' ') {
+        start++;
+      }
+      int end = start;
+      while (end < length && line[end] != ' ') {
+        end++;
+      }
+      int tokenEnd = end;
+      if (start == FROM.length && tokenEnd > start && line[tokenEnd - 1] == ':') {
+        tokenEnd--;
+      }
+      if (tokenEnd > start && (isIpv4(start, tokenEnd) || isIpv6(start, tokenEnd))) {
+        if (fromHosts == null) {
+          fromHosts = new ArrayList<String>();
+        }
+        fromHosts.add(new String(line, start, tokenEnd - start, ASCII));
+        return;
+      }
+      start = end;
+    }
+  }
+
+  /** Dotted quad with every part in 0..255 */
+  private boolean isIpv4(int start, int end) {
+    int parts = 0;
+    int value = -1;
+    for (int i = start; i < end; i++) {
+      byte b = line[i];
+      if (isDigit(b)) {
+        value = (value < 0 ? 0 : value * 10) + (b - '0');
+        if (value > 255) {
+          return false;
+        }
+      } else if (b == '.' && value >= 0) {
+        parts++;
+        value = -1;
+      } else {
+        return false;
+      }
+    }
+    return value >= 0 && parts == 3;
+  }
+
+  /** Up to eight colon separated groups of at most four hex digits, empty groups allowed */
+  private boolean isIpv6(int start, int end) {
+    int colons = 0;
+    int groupDigits = 0;
+    for (int i = start; i < end; i++) {
+      byte b = line[i];
+      if (b == ':') {
+        colons++;
+        groupDigits = 0;
+      } else if (isHexDigit(b) && ++groupDigits <= 4) {
+        continue;
+      } else {
+        return false;
+      }
+    }
+    return colons >= 2 && colons <= 8;
+  }
+
+  /** @return the number ending right before the space at index at, or -1 if there is none */
+  private static int digitsBefore(byte[] buffer, int at) {
+    int i = at;
+    while (i > 0 && isDigit(buffer[i - 1])) {
+      i--;
+    }
+    if (i == at) {
+      return -1;
+    }
+    int value = 0;
+    for (; i < at; i++) {
+      value = value * 10 + (buffer[i] - '0');
+    }
+    return value;
+  }
+
+  private static int indexOf(byte[] buffer, int length, byte[] pattern, int from) {
+    outer:
+    for (int i = from, last = length - pattern.length; i <= last; i++) {
+      for (int j = 0; j < pattern.length; j++) {
+        if (buffer[i + j] != pattern[j]) {
+          continue outer;
+        }
+      }
+      return i;
+    }
+    return -1;
+  }
+
+  private static boolean startsWith(byte[] buffer, int length, byte[] prefix) {
+    if (length < prefix.length) {
+      return false;
+    }
+    for (int i = 0; i < prefix.length; i++) {
+      if (buffer[i] != prefix[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static boolean isDigit(byte b) {
+    return b >= '0' && b <= '9';
+  }
+
+  private static boolean isHexDigit(byte b) {
+    return isDigit(b) || (b >= 'a' && b <= 'f') || (b >= 'A' && b <= 'F');
+  }
+
+  private static byte[] ascii(String s) {
+    byte[] bytes = new byte[s.length()];
+    for (int i = 0; i < bytes.length; i++) {
+      bytes[i] = (byte) s.charAt(i);
+    }
+    return bytes;
+  }
+}
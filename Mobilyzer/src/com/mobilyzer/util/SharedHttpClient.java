@@ -0,0 +1,224 @@
+/* Copyright 2013 RobustNet Lab, University of Michigan. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mobilyzer.util;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.UnknownHostException;
+import java.security.GeneralSecurityException;
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.ssl.HandshakeCompletedEvent;
+import javax.net.ssl.HandshakeCompletedListener;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+
+import com.squareup.okhttp.ConnectionPool;
+import com.squareup.okhttp.OkHttpClient;
+
+/**
+ * Process-wide okhttp client for HTTP measurements, backed by a bounded connection pool so that
+ * consecutive measurements to the same origin can reuse TCP and TLS state.
+ *
+ * okhttp 2.0 has no connection event callbacks, and only the clients made here are instrumented:
+ * their TLS socket factory marks the end of the TCP connect and the TLS handshake of every new
+ * https connection. The timings go to the {@link CallTimings} registered by the calling thread
+ * with {@link #beginCall()}; okhttp opens connections on the thread that executes a call
+ * synchronously. Plain sockets are opened by okhttp itself, so new http connections cannot be
+ * seen.
+ */
+public final class SharedHttpClient {
+  /** Idle connections kept in the shared pool */
+  public static final int MAX_IDLE_CONNECTIONS = 5;
+  /** How long an idle connection stays in the shared pool */
+  public static final long KEEP_ALIVE_DURATION_MS = 5 * 60 * 1000;
+  /** Connect, read and write timeout of every call, as AndroidHttpClient had */
+  public static final long TIMEOUT_MS = 60 * 1000;
+
+  /**
+   * Connection phases of one https call. Times are System.nanoTime() readings, -1 if the phase
+   * did not happen. After redirects they describe the last connection opened.
+   */
+  public static class CallTimings {
+    public volatile long connectEndNanos = -1;
+    public volatile long handshakeStartNanos = -1;
+    public volatile long handshakeEndNanos = -1;
+    // Number of https connections opened during the call, more than one after retries or
+    // redirects
+    public volatile int connectionsOpened = 0;
+
+    /** @return true if the https call was served by a pooled connection */
+    public boolean isPoolHit() {
+      return connectionsOpened == 0;
+    }
+  }
+
+  private static final ThreadLocal<CallTimings> currentCall = new ThreadLocal<CallTimings>();
+
+  private static OkHttpClient client = null;
+  // Pool hits per origin since the last connection opened to it
+  private static final HashMap<String, Integer> reuseCounts = new HashMap<String, Integer>();
+
+  private SharedHttpClient() {}
+
+  /**
+   * @return the shared, pooled client
+   */
+  public static synchronized OkHttpClient get() throws IOException {
+    if (client == null) {
+      client = newClient(new ConnectionPool(MAX_IDLE_CONNECTIONS, KEEP_ALIVE_DURATION_MS),
+        newSslSocketFactory());
+    }
+    return client;
+  }
+
+  /**
+   * @return a client that shares nothing with earlier calls: no pooled connections and no
+   *         cached TLS sessions, so every call pays the full connection setup
+   */
+  public static OkHttpClient newColdClient() throws IOException {
+    return newClient(new ConnectionPool(0, 0), newSslSocketFactory());
+  }
+
+  /**
+   * @return a factory of its own with the platform's trust managers. The process-wide default
+   *         factory is not used, since other code in the process may replace it, e.g. the
+   *         WebView of page load measurements trusts every certificate.
+   */
+  private static SSLSocketFactory newSslSocketFactory() throws IOException {
+    try {
+      SSLContext context = SSLContext.getInstance("TLS");
+      context.init(null, null, null);
+      return context.getSocketFactory();
+    } catch (GeneralSecurityException e) {
+      throw new IOException("Cannot create TLS context: " + e.getMessage());
+    }
+  }
+
+  private static OkHttpClient newClient(ConnectionPool pool, SSLSocketFactory sslFactory) {
+    OkHttpClient okClient = new OkHttpClient();
+    // okhttp waits forever by default
+    okClient.setConnectTimeout(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+    okClient.setReadTimeout(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+    okClient.setWriteTimeout(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+    okClient.setConnectionPool(pool);
+    okClient.setSslSocketFactory(new TimedSslSocketFactory(sslFactory));
+    return okClient;
+  }
+
+  /**
+   * Starts collecting connection timings for a call executed on this thread
+   */
+  public static CallTimings beginCall() {
+    CallTimings timings = new CallTimings();
+    currentCall.set(timings);
+    return timings;
+  }
+
+  /**
+   * Stops collecting timings for this thread and updates the reuse count of the origin
+   * @return the number of calls to origin served from the pool since it last needed a new
+   *         connection, 0 if this call opened one
+   */
+  public static int endCall(CallTimings timings, String origin) {
+    currentCall.remove();
+    synchronized (reuseCounts) {
+      int count = 0;
+      if (timings.isPoolHit()) {
+        Integer previous = reuseCounts.get(origin);
+        count = previous == null ? 1 : previous + 1;
+      }
+      reuseCounts.put(origin, count);
+      return count;
+    }
+  }
+
+  /**
+   * Stops collecting timings for this thread without counting the call, e.g. after it failed
+   */
+  public static void clearCall() {
+    currentCall.remove();
+  }
+
+  /**
+   * Marks the start of the TLS handshake when okhttp layers TLS over a connected socket and its
+   * end when the handshake completes. The sockets themselves are the delegate's, unwrapped, so
+   * okhttp can still enable platform TLS extensions on them.
+   */
+  private static class TimedSslSocketFactory extends SSLSocketFactory {
+    private final SSLSocketFactory delegate;
+
+    TimedSslSocketFactory(SSLSocketFactory delegate) {
+      this.delegate = delegate;
+    }
+
+    @Override
+    public Socket createSocket(Socket s, String host, int port, boolean autoClose)
+        throws IOException {
+      Socket socket = delegate.createSocket(s, host, port, autoClose);
+      final CallTimings timings = currentCall.get();
+      if (timings != null && socket instanceof SSLSocket) {
+        // okhttp layers TLS right after the TCP connect
+        timings.connectEndNanos = System.nanoTime();
+        timings.handshakeStartNanos = timings.connectEndNanos;
+        timings.handshakeEndNanos = -1;
+        timings.connectionsOpened++;
+        ((SSLSocket) socket).addHandshakeCompletedListener(new HandshakeCompletedListener() {
+          @Override
+          public void handshakeCompleted(HandshakeCompletedEvent event) {
+            timings.handshakeEndNanos = System.nanoTime();
+          }
+        });
+      }
+      return socket;
+    }
+
+    @Override
+    public String[] getDefaultCipherSuites() {
+      return delegate.getDefaultCipherSuites();
+    }
+
+    @Override
+    public String[] getSupportedCipherSuites() {
+      return delegate.getSupportedCipherSuites();
+    }
+
+    @Override
+    public Socket createSocket(String host, int port) throws IOException, UnknownHostException {
+      return delegate.createSocket(host, port);
+    }
+
+    @Override
+    public Socket createSocket(String host, int port, InetAddress localHost, int localPort)
+        throws IOException, UnknownHostException {
+      return delegate.createSocket(host, port, localHost, localPort);
+    }
+
+    @Override
+    public Socket createSocket(InetAddress host, int port) throws IOException {
+      return delegate.createSocket(host, port);
+    }
+
+    @Override
+    public Socket createSocket(InetAddress address, int port, InetAddress localAddress,
+                               int localPort) throws IOException {
+      return delegate.createSocket(address, port, localAddress, localPort);
+    }
+  }
+}
@@ -0,0 +1,236 @@
+/* Copyright 2013 RobustNet Lab, University of Michigan. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mobilyzer.util;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.TimeZone;
+
+/**
+ * Thread-safe encoder and decoder for the UTC timestamps exchanged with the server, in the form
+ * "yyyy-MM-dd'T'HH:mm:ss.SSS'Z'".
+ *
+ * The date part of the most recently used second is cached, so encoding timestamps that fall in
+ * the same second only writes the fraction. The cache entry is immutable and published through a
+ * volatile field, so no locking is needed. Strings the strict decoder does not recognize are
+ * handed to a per-thread SimpleDateFormat, which keeps the lenient behavior of the old adapter.
+ *
+ * Unlike the old adapter, a 6-digit fraction ("...ss.SSSSSSZ") is decoded as microseconds and
+ * truncated to milliseconds. SimpleDateFormat read all six digits leniently as milliseconds,
+ * which put such timestamps up to 999 seconds late.
+ *
+ * TimestampCodecBenchmark, under tools/, compares the codec with the SimpleDateFormat adapter it
+ * replaced.
+ */
+public final class TimestampCodec {
+  /** Length of "yyyy-MM-ddTHH:mm:ss." */
+  private static final int PREFIX_LENGTH = 20;
+  /** Length of an encoded millisecond timestamp */
+  public static final int MILLIS_LENGTH = PREFIX_LENGTH + 4;
+  /** Length of a timestamp with a microsecond fraction */
+  private static final int MICROS_LENGTH = PREFIX_LENGTH + 7;
+
+  private static final String PATTERN = "yyyy-MM-dd'T'HH:mm:ss.SSS'Z'";
+
+  private static final class Second {
+    final long epochSecond;
+    final char[] prefix;
+
+    Second(long epochSecond, char[] prefix) {
+      this.epochSecond = epochSecond;
+      this.prefix = prefix;
+    }
+  }
+
+  private static volatile Second lastSecond = newSecond(0);
+
+  private static final ThreadLocal<char[]> buffers = new ThreadLocal<char[]>() {
+    @Override
+    protected char[] initialValue() {
+      return new char[MILLIS_LENGTH];
+    }
+  };
+
+  private static final ThreadLocal<SimpleDateFormat> fallbackFormats =
+      new ThreadLocal<SimpleDateFormat>() {
+    @Override
+    protected SimpleDateFormat initialValue() {
+      SimpleDateFormat format = new SimpleDateFormat(PATTERN);
+      format.setTimeZone(TimeZone.getTimeZone("GMT"));
+      return format;
+    }
+  };
+
+  private TimestampCodec() {}
+
+  /**
+   * Writes epochMillis as "yyyy-MM-ddTHH:mm:ss.SSSZ" into dst
+   * @return number of chars written, always {@link #MILLIS_LENGTH}
+   */
+  public static int encodeMillis(long epochMillis, char[] dst, int offset) {
+    long second = floorDiv(epochMillis, 1000);
+    int millis = (int) (epochMillis - second * 1000);
+    writePrefix(second, dst, offset);
+    writeDigits(millis, 3, dst, offset + PREFIX_LENGTH);
+    dst[offset + MILLIS_LENGTH - 1] = 'Z';
+    return MILLIS_LENGTH;
+  }
+
+  public static String format(Date date) {
+    return formatMillis(date.getTime());
+  }
+
+  public static String formatMillis(long epochMillis) {
+    char[] buffer = buffers.get();
+    return new String(buffer, 0, encodeMillis(epochMillis, buffer, 0));
+  }
+
+  public static Date parse(String timestamp) throws ParseException {
+    return new Date(parseMillis(timestamp));
+  }
+
+  /**
+   * Decodes a timestamp with a millisecond or microsecond fraction to epoch milliseconds.
+   * A 6-digit fraction is read as microseconds, and the sub-millisecond digits are truncated.
+   */
+  public static long parseMillis(String timestamp) throws ParseException {
+    int length = timestamp.length();
+    if ((length == MILLIS_LENGTH || length == MICROS_LENGTH)
+        && timestamp.charAt(length - 1) == 'Z') {
+      long second = parseSecond(timestamp);
+      int fractionDigits = length - PREFIX_LENGTH - 1;
+      int fraction = parseDigits(timestamp, PREFIX_LENGTH, fractionDigits);
+      if (second != Long.MIN_VALUE && fraction >= 0) {
+        return second * 1000 + (fractionDigits == 3 ? fraction : fraction / 1000);
+      }
+    }
+    return fallbackFormats.get().parse(timestamp).getTime();
+  }
+
+  private static void writePrefix(long epochSecond, char[] dst, int offset) {
+    Second cached = lastSecond;
+    if (cached.epochSecond != epochSecond) {
+      cached = newSecond(epochSecond);
+      lastSecond = cached;
+    }
+    System.arraycopy(cached.prefix, 0, dst, offset, PREFIX_LENGTH);
+  }
+
+  /**
+   * Returns the epoch second encoded by the "yyyy-MM-ddTHH:mm:ss." prefix of the string, or
+   * Long.MIN_VALUE if the prefix is not in the strict format.
+   */
+  private static long parseSecond(String timestamp) {
+    Second cached = lastSecond;
+    if (matchesPrefix(timestamp, cached.prefix)) {
+      return cached.epochSecond;
+    }
+    if (timestamp.charAt(4) != '-' || timestamp.charAt(7) != '-' || timestamp.charAt(10) != 'T'
+        || timestamp.charAt(13) != ':' || timestamp.charAt(16) != ':'
+        || timestamp.charAt(19) != '.') {
+      return Long.MIN_VALUE;
+    }
+    int year = parseDigits(timestamp, 0, 4);
+    int month = parseDigits(timestamp, 5, 2);
+    int day = parseDigits(timestamp, 8, 2);
+    int hour = parseDigits(timestamp, 11, 2);
+    int minute = parseDigits(timestamp, 14, 2);
+    int second = parseDigits(timestamp, 17, 2);
+    if (year < 0 || month < 1 || month > 12 || day < 1 || day > 31 || hour < 0 || hour > 23
+        || minute < 0 || minute > 59 || second < 0 || second > 59) {
+      return Long.MIN_VALUE;
+    }
+    return daysFromCivil(year, month, day) * 86400L + hour * 3600 + minute * 60 + second;
+  }
+
+  private static Second newSecond(long epochSecond) {
+    long days = floorDiv(epochSecond, 86400);
+    int secondOfDay = (int) (epochSecond - days * 86400);
+
+    // Civil date from day count, after H. Hinnant's days-from-civil inverse
+    long z = days + 719468;
+    long era = floorDiv(z, 146097);
+    int dayOfEra = (int) (z - era * 146097);
+    int yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36524 - dayOfEra / 146096) / 365;
+    int dayOfYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+    int mp = (5 * dayOfYear + 2) / 153;
+    int day = dayOfYear - (153 * mp + 2) / 5 + 1;
+    int month = mp < 10 ? mp + 3 : mp - 9;
+    long year = yearOfEra + era * 400 + (month <= 2 ? 1 : 0);
+
+    char[] prefix = new char[PREFIX_LENGTH];
+    writeDigits((int) year, 4, prefix, 0);
+    prefix[4] = '-';
+    writeDigits(month, 2, prefix, 5);
+    prefix[7] = '-';
+    writeDigits(day, 2, prefix, 8);
+    prefix[10] = 'T';
+    writeDigits(secondOfDay / 3600, 2, prefix, 11);
+    prefix[13] = ':';
+    writeDigits(secondOfDay / 60 % 60, 2, prefix, 14);
+    prefix[16] = ':';
+    writeDigits(secondOfDay % 60, 2, prefix, 17);
+    prefix[19] = '.';
+    return new Second(epochSecond, prefix);
+  }
+
+  private static boolean matchesPrefix(String timestamp, char[] prefix) {
+    for (int i = 0; i < PREFIX_LENGTH; i++) {
+      if (timestamp.charAt(i) != prefix[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static long daysFromCivil(int year, int month, int day) {
+    year -= month <= 2 ? 1 : 0;
+    int era = (year >= 0 ? year : year - 399) / 400;
+    int yearOfEra = year - era * 400;
+    int dayOfYear = (153 * (month > 2 ? month - 3 : month + 9) + 2) / 5 + day - 1;
+    int dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+    return era * 146097L + dayOfEra - 719468;
+  }
+
+  private static void writeDigits(int value, int width, char[] dst, int offset) {
+    for (int i = offset + width - 1; i >= offset; i--) {
+      dst[i] = (char) ('0' + value % 10);
+      value /= 10;
+    }
+  }
+
+  /** Returns the decimal value of count digits starting at offset, or -1 on a non-digit */
+  private static int parseDigits(String s, int offset, int count) {
+    int value = 0;
+    for (int i = offset; i < offset + count; i++) {
+      char c = s.charAt(i);
+      if (c < '0' || c > '9') {
+        return -1;
+      }
+      value = value * 10 + (c - '0');
+    }
+    return value;
+  }
+
+  private static long floorDiv(long x, long y) {
+    long q = x / y;
+    if ((x % y != 0) && ((x ^ y) < 0)) {
+      q--;
+    }
+    return q;
+  }
+}
@@ -20,6 +20,7 @@ package com.mobilyzer.util;
 import android.content.Context;
 import android.net.TrafficStats;
 
+import java.io.File;
 import java.io.IOException;
 import java.math.BigInteger;
 import java.security.InvalidParameterException;
@@ -30,8 +31,6 @@ import java.util.Date;
 import java.util.Map;
 import java.util.Random;
 import java.util.UUID;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 import com.mobilyzer.Config;
 
@@ -126,54 +125,24 @@ public class Util {
     }
   }
   
+  public static double getStandardDeviation(double[] values, double avg) {
+    double total = 0;
+    for (double val : values) {
+      double dev = val - avg;
+      total += (dev * dev);
+    }
+    if (total > 0) {
+      return Math.sqrt(total / values.length);
+    } else {
+      return 0;
+    }
+  }
+
   public static String getTimeStringFromMicrosecond(long microsecond) {
     Date timestamp = new Date(microsecond / 1000);
     return timestamp.toString();
   }
 
-  /**
-   * Returns a String array that contains the ICMP sequence number and the round
-   * trip time extracted from a ping output. The first array element is the
-   * sequence number and the second element is the round trip time.
-   * 
-   * Returns a null object if either element cannot be found.
-   */
-  public static String[] extractInfoFromPingOutput(String outputLine) {
-    try {
-      Pattern pattern = Pattern.compile("icmp_seq=([0-9]+)\\s.* time=([0-9]+(\\.[0-9]+)?)");
-      Matcher matcher = pattern.matcher(outputLine);
-      matcher.find();
-      
-      return new String[] {matcher.group(1), matcher.group(2)};
-    } catch (IllegalStateException e) {
-      return null;
-    }
-  }
-  
-  /**
-   * Returns an integer array that contains the number of ICMP requests sent and the number
-   * of responses received. The first element is the requests sent and the second element
-   * is the responses received.
-   * 
-   * Returns a null object if either element cannot be found.
-   */
-  public static int[] extractPacketLossInfoFromPingOutput(String outputLine) {    
-    try {
-      Pattern pattern = Pattern.compile("([0-9]+)\\spackets.*\\s([0-9]+)\\sreceived");
-      Matcher matcher = pattern.matcher(outputLine);
-      matcher.find();
-      
-      return new int[] {Integer.parseInt(matcher.group(1)),
-                        Integer.parseInt(matcher.group(2))};
-    } catch (IllegalStateException e) {
-      return null;
-    } catch (NumberFormatException e) {
-      return null;
-    } catch (NullPointerException e) {    
-      return null;
-    }
-  }
-  
   /**
    * Return a list of system environment path 
    */
@@ -186,15 +155,47 @@ public class Util {
     return (path.contains(":")) ? path.split(":") : (new String[]{path});
   }
 
+  // Ping executables found so far, for IPv4 and IPv6. null until discovered.
+  private static String ping4Executable = null;
+  private static String ping6Executable = null;
+
+  /**
+   * Determine the ping executable based on ip address byte length. The result is cached for the
+   * life of the process; call {@link #invalidatePingExecutable(int)} when running it fails to
+   * have it discovered again.
+   */
+  public static synchronized String pingExecutableBasedOnIPType (int ipByteLen) {
+    String cached = (ipByteLen == 16) ? ping6Executable : ping4Executable;
+    if (cached != null) {
+      return cached;
+    }
+    String pingExecutable = findPingExecutable(ipByteLen);
+    if (ipByteLen == 4) {
+      ping4Executable = pingExecutable;
+    } else if (ipByteLen == 16) {
+      ping6Executable = pingExecutable;
+    }
+    return pingExecutable;
+  }
+
   /**
-   * Determine the ping executable based on ip address byte length
+   * Forget the cached ping executable for the address length, e.g. after it failed to start
    */
-  public static String pingExecutableBasedOnIPType (int ipByteLen) {
+  public static synchronized void invalidatePingExecutable(int ipByteLen) {
+    if (ipByteLen == 4) {
+      ping4Executable = null;
+    } else if (ipByteLen == 16) {
+      ping6Executable = null;
+    }
+  }
+
+  private static String findPingExecutable(int ipByteLen) {
     Process testPingProc = null;
     String[] progList = fetchEnvPaths();
     String pingExecutable = null;
     if (progList != null && progList.length != 0) {
       for (String pingLocation : progList) {
+        testPingProc = null;
         try {
           if (ipByteLen == 4) {
             pingExecutable = pingLocation + "/" + Config.PING_EXECUTABLE;
@@ -202,6 +203,13 @@ public class Util {
           } else if (ipByteLen == 16) {
             pingExecutable = pingLocation + "/" + Config.PING6_EXECUTABLE;
 //                             context.getString(R.string.ping6_executable);
+          } else {
+            return null;
+          }
+          // Don't fork for paths that plainly don't hold the binary
+          if (!new File(pingExecutable).isFile()) {
+            pingExecutable = null;
+            continue;
           }
           testPingProc = Runtime.getRuntime().exec(pingExecutable);
         } catch (IOException e) {
@@ -15,14 +15,12 @@
  */
 package com.mobilyzer.util.video;
 
-import com.mobilyzer.UpdateIntent;
 import com.mobilyzer.util.video.player.DemoPlayer;
 import com.google.android.exoplayer.ExoPlayer;
 import com.google.android.exoplayer.MediaCodecAudioTrackRenderer.AudioTrackInitializationException;
 import com.google.android.exoplayer.MediaCodecTrackRenderer.DecoderInitializationException;
 import com.google.android.exoplayer.util.VerboseLogUtil;
 
-import android.content.Intent;
 import android.media.MediaCodec.CryptoException;
 import android.os.SystemClock;
 import android.util.Log;
@@ -30,7 +28,7 @@ import android.util.Pair;
 
 import java.io.IOException;
 import java.text.NumberFormat;
-import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Locale;
 
@@ -43,22 +41,27 @@ public class EventLogger implements DemoPlayer.Listener, DemoPlayer.InfoListener
   public static HashMap<Pair<Integer, Integer>, Integer> Resolution2Bitrate = new HashMap<Pair<Integer, Integer>, Integer>();
   public static HashMap<String, Integer> Id2Bitrate = new HashMap<String, Integer>();
   
-  private ArrayList<String> dropFrameTime;
-  private ArrayList<Pair<String, Integer>> videoBitrateVarience;
-  private ArrayList<Pair<String, Integer>> audioBitrateVarience;
+  // Samples kept per series, older ones are overwritten so long sessions use bounded memory
+  private static final int MAX_SAMPLES = 1024;
+
+  private int numFrameDropped;
+  // Every bitrate switch is stored as a step: the old and the new bitrate at the same time
+  private SampleRing videoBitrateVarience;
+  private SampleRing audioBitrateVarience;
   private double initialLoadingTime;
-  private ArrayList<Double> rebufferTime;
-  private ArrayList<Pair<String, Double>> videoGoodput;
-  private ArrayList<Long> videoGoodputEstimate;
-  private ArrayList<Pair<String, Double>> audioGoodput;
+  private SampleRing rebufferTime;
+  private SampleRing videoGoodput;
+  private SampleRing videoGoodputEstimate;
+  private SampleRing audioGoodput;
   private int previousVideoBitrate;
   private int previousAudioBitrate;
+  private int videoBitrateSwitches;
   private long switchToSteadyStateTime;
   private long totalBytesDownloaded;
   
-  private double initialLoadingTime_s;
+  private long initialLoadingStartMs;
   private int bufferCounter = 0;
-  private double bufferTime_s;
+  private long bufferStartMs;
   
   private static final String TAG = "EventLogger";
   private static final NumberFormat TIME_FORMAT;
@@ -74,16 +77,17 @@ public class EventLogger implements DemoPlayer.Listener, DemoPlayer.InfoListener
   public EventLogger() {
     loadStartTimeMs = new long[DemoPlayer.RENDERER_COUNT];
     
-    this.dropFrameTime = new ArrayList<String>();
-    this.videoBitrateVarience = new ArrayList<Pair<String, Integer>>();
-    this.audioBitrateVarience = new ArrayList<Pair<String, Integer>>();
-    this.rebufferTime = new ArrayList<Double>();
-    this.videoGoodput = new ArrayList<Pair<String, Double>>();
-    this.videoGoodputEstimate = new ArrayList<Long>();
-    this.audioGoodput = new ArrayList<Pair<String, Double>>();
-    this.videoBitrateVarience.add(Pair.create("0.00", 0));
+    this.numFrameDropped = 0;
+    this.videoBitrateVarience = new SampleRing(MAX_SAMPLES);
+    this.audioBitrateVarience = new SampleRing(MAX_SAMPLES);
+    this.rebufferTime = new SampleRing(MAX_SAMPLES);
+    this.videoGoodput = new SampleRing(MAX_SAMPLES);
+    this.videoGoodputEstimate = new SampleRing(MAX_SAMPLES);
+    this.audioGoodput = new SampleRing(MAX_SAMPLES);
+    this.videoBitrateVarience.add(0, 0);
     this.previousVideoBitrate = 0;
-    this.audioBitrateVarience.add(Pair.create("0.00", 0));
+    this.videoBitrateSwitches = 0;
+    this.audioBitrateVarience.add(0, 0);
     this.previousAudioBitrate = 0;
     this.switchToSteadyStateTime = -1;
     this.totalBytesDownloaded = 0;
@@ -94,10 +98,10 @@ public class EventLogger implements DemoPlayer.Listener, DemoPlayer.InfoListener
     Log.d(TAG, "start [0]");
   }
 
-  public Intent endSession() {
+  public VideoQoEStats endSession() {
     Log.d(TAG, "end [" + getSessionTimeString() + "]");
-    this.videoBitrateVarience.add(Pair.create(getSessionTimeString(), this.previousVideoBitrate));
-    this.audioBitrateVarience.add(Pair.create(getSessionTimeString(), this.previousAudioBitrate));
+    this.videoBitrateVarience.add(getSessionTimeMs(), this.previousVideoBitrate);
+    this.audioBitrateVarience.add(getSessionTimeMs(), this.previousAudioBitrate);
     return printStatInfo();
   }
 
@@ -111,110 +115,108 @@ public class EventLogger implements DemoPlayer.Listener, DemoPlayer.InfoListener
     switch(state) {
       case ExoPlayer.STATE_PREPARING:
 //        this.bitrateVarience.add(Pair.create("0.00", currentBitrate));
-        this.initialLoadingTime_s = Double.parseDouble(getSessionTimeString());
+        this.initialLoadingStartMs = getSessionTimeMs();
         break;
 
       case ExoPlayer.STATE_BUFFERING:
         bufferCounter++;
-        bufferTime_s = Double.parseDouble(getSessionTimeString());
+        bufferStartMs = getSessionTimeMs();
         break;
       case ExoPlayer.STATE_READY:
         if (bufferCounter == 1) {
-          this.initialLoadingTime = Double.parseDouble(String.format("%.2f", Double.parseDouble(getSessionTimeString()) - this.initialLoadingTime_s));
+          this.initialLoadingTime = toSeconds(getSessionTimeMs() - this.initialLoadingStartMs);
         }
         else {
-          this.rebufferTime.add(Double.parseDouble(String.format("%.2f", Double.parseDouble(getSessionTimeString()) - bufferTime_s)));
+          this.rebufferTime.add(getSessionTimeMs(), toSeconds(getSessionTimeMs() - bufferStartMs));
         }
         break;
       case ExoPlayer.STATE_ENDED:
-        this.videoBitrateVarience.add(Pair.create(getSessionTimeString(), this.previousVideoBitrate));
-        this.audioBitrateVarience.add(Pair.create(getSessionTimeString(), this.previousAudioBitrate));
+        this.videoBitrateVarience.add(getSessionTimeMs(), this.previousVideoBitrate);
+        this.audioBitrateVarience.add(getSessionTimeMs(), this.previousAudioBitrate);
 //        printStatInfo();
         break;
     }
   }
 
-  private Intent printStatInfo() {
+  private VideoQoEStats printStatInfo() {
 //    Log.e("", "DropFrame #: " + this.dropFrameTime.size());
 //    Log.e("", "Bitrate: " + displayBitrate(this.bitrateVarience));
 //    Log.e("", "Initial Loading Time: " + this.initialLoadingTime);
 //    Log.e("", "Rebuffering: " + this.rebufferTime);
-    Log.e("ashkan_video", "" + this.dropFrameTime.size());
-    Log.e("ashkan_video", "" + displayGoodPut(this.videoGoodput));
-    Log.e("ashkan_video", "" + displayBitrate(this.videoBitrateVarience));
+    Log.e("ashkan_video", "" + this.numFrameDropped);
+    Log.e("ashkan_video", "" + displaySamples(this.videoGoodput));
+    Log.e("ashkan_video", "" + displaySamples(this.videoBitrateVarience));
     Log.e("ashkan_video", "" + this.initialLoadingTime);
-    Log.e("ashkan_video", "" + this.rebufferTime);
-    Log.e("ashkan_video", "" + displayGoodPut(this.audioGoodput));
-    Log.e("ashkan_video", "" + displayBitrate(this.audioBitrateVarience));
+    Log.e("ashkan_video", "" + Arrays.toString(this.rebufferTime.copyValues()));
+    Log.e("ashkan_video", "" + displaySamples(this.audioGoodput));
+    Log.e("ashkan_video", "" + displaySamples(this.audioBitrateVarience));
     Log.e("ashkan_video", "bba switch time " +this.switchToSteadyStateTime );
     Log.e("ashkan_video", "total bytes downloaded " +this.totalBytesDownloaded );
     
-    Intent videoQoEResult = new Intent();
-    videoQoEResult.setAction(UpdateIntent.VIDEO_MEASUREMENT_ACTION);
-    videoQoEResult.putExtra(UpdateIntent.VIDEO_TASK_PAYLOAD_NUM_FRAME_DROPPED, this.dropFrameTime.size());
-    videoQoEResult.putExtra(UpdateIntent.VIDEO_TASK_PAYLOAD_INITIAL_LOADING_TIME, this.initialLoadingTime);
-    if(this.switchToSteadyStateTime!=-1){
-      videoQoEResult.putExtra(UpdateIntent.VIDEO_TASK_PAYLOAD_BBA_SWITCH_TIME, this.switchToSteadyStateTime);
-    }
-    if(this.totalBytesDownloaded!=0){
-      videoQoEResult.putExtra(UpdateIntent.VIDEO_TASK_PAYLOAD_BYTE_USED, this.totalBytesDownloaded);
-    }
-    double[] rebufferTimeArray = new double[this.rebufferTime.size()];
-    int counter = 0;
-    for (Double rebufferSample : this.rebufferTime) {
-      rebufferTimeArray[counter] = rebufferSample;
-      counter++;
-    }
-    videoQoEResult.putExtra(UpdateIntent.VIDEO_TASK_PAYLOAD_REBUFFER_TIME, rebufferTimeArray);
-    String[] goodputTimestamp = new String[this.videoGoodput.size()];
-    double[] goodputValue = new double[this.videoGoodput.size()];
-    long[] goodputEstimate = new long[this.videoGoodputEstimate.size()]; 
-    counter = 0;
-    for (Pair<String, Double> goodputSample : this.videoGoodput) {
-      goodputTimestamp[counter] = goodputSample.first;
-      goodputValue[counter] = goodputSample.second;
-      counter++;
+    VideoQoEStats stats = new VideoQoEStats();
+    stats.numFrameDropped = this.numFrameDropped;
+    stats.initialLoadingTime = this.initialLoadingTime;
+    stats.bbaSwitchTime = this.switchToSteadyStateTime;
+    stats.bytesUsed = this.totalBytesDownloaded;
+
+    stats.rebufferTimes = this.rebufferTime.copyValues();
+    stats.rebufferCount = (int) this.rebufferTime.getCount();
+    stats.totalStallTime = toSeconds(Math.round(this.rebufferTime.getSum() * 1000));
+
+    stats.goodputTimestamps = toTimeStrings(this.videoGoodput.copyTimesMs());
+    stats.goodputValues = this.videoGoodput.copyValues();
+    double[] estimates = this.videoGoodputEstimate.copyValues();
+    stats.goodputEstimateValues = new long[estimates.length];
+    for (int i = 0; i < estimates.length; i++) {
+      stats.goodputEstimateValues[i] = (long) estimates[i];
     }
-    
-    counter=0;
-    for (Long estimate : this.videoGoodputEstimate) {
-      goodputEstimate[counter] = estimate;
-      counter++;
+    if (this.videoGoodput.getCount() > 0) {
+      stats.goodputMin = this.videoGoodput.getMin();
+      stats.goodputMax = this.videoGoodput.getMax();
+      stats.goodputMean = this.videoGoodput.getMean();
+      stats.goodputMedian = this.videoGoodput.getQuantile(0.5);
+      stats.goodputP90 = this.videoGoodput.getQuantile(0.9);
     }
     
-    videoQoEResult.putExtra(UpdateIntent.VIDEO_TASK_PAYLOAD_GOODPUT_TIMESTAMP, goodputTimestamp);
-    videoQoEResult.putExtra(UpdateIntent.VIDEO_TASK_PAYLOAD_GOODPUT_VALUE, goodputValue);
-    videoQoEResult.putExtra(UpdateIntent.VIDEO_TASK_PAYLOAD_GOODPUT_ESTIMATE_VALUE, goodputEstimate);
-    
-    String[] bitrateTimestamp = new String[this.videoBitrateVarience.size()];
-    int[] bitrateValue = new int[this.videoBitrateVarience.size()];
-    counter=0;
-    for (Pair<String, Integer> bitrateSample : this.videoBitrateVarience) {
-      bitrateTimestamp[counter] = bitrateSample.first;
-      bitrateValue[counter] = bitrateSample.second;
-      counter++;
+    stats.bitrateTimestamps = toTimeStrings(this.videoBitrateVarience.copyTimesMs());
+    double[] bitrates = this.videoBitrateVarience.copyValues();
+    stats.bitrateValues = new int[bitrates.length];
+    for (int i = 0; i < bitrates.length; i++) {
+      stats.bitrateValues[i] = (int) bitrates[i];
     }
-    videoQoEResult.putExtra(UpdateIntent.VIDEO_TASK_PAYLOAD_BITRATE_TIMESTAMP, bitrateTimestamp);
-    videoQoEResult.putExtra(UpdateIntent.VIDEO_TASK_PAYLOAD_BITRATE_VALUE, bitrateValue);
+    stats.bitrateSwitches = this.videoBitrateSwitches;
     
-    return videoQoEResult;
+    return stats;
   }
 
-  
-  private String displayBitrate(ArrayList<Pair<String, Integer>> bitrateVarience2) {
+  private String displaySamples(SampleRing samples) {
+    long[] times = samples.copyTimesMs();
+    double[] values = samples.copyValues();
     StringBuilder sBuilder = new StringBuilder();
-    for (Pair<String, Integer> pBitrate : bitrateVarience2) {
-      sBuilder.append(pBitrate.first + " " + pBitrate.second + "\n");
+    for (int i = 0; i < times.length; i++) {
+      sBuilder.append(getTimeString(times[i])).append(' ')
+          .append(String.format("%.2f", values[i])).append('\n');
+    }
+    if (samples.getCount() > 0) {
+      sBuilder.append("min ").append(String.format("%.2f", samples.getMin()))
+          .append(" max ").append(String.format("%.2f", samples.getMax()))
+          .append(" mean ").append(String.format("%.2f", samples.getMean()))
+          .append(" of ").append(samples.getCount()).append('\n');
     }
     return sBuilder.toString();
   }
 
-  private String displayGoodPut(ArrayList<Pair<String, Double>> goodput) {
-    StringBuilder sBuilder = new StringBuilder();
-    for (Pair<String, Double> pBitrate : goodput) {
-      sBuilder.append(pBitrate.first + " " + String.format("%.2f", pBitrate.second) + "\n");
+  private String[] toTimeStrings(long[] timesMs) {
+    String[] times = new String[timesMs.length];
+    for (int i = 0; i < timesMs.length; i++) {
+      times[i] = getTimeString(timesMs[i]);
     }
-    return sBuilder.toString();
+    return times;
+  }
+
+  // Seconds rounded to two decimals, the precision the durations have always been reported with
+  private static double toSeconds(long durationMs) {
+    return Math.round(durationMs / 10.0) / 100.0;
   }
   
   // Error finished, return partial results
@@ -241,11 +243,11 @@ public class EventLogger implements DemoPlayer.Listener, DemoPlayer.InfoListener
     Log.d(TAG, label + " bandwidth [" + startTime + ", " + endTime + ", " + getSessionTimeString() + ", " + bytes +
         ", " + getTimeString(elapsedMs) + ", " + bitrateEstimate + ", " + bytes * 8 / elapsedMs + "kbps]");
     if (label.equals("video")) {
-      this.videoGoodput.add(Pair.create(getSessionTimeString(), (double)bytes * 8000 / elapsedMs));
-      this.videoGoodputEstimate.add(bitrateEstimate);
+      this.videoGoodput.add(getSessionTimeMs(), (double)bytes * 8000 / elapsedMs);
+      this.videoGoodputEstimate.add(getSessionTimeMs(), bitrateEstimate);
     }
     else if (label.equals("audio")) {
-      this.audioGoodput.add(Pair.create(getSessionTimeString(), (double)bytes * 8000 / elapsedMs));
+      this.audioGoodput.add(getSessionTimeMs(), (double)bytes * 8000 / elapsedMs);
     }
 //    this.goodput.add(Pair.create(getSessionTimeString(), (double)bytes * 8000 / elapsedMs));
   }
@@ -253,7 +255,7 @@ public class EventLogger implements DemoPlayer.Listener, DemoPlayer.InfoListener
   @Override
   public void onDroppedFrames(int count, long elapsed) {
     Log.d(TAG, "droppedFrames [" + getSessionTimeString() + ", " + count + "]");
-    this.dropFrameTime.add(getSessionTimeString());
+    this.numFrameDropped++;
   }
 
   @Override
@@ -280,8 +282,12 @@ public class EventLogger implements DemoPlayer.Listener, DemoPlayer.InfoListener
     int currentBitrate = Id2Bitrate.get(formatId);
     Log.d(TAG, "videoFormat [" + getSessionTimeString() + ", " + formatId + ", " +
         Integer.toString(trigger) + ", " + currentBitrate / 1000 + "kbps" + "]");
-    this.videoBitrateVarience.add(Pair.create(getSessionTimeString(), this.previousVideoBitrate));
-    this.videoBitrateVarience.add(Pair.create(getSessionTimeString(), currentBitrate));
+    long now = getSessionTimeMs();
+    this.videoBitrateVarience.add(now, this.previousVideoBitrate);
+    this.videoBitrateVarience.add(now, currentBitrate);
+    if (currentBitrate != this.previousVideoBitrate) {
+      this.videoBitrateSwitches++;
+    }
     this.previousVideoBitrate = currentBitrate;
   }
 
@@ -290,8 +296,9 @@ public class EventLogger implements DemoPlayer.Listener, DemoPlayer.InfoListener
     int currentBitrate = Id2Bitrate.get(formatId);
     Log.d(TAG, "audioFormat [" + getSessionTimeString() + ", " + formatId + ", " +
         Integer.toString(trigger) + ", " + currentBitrate / 1000 + "kbps" + "]");
-    this.audioBitrateVarience.add(Pair.create(getSessionTimeString(), this.previousAudioBitrate));
-    this.audioBitrateVarience.add(Pair.create(getSessionTimeString(), currentBitrate));
+    long now = getSessionTimeMs();
+    this.audioBitrateVarience.add(now, this.previousAudioBitrate);
+    this.audioBitrateVarience.add(now, currentBitrate);
     this.previousAudioBitrate = currentBitrate;
   }
 
@@ -353,8 +360,12 @@ public class EventLogger implements DemoPlayer.Listener, DemoPlayer.InfoListener
     }
   }
 
+  private long getSessionTimeMs() {
+    return SystemClock.elapsedRealtime() - sessionStartTimeMs;
+  }
+
   private String getSessionTimeString() {
-    return getTimeString(SystemClock.elapsedRealtime() - sessionStartTimeMs);
+    return getTimeString(getSessionTimeMs());
 //    return getTimeString(System.currentTimeMillis());
   }
 
@@ -0,0 +1,98 @@
+/* Copyright 2013 RobustNet Lab, University of Michigan. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mobilyzer.util.video;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import android.content.Context;
+import android.content.Intent;
+
+/**
+ * Completion handle of a playback started with
+ * {@link VideoPlayerService#startPlayback(Context, android.net.Uri, String, int)}. It completes
+ * with the QoE statistics as soon as the player service releases the player. Cancelling it stops
+ * the player service.
+ */
+public class PlaybackFuture implements Future<VideoQoEStats> {
+  private final Context context;
+  private final CountDownLatch done = new CountDownLatch(1);
+  private volatile VideoQoEStats stats;
+  private volatile boolean cancelled = false;
+
+  PlaybackFuture(Context context) {
+    this.context = context;
+  }
+
+  /**
+   * @return false if the playback was already completed or cancelled
+   */
+  synchronized boolean complete(VideoQoEStats stats) {
+    if (isDone()) {
+      return false;
+    }
+    this.stats = stats;
+    done.countDown();
+    return true;
+  }
+
+  @Override
+  public boolean cancel(boolean mayInterruptIfRunning) {
+    synchronized (this) {
+      if (isDone()) {
+        return false;
+      }
+      cancelled = true;
+      done.countDown();
+    }
+    context.stopService(new Intent(context, VideoPlayerService.class));
+    return true;
+  }
+
+  @Override
+  public boolean isCancelled() {
+    return cancelled;
+  }
+
+  @Override
+  public boolean isDone() {
+    return done.getCount() == 0;
+  }
+
+  @Override
+  public VideoQoEStats get() throws InterruptedException {
+    done.await();
+    return getResult();
+  }
+
+  @Override
+  public VideoQoEStats get(long timeout, TimeUnit unit)
+      throws InterruptedException, TimeoutException {
+    if (!done.await(timeout, unit)) {
+      throw new TimeoutException("Playback did not end in " + unit.toSeconds(timeout) + " s");
+    }
+    return getResult();
+  }
+
+  private VideoQoEStats getResult() {
+    if (cancelled) {
+      throw new CancellationException("Playback was cancelled");
+    }
+    return stats;
+  }
+}
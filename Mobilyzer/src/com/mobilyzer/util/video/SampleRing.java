@@ -0,0 +1,124 @@
+/* Copyright 2014 RobustNet Lab, University of Michigan. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mobilyzer.util.video;
+
+import java.util.Arrays;
+
+/**
+ * Fixed capacity ring of timestamped samples kept in primitive arrays. Once full, every new
+ * sample overwrites the oldest one, so a session of any length uses the same memory.
+ *
+ * Count, sum, minimum and maximum are updated on every add() and cover all the samples ever
+ * added, including overwritten ones. Quantiles can only be taken over the samples still held.
+ * Not thread safe, the player reports all its events on one thread.
+ */
+public class SampleRing {
+  private final long[] timesMs;
+  private final double[] values;
+  // Index the next sample is written to
+  private int next = 0;
+  private int size = 0;
+
+  private long count = 0;
+  private double sum = 0;
+  private double min = Double.NaN;
+  private double max = Double.NaN;
+
+  public SampleRing(int capacity) {
+    this.timesMs = new long[capacity];
+    this.values = new double[capacity];
+  }
+
+  public void add(long timeMs, double value) {
+    timesMs[next] = timeMs;
+    values[next] = value;
+    next = (next + 1) % values.length;
+    if (size < values.length) {
+      size++;
+    }
+    if (count == 0 || value < min) {
+      min = value;
+    }
+    if (count == 0 || value > max) {
+      max = value;
+    }
+    sum += value;
+    count++;
+  }
+
+  /** @return number of samples currently held, at most the capacity */
+  public int size() {
+    return size;
+  }
+
+  /** @return number of samples ever added */
+  public long getCount() {
+    return count;
+  }
+
+  public double getSum() {
+    return sum;
+  }
+
+  /** @return the smallest sample ever added, NaN if there was none */
+  public double getMin() {
+    return min;
+  }
+
+  /** @return the largest sample ever added, NaN if there was none */
+  public double getMax() {
+    return max;
+  }
+
+  /** @return mean of all samples ever added, NaN if there was none */
+  public double getMean() {
+    return count == 0 ? Double.NaN : sum / count;
+  }
+
+  /**
+   * @param q between 0 and 1
+   * @return the q-quantile of the samples held, by the nearest rank method, NaN if empty
+   */
+  public double getQuantile(double q) {
+    if (size == 0) {
+      return Double.NaN;
+    }
+    double[] sorted = copyValues();
+    Arrays.sort(sorted);
+    int rank = (int) Math.ceil(q * size) - 1;
+    return sorted[Math.max(0, Math.min(size - 1, rank))];
+  }
+
+  /** @return timestamps of the samples held, oldest first */
+  public long[] copyTimesMs() {
+    long[] copy = new long[size];
+    int start = (next - size + timesMs.length) % timesMs.length;
+    int firstPart = Math.min(size, timesMs.length - start);
+    System.arraycopy(timesMs, start, copy, 0, firstPart);
+    System.arraycopy(timesMs, 0, copy, firstPart, size - firstPart);
+    return copy;
+  }
+
+  /** @return values of the samples held, oldest first */
+  public double[] copyValues() {
+    double[] copy = new double[size];
+    int start = (next - size + values.length) % values.length;
+    int firstPart = Math.min(size, values.length - start);
+    System.arraycopy(values, start, copy, 0, firstPart);
+    System.arraycopy(values, 0, copy, firstPart, size - firstPart);
+    return copy;
+  }
+}
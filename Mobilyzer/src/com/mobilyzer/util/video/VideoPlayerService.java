@@ -15,7 +15,6 @@
  */
 package com.mobilyzer.util.video;
 
-import com.mobilyzer.UpdateIntent;
 import com.mobilyzer.util.Logger;
 import com.mobilyzer.util.video.player.DashVodRendererBuilder;
 import com.mobilyzer.util.video.player.DefaultRendererBuilder;
@@ -26,6 +25,7 @@ import com.mobilyzer.util.video.util.DemoUtil;
 import com.google.android.exoplayer.ExoPlayer;
 
 import android.app.Service;
+import android.content.Context;
 import android.content.Intent;
 import android.graphics.SurfaceTexture;
 import android.net.Uri;
@@ -62,9 +62,40 @@ public class VideoPlayerService extends Service implements //SurfaceHolder.Callb
   private Surface        mSurface;
 
   private boolean isResultSent;
+  // Handed to the caller of startPlayback(), completed when the player is released
+  private static PlaybackFuture pendingPlayback = null;
+  private PlaybackFuture playback;
+
+  /**
+   * Starts playing a video in the background. The service plays one video at a time, a playback
+   * still running is cancelled.
+   * @return the handle that completes with the QoE statistics when playback ends
+   */
+  public static PlaybackFuture startPlayback(Context context, Uri contentUri, String contentId,
+                                             int contentType) {
+    PlaybackFuture future = new PlaybackFuture(context);
+    PlaybackFuture previous;
+    synchronized (VideoPlayerService.class) {
+      previous = pendingPlayback;
+      pendingPlayback = future;
+    }
+    if (previous != null) {
+      previous.cancel(true);
+    }
+    Intent videoIntent = new Intent(context, VideoPlayerService.class);
+    videoIntent.setData(contentUri);
+    videoIntent.putExtra(DemoUtil.CONTENT_ID_EXTRA, contentId);
+    videoIntent.putExtra(DemoUtil.CONTENT_TYPE_EXTRA, contentType);
+    context.startService(videoIntent);
+    return future;
+  }
+
   @Override
   public int onStartCommand(Intent intent, int flags, int startId){
     Logger.i("Video Player service started!");
+    synchronized (VideoPlayerService.class) {
+      playback = pendingPlayback;
+    }
     contentUri = intent.getData();
     contentType = intent.getIntExtra(DemoUtil.CONTENT_TYPE_EXTRA, DemoUtil.TYPE_PROGRESSIVE);
     contentId = intent.getStringExtra(DemoUtil.CONTENT_ID_EXTRA);
@@ -142,9 +173,16 @@ public class VideoPlayerService extends Service implements //SurfaceHolder.Callb
       player.release();
       player = null;
       if (!isResultSent) {
-        Intent videoResult = eventLogger.endSession();
-        videoResult.putExtra(UpdateIntent.VIDEO_TASK_PAYLOAD_IS_SUCCEED, isSucceed);
-        this.sendBroadcast(videoResult);
+        VideoQoEStats stats = eventLogger.endSession();
+        stats.isSucceed = isSucceed;
+        if (playback != null) {
+          playback.complete(stats);
+          synchronized (VideoPlayerService.class) {
+            if (pendingPlayback == playback) {
+              pendingPlayback = null;
+            }
+          }
+        }
         isResultSent = true;
       }
       eventLogger = null;
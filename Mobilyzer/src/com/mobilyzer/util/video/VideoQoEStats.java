@@ -0,0 +1,52 @@
+/* Copyright 2013 RobustNet Lab, University of Michigan. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mobilyzer.util.video;
+
+/**
+ * QoE statistics of one playback session, as collected by {@link EventLogger}. Times are
+ * seconds since the start of the session, formatted the way the event log prints them.
+ */
+public class VideoQoEStats {
+  // False if playback ended with a player error
+  public boolean isSucceed;
+  public int numFrameDropped;
+  public double initialLoadingTime;
+  // Duration of the most recent rebuffering events after the initial load, in seconds
+  public double[] rebufferTimes;
+  // Count and total duration of all rebuffering events, including those no longer sampled
+  public int rebufferCount;
+  public double totalStallTime;
+  // Most recent video goodput samples in bits per second
+  public String[] goodputTimestamps;
+  public double[] goodputValues;
+  // Bandwidth estimate of the player at each goodput sample
+  public long[] goodputEstimateValues;
+  // Minimum, maximum and mean of all goodput samples, quantiles of the samples above.
+  // NaN if there was no sample
+  public double goodputMin = Double.NaN;
+  public double goodputMax = Double.NaN;
+  public double goodputMean = Double.NaN;
+  public double goodputMedian = Double.NaN;
+  public double goodputP90 = Double.NaN;
+  // Most recent video bitrate steps in bits per second, each switch appears as the old and the
+  // new bitrate
+  public String[] bitrateTimestamps;
+  public int[] bitrateValues;
+  public int bitrateSwitches;
+  // When the BBA algorithm switched to steady state, -1 if it did not
+  public long bbaSwitchTime = -1;
+  // Bytes of all the chunks downloaded, 0 if unknown
+  public long bytesUsed;
+}
@@ -0,0 +1,110 @@
+/* Copyright 2013 RobustNet Lab, University of Michigan. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mobilyzer.util;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Random;
+import java.util.TimeZone;
+
+/**
+ * Compares TimestampCodec with the SimpleDateFormat adapter MeasurementJsonConvertor used
+ * before. It lives outside src so that it is not built into the library. It needs no Android
+ * classes and runs on a desktop JVM:
+ *
+ *   javac -d /tmp/bench src/com/mobilyzer/util/TimestampCodec.java \
+ *       tools/com/mobilyzer/util/TimestampCodecBenchmark.java
+ *   java -cp /tmp/bench com.mobilyzer.util.TimestampCodecBenchmark [iterations]
+ *
+ * The outputs of both are checked to be equal on every timestamp first, then each operation is
+ * timed over a few rounds, so the later rounds show the steady state.
+ */
+public final class TimestampCodecBenchmark {
+  private static final int ROUNDS = 5;
+  // 1970 to 2096
+  private static final long MAX_MILLIS = 4000000000000L;
+
+  private TimestampCodecBenchmark() {}
+
+  public static void main(String[] args) throws ParseException {
+    int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 2000000;
+
+    SimpleDateFormat oldAdapter = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'");
+    oldAdapter.setTimeZone(TimeZone.getTimeZone("GMT"));
+
+    Random random = new Random(42);
+    long[] millis = new long[iterations];
+    String[] strings = new String[iterations];
+    for (int i = 0; i < iterations; i++) {
+      millis[i] = (long) (random.nextDouble() * MAX_MILLIS);
+      strings[i] = oldAdapter.format(new Date(millis[i]));
+    }
+
+    for (int i = 0; i < iterations; i++) {
+      String encoded = TimestampCodec.formatMillis(millis[i]);
+      if (!encoded.equals(strings[i])) {
+        throw new IllegalStateException("format mismatch: " + encoded + " != " + strings[i]);
+      }
+      if (TimestampCodec.parseMillis(strings[i]) != millis[i]) {
+        throw new IllegalStateException("parse mismatch: " + strings[i]);
+      }
+    }
+    System.out.println(iterations + " timestamps match");
+
+    char[] buffer = new char[TimestampCodec.MILLIS_LENGTH];
+    for (int round = 1; round <= ROUNDS; round++) {
+      // The sums keep the JIT from dropping the loops
+      long sum = 0;
+
+      long start = System.nanoTime();
+      for (int i = 0; i < iterations; i++) {
+        sum += oldAdapter.format(new Date(millis[i])).length();
+      }
+      long oldFormat = System.nanoTime() - start;
+
+      start = System.nanoTime();
+      for (int i = 0; i < iterations; i++) {
+        sum += TimestampCodec.encodeMillis(millis[i], buffer, 0);
+      }
+      long encode = System.nanoTime() - start;
+
+      start = System.nanoTime();
+      for (int i = 0; i < iterations; i++) {
+        sum += TimestampCodec.formatMillis(millis[i]).length();
+      }
+      long format = System.nanoTime() - start;
+
+      start = System.nanoTime();
+      for (int i = 0; i < iterations; i++) {
+        sum += oldAdapter.parse(strings[i]).getTime();
+      }
+      long oldParse = System.nanoTime() - start;
+
+      start = System.nanoTime();
+      for (int i = 0; i < iterations; i++) {
+        sum += TimestampCodec.parseMillis(strings[i]);
+      }
+      long parse = System.nanoTime() - start;
+
+      System.out.println("round " + round + " (ns/op): format SimpleDateFormat "
+          + oldFormat / iterations + ", encodeMillis " + encode / iterations
+          + ", formatMillis " + format / iterations + "; parse SimpleDateFormat "
+          + oldParse / iterations + ", parseMillis " + parse / iterations
+          + " [" + (sum & 1) + "]");
+    }
+  }
+}